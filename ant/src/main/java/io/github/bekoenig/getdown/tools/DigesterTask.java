@@ -7,10 +7,13 @@ package io.github.bekoenig.getdown.tools;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.DirSet;
 
 import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * An ant task used to create a {@code digest.txt} for a Getdown
@@ -24,6 +27,21 @@ public class DigesterTask extends Task {
         _appdir = appdir;
     }
 
+    /**
+     * Adds a set of application directories, all of which get their digests created using a
+     * shared digest cache (if one is configured).
+     */
+    public void addDirset(DirSet dirs) {
+        _dirsets.add(dirs);
+    }
+
+    /**
+     * Sets the file in which digests are cached between builds, see {@link DigestCache}.
+     */
+    public void setCache(File cache) {
+        _cache = cache;
+    }
+
     /**
      * Sets the digest signing keystore.
      */
@@ -51,9 +69,19 @@ public class DigesterTask extends Task {
     @Override
     public void execute() throws BuildException {
         // make sure appdir is set
-        if (_appdir == null) {
+        List<File> appdirs = new ArrayList<>();
+        if (_appdir != null) {
+            appdirs.add(_appdir);
+        }
+        for (DirSet dirs : _dirsets) {
+            File basedir = dirs.getDir(getProject());
+            for (String dir : dirs.getDirectoryScanner(getProject()).getIncludedDirectories()) {
+                appdirs.add(new File(basedir, dir));
+            }
+        }
+        if (appdirs.isEmpty()) {
             throw new BuildException("Must specify the path to the application directory " +
-                "via the 'appdir' attribute.");
+                "via the 'appdir' attribute or nested dirsets.");
         }
 
         // make sure _storepass and _keyalias are set, if _storepath is set
@@ -63,7 +91,13 @@ public class DigesterTask extends Task {
         }
 
         try {
-            Digester.createDigests(_appdir, _storepath, _storepass, _storealias);
+            DigestCache cache = (_cache == null) ? null : new DigestCache(_cache);
+            for (File appdir : appdirs) {
+                Digester.createDigests(appdir, _storepath, _storepass, _storealias, cache);
+            }
+            if (cache != null) {
+                cache.save();
+            }
         } catch (IOException ioe) {
             throw new BuildException("Error creating digest: " + ioe.getMessage(), ioe);
         } catch (GeneralSecurityException gse) {
@@ -76,6 +110,16 @@ public class DigesterTask extends Task {
      */
     protected File _appdir;
 
+    /**
+     * Sets of further application directories.
+     */
+    protected final List<DirSet> _dirsets = new ArrayList<>();
+
+    /**
+     * The file in which digests are cached between builds, if any.
+     */
+    protected File _cache;
+
     /**
      * The path to the keystore we'll use to sign the digest file, if any.
      */
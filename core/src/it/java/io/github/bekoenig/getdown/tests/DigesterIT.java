@@ -16,6 +16,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 
 class DigesterIT {
 
@@ -32,6 +33,9 @@ class DigesterIT {
         List<String> digest2Lines = Files.readAllLines(digest2, StandardCharsets.UTF_8);
         Files.delete(digest2);
 
+        // the app does not opt into version 3 of the digest protocol
+        assertFalse(Files.exists(appdir.resolve("digest3.txt")));
+
         assertEquals(Arrays.asList(
             "getdown.txt = 9c9b2494929c99d44ae51034d59e1a1b",
             "testapp.jar = 404dafa55e78b25ec0e3a936357b1883",
@@ -0,0 +1,72 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import io.github.bekoenig.getdown.util.StringUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Resource#computeDigest} on plain files of various sizes with the stream based
+ * loop it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigestBenchmark {
+
+    @Param({"4096", "262144", "4194304", "67108864"})
+    public int size;
+
+    @Setup
+    public void createFile() throws IOException {
+        _file = File.createTempFile("digest", ".dat");
+        byte[] data = new byte[1024 * 1024];
+        new Random(42).nextBytes(data);
+        try (FileOutputStream out = new FileOutputStream(_file)) {
+            for (int remain = size; remain > 0; remain -= data.length) {
+                out.write(data, 0, Math.min(remain, data.length));
+            }
+        }
+        _md = Digest.getMessageDigest(Digest.VERSION);
+    }
+
+    @TearDown
+    public void deleteFile() {
+        _file.delete();
+    }
+
+    @Benchmark
+    public String computeDigest() throws IOException {
+        return Resource.computeDigest(Digest.VERSION, _file, _md, null);
+    }
+
+    @Benchmark
+    public String streamLoop() throws IOException {
+        _md.reset();
+        byte[] buffer = new byte[5 * 1025];
+        int read;
+        try (FileInputStream fin = new FileInputStream(_file)) {
+            while ((read = fin.read(buffer)) != -1) {
+                _md.update(buffer, 0, read);
+            }
+        }
+        return StringUtil.hexlate(_md.digest());
+    }
+
+    protected File _file;
+    protected MessageDigest _md;
+}
@@ -25,6 +25,8 @@ import java.security.*;
 import java.security.cert.Certificate;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,6 +58,27 @@ public class Application {
      */
     public static final String SIGNATURE_SUFFIX = ".sig";
 
+    /**
+     * The name of the file in which we record which resources have been validated.
+     */
+    public static final String LEDGER_FILE = "validation.ledger";
+
+    /**
+     * The name of the file in which we cache the parsed {@code getdown.txt}.
+     */
+    public static final String SNAPSHOT_FILE = "config.snapshot";
+
+    /**
+     * The name of the file in which we record the progress of integrity sampling.
+     */
+    public static final String SAMPLE_FILE = "validation.sample";
+
+    /**
+     * The name of the file which notes that resources were found damaged while the application
+     * was running, so that the next launch tells the user it is repairing them.
+     */
+    public static final String DAMAGED_FILE = "validation.damaged";
+
     /**
      * A special classname that means 'use -jar code.jar' instead of a classname.
      */
@@ -284,6 +307,38 @@ public class Application {
         }
     }
 
+    /**
+     * Immutable views of the active resources of an application, indexed by path.
+     */
+    protected static class ActiveResources {
+        public final List<Resource> codes;
+        public final List<Resource> rsrcs;
+        public final List<Resource> all;
+        public final List<Resource> natives;
+        public final Map<String, Resource> byPath;
+
+        public ActiveResources(List<Resource> codes, List<Resource> rsrcs, List<Resource> main) {
+            this.codes = Collections.unmodifiableList(codes);
+            this.rsrcs = Collections.unmodifiableList(rsrcs);
+            List<Resource> all = new ArrayList<>(codes.size() + rsrcs.size());
+            all.addAll(codes);
+            all.addAll(rsrcs);
+            this.all = Collections.unmodifiableList(all);
+            List<Resource> natives = new ArrayList<>();
+            for (Resource rsrc : main) {
+                if (rsrc.isNative()) {
+                    natives.add(rsrc);
+                }
+            }
+            this.natives = Collections.unmodifiableList(natives);
+            Map<String, Resource> byPath = new HashMap<>(all.size() * 4 / 3 + 1);
+            for (Resource rsrc : all) {
+                byPath.put(rsrc.getPath(), rsrc);
+            }
+            this.byPath = Collections.unmodifiableMap(byPath);
+        }
+    }
+
     /**
      * Reads the {@code getdown.txt} config file into a {@code Config} object and returns it.
      */
@@ -347,6 +402,24 @@ public class Application {
         _envc = envc;
     }
 
+    /**
+     * Configures whether {@link #initBase} should start warming up a connection to the appbase
+     * host as soon as the appbase is known. Only the launcher wants this, tools which merely read
+     * an application's configuration should stay off the network.
+     */
+    public void setWarmUpConnections(boolean warmUp) {
+        _warmUpConnections = warmUp;
+    }
+
+    /**
+     * Configures whether {@link #init} should read the config and resource table from a {@link
+     * ConfigSnapshot} while {@code getdown.txt} is unchanged, rather than parsing it anew. Only
+     * the launcher, which reads the same config on every launch, benefits from this.
+     */
+    public void setUseConfigSnapshot(boolean useSnapshot) {
+        _useConfigSnapshot = useSnapshot;
+    }
+
     /**
      * Returns the configured application directory.
      */
@@ -362,6 +435,65 @@ public class Application {
         return _useCodeCache;
     }
 
+    /**
+     * Returns whether the next version of the application should be downloaded and patched into
+     * a staging directory while the current version runs, see {@link StagedUpdate}. Only
+     * versioned applications with a {@code latest} config URL can stage their updates.
+     */
+    public boolean stageUpdates() {
+        return _stageUpdates && _version != -1 && _latest != null;
+    }
+
+    /**
+     * Returns true if the update found by {@link #verifyMetadata} can be staged once the current
+     * version was launched rather than applied before launching it: the application stages its
+     * updates, and the current version is installed, which is to say every active resource was
+     * validated before.
+     */
+    public boolean canDeferUpdate() {
+        if (!stageUpdates() || _targetVersion == _version) {
+            return false;
+        }
+        for (Resource rsrc : getAllActiveResources()) {
+            if (!rsrc.isMarkedValid()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the application wants to be launched as soon as its metadata is known to
+     * be current, with its resources verified in the background afterwards, and this is
+     * possible: every active resource is installed, was validated before and has no pending
+     * update, and we're running in a suitable JVM. It also requires a revalidation policy that
+     * would rehash resources, as there's nothing to verify in the background otherwise.
+     */
+    public boolean canLaunchBeforeVerify() {
+        // this only pays off if verifying would rehash resources: always with the always and
+        // sample policies, with on_change only if some files changed since they were validated
+        if (!_verifyInBackground || _revalidatePolicy == RevalidatePolicy.AFTER_UPDATE ||
+            !haveValidJavaVersion()) {
+            return false;
+        }
+        boolean rehash = _revalidatePolicy != RevalidatePolicy.ON_CHANGE;
+        for (Resource rsrc : getAllActiveResources()) {
+            if (rsrc.getLocalNew().exists() || !rsrc.isMarkedValid()) {
+                return false;
+            }
+            rehash = rehash || !rsrc.isMarkedValid(_digest.getDigest(rsrc));
+        }
+        return rehash;
+    }
+
+    /**
+     * Returns the version of the digest protocol with which this application validates its
+     * resources, see {@link Digest#VERSION}.
+     */
+    public int getDigestVersion() {
+        return _digestVersion;
+    }
+
     /**
      * Returns the number of days a cached code resource is allowed to stay unused before it
      * becomes eligible for deletion.
@@ -430,10 +562,14 @@ public class Application {
      * non-code).
      */
     public List<Resource> getAllActiveResources() {
-        List<Resource> allResources = new ArrayList<>();
-        allResources.addAll(getActiveCodeResources());
-        allResources.addAll(getActiveResources());
-        return allResources;
+        return activeResources().all;
+    }
+
+    /**
+     * Returns the active resource (code or non-code) with the specified path, or null.
+     */
+    public Resource getActiveResource(String path) {
+        return activeResources().byPath.get(path);
     }
 
     /**
@@ -468,43 +604,52 @@ public class Application {
         return active;
     }
 
+    /**
+     * Overrides whether the specified auxgroup is considered "activated".
+     */
+    public void setAuxGroupActive(String auxgroup, boolean active) {
+        _auxactive.put(auxgroup, active);
+        _activeResources = null;
+    }
+
     /**
      * Returns all main code resources and all code resources from active auxiliary resource groups.
      */
     public List<Resource> getActiveCodeResources() {
-        List<Resource> codes = new ArrayList<>(getCodeResources());
-        for (AuxGroup aux : getAuxGroups()) {
-            if (isAuxGroupActive(aux.name)) {
-                codes.addAll(aux.codes);
-            }
-        }
-        return codes;
+        return activeResources().codes;
     }
 
     /**
      * Returns all resources indicated to contain native library files (.dll, .so, etc.).
      */
     public List<Resource> getNativeResources() {
-        List<Resource> natives = new ArrayList<>();
-        for (Resource resource : _resources) {
-            if (resource.isNative()) {
-                natives.add(resource);
-            }
-        }
-        return natives;
+        return activeResources().natives;
     }
 
     /**
      * Returns all non-code resources and all resources from active auxiliary resource groups.
      */
     public List<Resource> getActiveResources() {
-        List<Resource> rsrcs = new ArrayList<>(getResources());
-        for (AuxGroup aux : getAuxGroups()) {
-            if (isAuxGroupActive(aux.name)) {
-                rsrcs.addAll(aux.rsrcs);
+        return activeResources().rsrcs;
+    }
+
+    /**
+     * Returns the views of our active resources, which are computed when first needed after our
+     * resources or the activation of our auxiliary groups changed, rather than on every call.
+     */
+    protected ActiveResources activeResources() {
+        ActiveResources active = _activeResources;
+        if (active == null) {
+            List<Resource> codes = new ArrayList<>(_codes), rsrcs = new ArrayList<>(_resources);
+            for (AuxGroup aux : getAuxGroups()) {
+                if (isAuxGroupActive(aux.name)) {
+                    codes.addAll(aux.codes);
+                    rsrcs.addAll(aux.rsrcs);
+                }
             }
+            _activeResources = active = new ActiveResources(codes, rsrcs, _resources);
         }
-        return rsrcs;
+        return active;
     }
 
     /**
@@ -659,13 +804,32 @@ public class Application {
      *                     during its parsing.
      */
     public Config init(boolean checkPlatform) throws IOException {
-        Config config = readConfig(_envc, checkPlatform);
+        String key = null, stat = null;
+        ConfigSnapshot snapshot = null;
+        if (_useConfigSnapshot) {
+            stat = configStat();
+            key = snapshotKey(checkPlatform);
+            snapshot = ConfigSnapshot.read(getLocalPath(SNAPSHOT_FILE), key);
+        }
+
+        Config config = (snapshot != null) ? snapshot.getConfig() :
+            readConfig(_envc, checkPlatform);
         initBase(config);
         initJava(config);
         initTracking(config);
-        initResources(config);
+        if (snapshot != null) {
+            initResources(snapshot);
+        } else {
+            initResources(config);
+        }
         initCleanupPatterns(config);
         initArgs(config);
+
+        // only snapshot the config if getdown.txt did not change while we were parsing it, which
+        // we tell by its size and modification time rather than by hashing it again
+        if (key != null && snapshot == null && stat != null && stat.equals(configStat())) {
+            writeSnapshot(config, key);
+        }
         return config;
     }
 
@@ -724,10 +888,34 @@ public class Application {
         int tpSize = SysProps.threadPoolSize();
         _maxConcDownloads = Math.max(1, config.getInt("max_concurrent_downloads", tpSize));
         _verifyTimeout = config.getInt("verify_timeout", 60);
+        _fastRevalidate = config.getBoolean("fast_revalidate");
+        _verifyInBackground = config.getBoolean("verify_in_background");
+        _sampleBytes = config.getLong("revalidate_sample_bytes", DEFAULT_SAMPLE_BYTES);
+        _sampleMillis = config.getLong("revalidate_sample_millis", 0L);
 
         // whether to cache code resources and launch from cache
         _useCodeCache = config.getBoolean("use_code_cache");
         _codeCacheRetentionDays = config.getInt("code_cache_retention_days", 7);
+
+        // whether to prepare the next version in the background while this one runs
+        _stageUpdates = config.getBoolean("stage_updates");
+
+        // which version of the digest protocol to validate our resources with
+        _digestVersion = config.getInt("digest_version", Digest.VERSION);
+        if (_digestVersion < Digest.VERSION || _digestVersion > Digest.MAX_VERSION) {
+            LOGGER.atWarn()
+                .setMessage("Unsupported digest version, using default")
+                .addKeyValue("digest_version", _digestVersion)
+                .addKeyValue("default", Digest.VERSION)
+                .log();
+            _digestVersion = Digest.VERSION;
+        }
+
+        // get the DNS lookup and handshake with our appbase host going while the rest of the
+        // config is processed, our control files will be fetched from there shortly
+        if (_warmUpConnections) {
+            conn.warmUp(getRemoteURL(CONFIG_FILE));
+        }
     }
 
     /**
@@ -793,6 +981,7 @@ public class Application {
         _codes.clear();
         _resources.clear();
         _auxgroups.clear();
+        _activeResources = null;
 
         // parse our code resources
         if (config.getMultiValue("code") == null &&
@@ -824,6 +1013,28 @@ public class Application {
         }
     }
 
+    /**
+     * Reads the app resource info recorded in {@code snapshot} into this instance.
+     */
+    public void initResources(ConfigSnapshot snapshot) {
+        // clear our arrays as we may be reinitializing
+        _codes.clear();
+        _resources.clear();
+        _auxgroups.clear();
+        _activeResources = null;
+
+        for (ConfigSnapshot.Group group : snapshot.getGroups()) {
+            List<Resource> codes = createResources(group.codes);
+            List<Resource> rsrcs = createResources(group.rsrcs);
+            if (group.name == null) {
+                _codes.addAll(codes);
+                _resources.addAll(rsrcs);
+            } else {
+                _auxgroups.put(group.name, new AuxGroup(group.name, codes, rsrcs));
+            }
+        }
+    }
+
     /**
      * Reads the cleanup patterns from {@code config} into this instance.
      */
@@ -1033,11 +1244,10 @@ public class Application {
         }
 
         try {
-            // now re-download our control files; we download the digest first so that if it fails,
+            // now re-download our control files; we install the digest first so that if it fails,
             // our config file will still reference the old version and re-running the updater will
             // start the whole process over again
-            downloadDigestFile();
-            downloadConfigFile();
+            downloadControlFiles(Digest.digestFile(_digestVersion), CONFIG_FILE);
 
         } catch (IOException ex) {
             // if we are allowing offline execution, we want to allow the application to run in its
@@ -1320,9 +1530,15 @@ public class Application {
         LOGGER.info("Version: {}", _version);
         LOGGER.info("Class: {}", _class);
 
+        // if we are versioned and have a latest config URL, start fetching it now so that the
+        // round trip overlaps with loading and checking our digest
+        URL latestURL = _latest;
+        Future<String> latestData = (_version != -1 && latestURL != null) ?
+            fetchAsync(() -> conn.fetch(latestURL)) : null;
+
         // this will read in the contents of the digest file and validate itself
         try {
-            _digest = new Digest(getAppDir(), _strictComments);
+            _digest = new Digest(getAppDir(), _digestVersion, _strictComments);
         } catch (IOException ioe) {
             LOGGER.info("Failed to load digest. Attempting recovery...", ioe);
         }
@@ -1332,15 +1548,16 @@ public class Application {
         if (_version == -1) {
             // make a note of the old meta-digest, if this changes we need to revalidate all of our
             // resources as one or more of them have also changed
+            Digest olddigest = _digest;
             String olddig = (_digest == null) ? "" : _digest.getMetaDigest();
             try {
                 status.updateStatus("m.checking");
                 downloadDigestFile();
-                _digest = new Digest(getAppDir(), _strictComments);
+                _digest = new Digest(getAppDir(), _digestVersion, _strictComments);
                 if (!olddig.equals(_digest.getMetaDigest())) {
                     LOGGER.info("Unversioned digest changed. Revalidating...");
                     status.updateStatus("m.validating");
-                    clearValidationMarkers();
+                    clearValidationMarkers(olddigest);
                 }
             } catch (IOException ioe) {
                 LOGGER.warn("Failed to refresh non-versioned digest. Proceeding...", ioe);
@@ -1353,7 +1570,7 @@ public class Application {
         if (_digest == null) {
             status.updateStatus("m.updating_metadata");
             downloadDigestFile();
-            _digest = new Digest(getAppDir(), _strictComments);
+            _digest = new Digest(getAppDir(), _digestVersion, _strictComments);
         }
 
         // now verify the contents of our main config file
@@ -1362,15 +1579,18 @@ public class Application {
             status.updateStatus("m.updating_metadata");
             // attempt to redownload both of our metadata files; again we pass errors up to our
             // caller because there's nothing we can do to automatically recover
-            downloadConfigFile();
-            downloadDigestFile();
-            _digest = new Digest(getAppDir(), _strictComments);
-            // revalidate everything if we end up downloading new metadata
-            clearValidationMarkers();
-            // if the new copy validates, reinitialize ourselves; otherwise report baffling hoseage
+            Digest olddigest = _digest;
+            List<Resource> oldrsrcs = getAllActiveResources();
+            downloadControlFiles(CONFIG_FILE, Digest.digestFile(_digestVersion));
+            _digest = new Digest(getAppDir(), _digestVersion, _strictComments);
+            // if the new copy validates, reinitialize ourselves and revalidate whatever the new
+            // metadata changed; otherwise revalidate everything and report baffling hoseage
             if (_digest.validateResource(crsrc, null)) {
+                clearValidationMarkers(olddigest);
                 init(true);
+                clearValidationMarkers(oldrsrcs);
             } else {
+                clearValidationMarkers();
                 LOGGER.warn(CONFIG_FILE + " failed to validate even after redownloading. " +
                     "Blindly forging onward.");
             }
@@ -1390,19 +1610,18 @@ public class Application {
 
             if (_latest != null) {
                 try {
-                    List<String[]> vdata = Config.parsePairs(
-                        new StringReader(conn.fetch(_latest)), Config.createOpts(false));
-                    for (String[] pair : vdata) {
-                        if ("version".equals(pair[0])) {
-                            _targetVersion = Math.max(Long.parseLong(pair[1]), _targetVersion);
-                            if (fileVersion != -1 && _targetVersion > fileVersion) {
-                                // replace the file with the newest version
-                                try (FileOutputStream fos = new FileOutputStream(vfile);
-                                     PrintStream out = new PrintStream(fos)) {
-                                    out.println(_targetVersion);
-                                }
+                    // use the prefetched data unless we were reinitialized with a new URL
+                    String latest = (_latest == latestURL && latestData != null) ?
+                        latestData.get() : conn.fetch(_latest);
+                    long latestVersion = parseLatestVersion(latest);
+                    if (latestVersion != -1) {
+                        _targetVersion = Math.max(latestVersion, _targetVersion);
+                        if (fileVersion != -1 && _targetVersion > fileVersion) {
+                            // replace the file with the newest version
+                            try (FileOutputStream fos = new FileOutputStream(vfile);
+                                 PrintStream out = new PrintStream(fos)) {
+                                out.println(_targetVersion);
                             }
-                            break;
                         }
                     }
                 } catch (Exception e) {
@@ -1415,14 +1634,27 @@ public class Application {
         return _version != _targetVersion;
     }
 
+    /**
+     * Extracts the {@code version} from the contents of a {@code latest} config file.
+     *
+     * @return the version or -1 if the config does not define one.
+     */
+    protected static long parseLatestVersion(String data) throws IOException {
+        for (String[] pair : Config.parsePairs(new StringReader(data), Config.createOpts(false))) {
+            if ("version".equals(pair[0])) {
+                return Long.parseLong(pair[1]);
+            }
+        }
+        return -1;
+    }
+
     /**
      * Verifies the code and media resources associated with this application. A list of resources
      * that do not exist or fail the verification process will be returned. If all resources are
      * ready to go, null will be returned and the application is considered ready to run.
      *
-     * @param obs          a progress observer that will be notified of verification progress. NOTE: this
-     *                     observer may be called from arbitrary threads, so if you update a UI based on calls to it,
-     *                     you have to take care to get back to your UI thread.
+     * @param obs          a progress observer that will be notified of verification progress. It is
+     *                     only called from the thread that calls this method.
      * @param alreadyValid if non-null a 1 element array that will have the number of "already
      *                     validated" resources filled in.
      * @param unpacked     a set to populate with unpacked resources.
@@ -1433,94 +1665,226 @@ public class Application {
         ProgressObserver obs, int[] alreadyValid, Set<Resource> unpacked,
         Set<Resource> toInstall, Set<Resource> toDownload)
         throws InterruptedException {
-        // resources are verified on background threads supplied by the thread pool, and progress
-        // is reported by posting runnable actions to the actions queue which is processed by the
-        // main (UI) thread
-        ExecutorService exec = Executors.newFixedThreadPool(SysProps.threadPoolSize());
-        final BlockingQueue<Runnable> actions = new LinkedBlockingQueue<>();
-        final int[] completed = new int[1];
+        verifyResources(obs, alreadyValid, unpacked, toInstall, toDownload, false);
+    }
 
+    /**
+     * Verifies the code and media resources associated with this application, see {@link
+     * #verifyResources(ProgressObserver, int[], Set, Set, Set)}. If {@code background} is true,
+     * the resources are verified one at a time by a low priority thread, so as not to compete
+     * with a running application for CPU and disk. As the running application uses them, valid
+     * resources are then neither unpacked nor have their attributes applied, and damaged ones
+     * are merely added to {@code toDownload}, see {@link #noteDamaged}.
+     */
+    public void verifyResources(
+        ProgressObserver obs, int[] alreadyValid, Set<Resource> unpacked,
+        Set<Resource> toInstall, Set<Resource> toDownload, boolean background)
+        throws InterruptedException {
         long start = System.currentTimeMillis();
 
-        // obtain the sizes of the resources to validate
+        // obtain the sizes of the resources to validate, and schedule the largest ones first so
+        // that no big file is left hashing on its own while the other threads sit idle
         List<Resource> rsrcs = getAllActiveResources();
         long[] sizes = new long[rsrcs.size()];
         long totalSize = 0;
         for (int ii = 0; ii < sizes.length; ii++) {
             totalSize += sizes[ii] = rsrcs.get(ii).getLocal().length();
         }
-        final ProgressObserver fobs = obs;
-        // as long as we forward aggregated progress updates to the UI thread, having multiple
-        // threads update a progress aggregator is "mostly" thread-safe
-        final ProgressAggregator pagg = new ProgressAggregator(
-            percent -> actions.add(() -> fobs.progress(percent)), sizes);
+        Integer[] order = new Integer[sizes.length];
+        for (int ii = 0; ii < order.length; ii++) {
+            order[ii] = ii;
+        }
+        Arrays.sort(order, (i1, i2) -> Long.compare(sizes[i2], sizes[i1]));
+
+        // with the sample policy, each launch rehashes the next part of a sweep through all
+        // resources, and trusts the markers of the rest
+        IntegritySampler sampler = null;
+        Set<Resource> sample = Collections.emptySet();
+        if (_revalidatePolicy == RevalidatePolicy.SAMPLE) {
+            sampler = new IntegritySampler(getLocalPath(SAMPLE_FILE));
+            sample = sampler.select(rsrcs, sizes, _sampleBytes, _sampleMillis);
+        }
+        final Set<Resource> sampled = sample;
 
-        final int[] fAlreadyValid = alreadyValid;
+        // resources are verified on the threads of a work-stealing pool; small files are
+        // verified in batches so that per-task overhead doesn't dominate their verification
         final Set<Resource> toInstallAsync = new ConcurrentSkipListSet<>(toInstall);
         final Set<Resource> toDownloadAsync = new ConcurrentSkipListSet<>();
         final Set<Resource> unpackedAsync = new ConcurrentSkipListSet<>();
-
-        for (int ii = 0; ii < sizes.length; ii++) {
-            final Resource rsrc = rsrcs.get(ii);
-            final int index = ii;
-            exec.execute(() -> {
-                verifyResource(rsrc, pagg.startElement(index), fAlreadyValid,
-                    unpackedAsync, toInstallAsync, toDownloadAsync);
-                actions.add(new Runnable() {
-                    public void run() {
-                        completed[0] += 1;
+        final AtomicInteger validCount = new AtomicInteger();
+        final AtomicLong verifiedSize = new AtomicLong();
+        final AtomicLong sampledNanos = new AtomicLong();
+        final CountDownLatch remaining = new CountDownLatch(order.length);
+        ForkJoinPool pool = background ?
+            new ForkJoinPool(1, LOW_PRIORITY_THREADS, null, true) :
+            new ForkJoinPool(SysProps.threadPoolSize(),
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        for (int first = 0; first < order.length; ) {
+            int last = first;
+            long batchSize = sizes[order[first]];
+            while (last + 1 < order.length && last + 1 - first < VERIFY_BATCH_COUNT &&
+                batchSize + sizes[order[last + 1]] <= VERIFY_BATCH_SIZE) {
+                batchSize += sizes[order[++last]];
+            }
+            final int from = first, to = last + 1;
+            pool.execute(() -> {
+                for (int ii = from; ii < to; ii++) {
+                    int index = order[ii];
+                    try {
+                        Resource rsrc = rsrcs.get(index);
+                        boolean inSample = sampled.contains(rsrc);
+                        long started = inSample ? System.nanoTime() : 0L;
+                        verifyResource(rsrc, inSample, background,
+                            sizeObserver(sizes[index], verifiedSize), validCount,
+                            unpackedAsync, toInstallAsync, toDownloadAsync);
+                        if (inSample) {
+                            sampledNanos.addAndGet(System.nanoTime() - started);
+                        }
+                    } finally {
+                        remaining.countDown();
                     }
-                });
+                }
             });
+            first = to;
         }
 
-        while (completed[0] < rsrcs.size()) {
-            // we should be getting progress completion updates WAY more often than one every
-            // minute, so if things freeze up for 60 seconds, abandon ship
-            Runnable action = actions.poll(_verifyTimeout, TimeUnit.SECONDS);
-            if (action == null) {
-                throw new IllegalStateException("m.verify_timeout");
+        // the workers just tally the bytes they verified, we report the overall progress from
+        // the calling thread and abandon ship if no progress was made for a long time
+        try {
+            long lastVerified = -1, lastCount = -1, lastChange = System.currentTimeMillis();
+            int lastPercent = -1;
+            while (!remaining.await(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+                long verified = verifiedSize.get(), count = remaining.getCount();
+                long now = System.currentTimeMillis();
+                if (verified != lastVerified || count != lastCount) {
+                    lastVerified = verified;
+                    lastCount = count;
+                    lastChange = now;
+                } else if (now - lastChange > _verifyTimeout * 1000L) {
+                    throw new IllegalStateException("m.verify_timeout");
+                }
+                int percent = (totalSize == 0) ? 0 : (int) (100 * verified / totalSize);
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    obs.progress(percent);
+                }
             }
-            action.run();
+            obs.progress(100);
+        } finally {
+            pool.shutdownNow();
         }
 
-        exec.shutdown();
-
         toInstall.addAll(toInstallAsync);
         toDownload.addAll(toDownloadAsync);
         unpacked.addAll(unpackedAsync);
+        if (alreadyValid != null) {
+            alreadyValid[0] += validCount.get();
+        }
+        finishLedgerMigration();
+        // the ledger is reopened when it is next written, meanwhile we don't keep it open, which
+        // would keep it from being renamed or deleted on Windows
+        closeValidationLedger();
 
         long complete = System.currentTimeMillis();
+        if (sampler != null) {
+            // the sample's throughput is that of hashing it, not of the whole verification
+            sampler.finish(TimeUnit.NANOSECONDS.toMillis(sampledNanos.get()));
+        }
         LOGGER.atInfo()
             .setMessage("Verified resources")
             .addKeyValue("count", rsrcs.size())
-            .addKeyValue("alreadyValid", alreadyValid[0])
+            .addKeyValue("alreadyValid", validCount.get())
             .addKeyValue("size", (totalSize / 1024) + "k")
             .addKeyValue("duration", (complete - start) + "ms")
             .log();
     }
 
-    private void verifyResource(Resource rsrc, ProgressObserver obs, int[] alreadyValid,
-                                Set<Resource> unpacked,
+    /**
+     * Returns an observer for the verification of a single resource of the given size, which
+     * adds the bytes it verified to {@code verified}. Each observer must only be used by a single
+     * thread.
+     */
+    private static ProgressObserver sizeObserver(long size, AtomicLong verified) {
+        return new ProgressObserver() {
+            @Override
+            public void progress(int percent) {
+                long done = size * percent / 100;
+                verified.addAndGet(done - _reported);
+                _reported = done;
+            }
+            protected long _reported;
+        };
+    }
+
+    private void verifyResource(Resource rsrc, boolean sampled, boolean background,
+                                ProgressObserver obs,
+                                AtomicInteger alreadyValid, Set<Resource> unpacked,
                                 Set<Resource> toInstall, Set<Resource> toDownload) {
-        if (_revalidatePolicy != RevalidatePolicy.ALWAYS && rsrc.isMarkedValid()) {
-            if (alreadyValid != null) {
-                alreadyValid[0]++;
+        // with the on_change policy, only resources whose files changed since they were last
+        // validated against their current digest are rehashed; the fast tier is never used for
+        // content that just arrived from the network
+        boolean fast = _fastRevalidate && !rsrc.getLocalNew().exists();
+        String digest = _digest.getDigest(rsrc);
+        boolean markedValid;
+        switch (_revalidatePolicy) {
+            case ALWAYS:
+                markedValid = false;
+                break;
+            case ON_CHANGE:
+                markedValid = rsrc.isMarkedValid(digest);
+                break;
+            case SAMPLE:
+                markedValid = !sampled && rsrc.isMarkedValid();
+                break;
+            default:
+                markedValid = rsrc.isMarkedValid();
+                break;
+        }
+        // a resource that passed the digest check before only needs its checksum compared, if
+        // that matches we can skip the (much slower) digest check; not so if it was sampled,
+        // which is to say picked for a full cryptographic check
+        if (!markedValid && fast && !sampled) {
+            Long checksum = rsrc.getMarkedChecksum(digest);
+            try {
+                String stat = (checksum == null) ? null : rsrc.stat();
+                if (checksum != null && checksum == rsrc.computeChecksum(obs)) {
+                    rsrc.markAsValid(stat, digest, checksum);
+                    markedValid = true;
+                }
+            } catch (IOException ioe) {
+                LOGGER.warn("Failed to compute checksum of '{}'.", rsrc, ioe);
             }
+        }
+        if (markedValid) {
+            alreadyValid.incrementAndGet();
             obs.progress(100);
             return;
         }
 
         try {
-            if (_digest.validateResource(rsrc, obs)) {
+            // the stat tuple we record must describe the file as it was before we hashed it
+            String stat = (digest != null && !rsrc.getLocalNew().exists()) ? rsrc.stat() : null;
+            // the checksum for the fast tier is computed while the file is read for its digest
+            long[] checksum = (fast && digest != null) ? new long[1] : null;
+            if (_digest.validateResource(rsrc, checksum, obs)) {
                 // if the resource has a _new file, add it to to-install list
                 if (rsrc.getLocalNew().exists()) {
                     toInstall.add(rsrc);
                     return;
                 }
-                rsrc.applyAttrs();
-                unpacked.add(rsrc);
-                rsrc.markAsValid();
+                // the attributes of a resource the running application uses were applied when
+                // it was validated before, and must not be applied again while it is in use
+                if (!background) {
+                    rsrc.applyAttrs();
+                    unpacked.add(rsrc);
+                }
+                if (checksum != null) {
+                    rsrc.markAsValid(stat, digest, checksum[0]);
+                } else if (digest != null) {
+                    rsrc.markAsValid(stat, digest);
+                } else {
+                    rsrc.markAsValid();
+                }
                 return;
             }
 
@@ -1534,6 +1898,8 @@ public class Application {
         } finally {
             obs.progress(100);
         }
+        // a launch must not trust this resource before it has been repaired
+        rsrc.clearMarker();
         toDownload.add(rsrc);
     }
 
@@ -1543,13 +1909,11 @@ public class Application {
      * @param unpacked a set of resources to skip because they're already unpacked.
      */
     public void unpackResources(ProgressObserver obs, Set<Resource> unpacked) {
-        List<Resource> rsrcs = getActiveResources();
-
-        // remove resources that we don't want to unpack
-        for (Iterator<Resource> it = rsrcs.iterator(); it.hasNext(); ) {
-            Resource rsrc = it.next();
-            if (!rsrc.shouldUnpack() || unpacked.contains(rsrc)) {
-                it.remove();
+        // skip resources that we don't want to unpack
+        List<Resource> rsrcs = new ArrayList<>();
+        for (Resource rsrc : getActiveResources()) {
+            if (rsrc.shouldUnpack() && !unpacked.contains(rsrc)) {
+                rsrcs.add(rsrc);
             }
         }
 
@@ -1577,10 +1941,204 @@ public class Application {
     }
 
     /**
-     * Clears all validation marker files.
+     * Clears all validation markers, by truncating our validation ledger.
      */
     public void clearValidationMarkers() {
-        clearValidationMarkers(getAllActiveResources().iterator());
+        try {
+            // clearing the ledger ends its migration, after which old marker files are ignored
+            finishLedgerMigration();
+            getValidationLedger().clearAll();
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to clear validation ledger, clearing markers one by one.", ioe);
+            clearValidationMarkers(getAllActiveResources().iterator());
+        }
+    }
+
+    /**
+     * Clears the validation markers of the resources whose expected digest differs between
+     * {@code olddigest} and our current digest, or which only one of them lists. If the digests
+     * can't be compared, all markers are cleared.
+     */
+    protected void clearValidationMarkers(Digest olddigest) {
+        if (olddigest == null || olddigest.getVersion() != _digest.getVersion()) {
+            clearValidationMarkers();
+            return;
+        }
+        Set<String> changed = _digest.changedPaths(olddigest);
+        for (String path : changed) {
+            createLocalResource(path, Resource.NORMAL).clearMarker();
+        }
+        LOGGER.atInfo()
+            .setMessage("Cleared validation markers of changed resources")
+            .addKeyValue("count", changed.size())
+            .log();
+    }
+
+    /**
+     * Clears the validation markers of the active resources that were not active before we were
+     * reinitialized, or whose attributes changed (as they may now need unpacking, for example).
+     *
+     * @param oldrsrcs the active resources before we were reinitialized.
+     */
+    protected void clearValidationMarkers(Collection<Resource> oldrsrcs) {
+        Map<String, Resource> byPath = new HashMap<>();
+        for (Resource rsrc : oldrsrcs) {
+            byPath.put(rsrc.getPath(), rsrc);
+        }
+        for (Resource rsrc : getAllActiveResources()) {
+            Resource old = byPath.get(rsrc.getPath());
+            if (old == null || !old.getAttrs().equals(rsrc.getAttrs())) {
+                rsrc.clearMarker();
+            }
+        }
+    }
+
+    /**
+     * Clears the validation markers invalidated by an update which patched the {@code touched}
+     * paths and installed new metadata: those of the touched paths, of the resources whose
+     * expected digest changed, and of the resources that the new config activated or changed.
+     * All other resources keep their markers. This must be called after we were reinitialized
+     * with the new config, but before {@link #verifyMetadata} loads the new digest.
+     *
+     * @param oldrsrcs the active resources before the update.
+     */
+    public void clearValidationMarkers(Collection<String> touched, Collection<Resource> oldrsrcs) {
+        for (String path : touched) {
+            createLocalResource(path, Resource.NORMAL).clearMarker();
+        }
+        Digest olddigest = _digest;
+        try {
+            _digest = new Digest(getAppDir(), _digestVersion, _strictComments);
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to load updated digest, clearing all validation markers.", ioe);
+            clearValidationMarkers();
+            return;
+        }
+        clearValidationMarkers(olddigest);
+        clearValidationMarkers(oldrsrcs);
+    }
+
+    /**
+     * Marks the active resources that an update patched and verified against the digest listed
+     * in its patch manifest as validated, so that they need not be hashed again. Resources whose
+     * verified digest is not the one our digest expects are left alone. This must be called after
+     * {@link #clearValidationMarkers(Collection, Collection)}.
+     *
+     * @param version the version of the verified digests.
+     * @param verified the stat tuple taken before hashing (or null) and the digest of each
+     * verified file, by path.
+     */
+    public void markPatchedValid(int version, Map<String, String[]> verified) {
+        if (verified.isEmpty() || version != _digest.getVersion()) {
+            return;
+        }
+        int marked = 0;
+        for (Resource rsrc : getAllActiveResources()) {
+            String[] sd = verified.get(rsrc.getPath());
+            if (sd == null || !sd[1].equals(_digest.getDigest(rsrc))) {
+                continue;
+            }
+            try {
+                // verifyResource would apply the attributes of a valid resource, so we do too
+                rsrc.applyAttrs();
+                rsrc.markAsValid(sd[0], sd[1]);
+                marked++;
+            } catch (IOException ioe) {
+                LOGGER.warn("Failed to mark patched '{}' as valid.", rsrc, ioe);
+            }
+        }
+        LOGGER.atInfo()
+            .setMessage("Marked patched resources as valid")
+            .addKeyValue("count", marked)
+            .log();
+    }
+
+    /**
+     * Ends the migration of old marker files into our ledger once every active resource was
+     * checked, which moved their markers into the ledger. The old marker files of all other
+     * resources are deleted rather than migrated, inactive auxiliary groups are simply
+     * revalidated when they are activated.
+     */
+    protected void finishLedgerMigration() {
+        ValidationLedger ledger = getValidationLedger();
+        if (!ledger.isMigrating()) {
+            return;
+        }
+        deleteLegacyMarkers();
+        try {
+            ledger.finishMigration();
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to finish migrating validation markers.", ioe);
+        }
+    }
+
+    /**
+     * Deletes the old marker files of all of our resources, active or not.
+     */
+    protected void deleteLegacyMarkers() {
+        List<Resource> rsrcs = new ArrayList<>(_codes);
+        rsrcs.addAll(_resources);
+        for (AuxGroup aux : getAuxGroups()) {
+            rsrcs.addAll(aux.codes);
+            rsrcs.addAll(aux.rsrcs);
+        }
+        for (Resource rsrc : rsrcs) {
+            rsrc.deleteLegacyMarker();
+        }
+    }
+
+    /**
+     * Notes that resources were found damaged while the application was running, which is
+     * reported to the user by the next launch, see {@link #isDamaged}.
+     */
+    public void noteDamaged() {
+        try {
+            getLocalPath(DAMAGED_FILE).createNewFile();
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to note damaged resources.", ioe);
+        }
+    }
+
+    /**
+     * Returns true if resources were found damaged while the application was running and have
+     * not been verified since, see {@link #noteDamaged}.
+     */
+    public boolean isDamaged() {
+        return getLocalPath(DAMAGED_FILE).exists();
+    }
+
+    /**
+     * Clears the note that resources were found damaged, once they were all verified.
+     */
+    public void clearDamaged() {
+        File damaged = getLocalPath(DAMAGED_FILE);
+        if (damaged.exists() && !FileUtil.deleteHarder(damaged)) {
+            LOGGER.warn("Failed to delete '{}'.", damaged);
+        }
+    }
+
+    /**
+     * Closes the file of our validation ledger, if it is open.
+     */
+    protected synchronized void closeValidationLedger() {
+        if (_ledger == null) {
+            return;
+        }
+        try {
+            _ledger.close();
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to close validation ledger.", ioe);
+        }
+    }
+
+    /**
+     * Returns the ledger in which our resources record their validation state.
+     */
+    public synchronized ValidationLedger getValidationLedger() {
+        if (_ledger == null) {
+            _ledger = new ValidationLedger(getLocalPath(LEDGER_FILE));
+        }
+        return _ledger;
     }
 
     /**
@@ -1685,7 +2243,82 @@ public class Application {
      */
     protected void downloadDigestFile()
         throws IOException {
-        downloadControlFile(Digest.digestFile(Digest.VERSION), Digest.VERSION);
+        downloadControlFiles(Digest.digestFile(_digestVersion));
+    }
+
+    /**
+     * Downloads new copies of the specified control files. The files, and the signatures of
+     * those that are signed, are all fetched concurrently, but they are then verified and moved
+     * over the old files one after another in the supplied order. If any fetch fails, no file is
+     * installed; if a verification fails, none of the files following it are installed.
+     */
+    protected void downloadControlFiles(String... paths)
+        throws IOException {
+        Map<String, Future<File>> fetches = new LinkedHashMap<>();
+        for (String path : paths) {
+            fetches.put(path, fetchAsync(() -> downloadFile(path)));
+            if (controlSigVersion(path) > 0 && !_envc.certs.isEmpty()) {
+                String sigpath = path + SIGNATURE_SUFFIX;
+                fetches.put(sigpath, fetchAsync(() -> downloadFile(sigpath)));
+            }
+        }
+
+        // wait for every fetch to finish so that no straggler is still writing when we return
+        Map<String, File> files = new HashMap<>();
+        IOException failure = null;
+        for (Map.Entry<String, Future<File>> entry : fetches.entrySet()) {
+            try {
+                files.put(entry.getKey(), entry.getValue().get());
+            } catch (ExecutionException ee) {
+                if (failure == null) {
+                    Throwable cause = ee.getCause();
+                    failure = cause instanceof IOException ? (IOException) cause :
+                        new IOException("Failed to download " + entry.getKey(), cause);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new InterruptedIOException("Interrupted downloading control files");
+                }
+            }
+        }
+
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            for (String path : paths) {
+                installControlFile(path, controlSigVersion(path), files.remove(path),
+                    files.remove(path + SIGNATURE_SUFFIX));
+            }
+        } finally {
+            // get rid of anything that we did not get around to installing
+            for (File file : files.values()) {
+                FileUtil.deleteHarder(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the digest version with which the signature of the specified control file is
+     * verified, or {@code 0} if the file is not signed.
+     */
+    protected int controlSigVersion(String path) {
+        return path.equals(Digest.digestFile(_digestVersion)) ? _digestVersion : 0;
+    }
+
+    /**
+     * Runs {@code fetch} on one of our background fetcher threads.
+     */
+    protected synchronized <T> Future<T> fetchAsync(Callable<T> fetch) {
+        if (_fetcher == null) {
+            _fetcher = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "Getdown fetcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return _fetcher.submit(fetch);
     }
 
     /**
@@ -1701,7 +2334,20 @@ public class Application {
     protected void downloadControlFile(String path, int sigVersion)
         throws IOException {
         File target = downloadFile(path);
+        File signatureFile = (sigVersion > 0 && !_envc.certs.isEmpty()) ?
+            downloadFile(path + SIGNATURE_SUFFIX) : null;
+        installControlFile(path, sigVersion, target, signatureFile);
+    }
 
+    /**
+     * Verifies the signature of a freshly downloaded control file, if needed, and moves it over
+     * the old file on the filesystem.
+     *
+     * @param target        the downloaded control file.
+     * @param signatureFile the downloaded signature, or null if we have no signing certs.
+     */
+    protected void installControlFile(String path, int sigVersion, File target, File signatureFile)
+        throws IOException {
         if (sigVersion > 0) {
             if (_envc.certs.isEmpty()) {
                 LOGGER.atInfo()
@@ -1710,7 +2356,6 @@ public class Application {
                     .log();
 
             } else {
-                File signatureFile = downloadFile(path + SIGNATURE_SUFFIX);
                 verifySignature(_envc.certs, sigVersion, signatureFile, target);
             }
         }
@@ -1799,11 +2444,99 @@ public class Application {
     }
 
     /**
-     * Helper function for creating {@link Resource} instances.
+     * Helper function for creating {@link Resource} instances. The remote URL of the resource is
+     * only created once it is needed, but its path is resolved right away, so that an invalid
+     * path is reported here rather than when the resource is downloaded.
      */
     protected Resource createResource(String path, EnumSet<Resource.Attr> attrs)
         throws MalformedURLException {
-        return new Resource(path, getRemoteURL(path), getLocalPath(path), attrs);
+        Resource.RemoteResolver resolver = remoteResolver();
+        resolver.resolve(path);
+        return createLocalResource(path, attrs);
+    }
+
+    /**
+     * Creates a resource without checking that its path resolves to a remote URL, for paths that
+     * were checked before or resources that are only dealt with locally.
+     */
+    protected Resource createLocalResource(String path, EnumSet<Resource.Attr> attrs) {
+        Resource rsrc = new Resource(path, getLocalPath(path), attrs, remoteResolver());
+        rsrc.setLedger(getValidationLedger());
+        return rsrc;
+    }
+
+    /**
+     * Returns a resolver of remote resource URLs against our current versioned appbase. The URLs
+     * of resources are only created once they are needed, as most are never downloaded.
+     */
+    protected Resource.RemoteResolver remoteResolver() {
+        URL base = _vappbase;
+        Resource.RemoteResolver resolver = _remoteResolver;
+        if (resolver == null || _resolverBase != base) {
+            _remoteResolver = resolver = path -> new URL(base, encodePath(path));
+            _resolverBase = base;
+        }
+        return resolver;
+    }
+
+    /**
+     * Creates the resources recorded in a config snapshot. Their paths were already checked when
+     * the snapshot was taken.
+     */
+    protected List<Resource> createResources(List<ConfigSnapshot.Entry> entries) {
+        List<Resource> rsrcs = new ArrayList<>(entries.size());
+        for (ConfigSnapshot.Entry entry : entries) {
+            rsrcs.add(createLocalResource(entry.path, entry.attrs));
+        }
+        return rsrcs;
+    }
+
+    /**
+     * Returns the key of the config snapshot matching our current {@code getdown.txt}, or null
+     * if there is no such file.
+     */
+    protected String snapshotKey(boolean checkPlatform) {
+        try {
+            return ConfigSnapshot.key(getLocalPath(CONFIG_FILE), Config.createOpts(checkPlatform));
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to compute config snapshot key.", ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the size and modification time of our {@code getdown.txt}, or null if there is no
+     * such file.
+     */
+    protected String configStat() {
+        File config = getLocalPath(CONFIG_FILE);
+        long mtime = config.lastModified();
+        return (mtime == 0L) ? null : config.length() + " " + mtime;
+    }
+
+    /**
+     * Snapshots {@code config} and our resource table so that later launches can skip parsing.
+     */
+    protected void writeSnapshot(Config config, String key) {
+        List<ConfigSnapshot.Group> groups = new ArrayList<>();
+        groups.add(new ConfigSnapshot.Group(null, toEntries(_codes), toEntries(_resources)));
+        for (AuxGroup group : _auxgroups.values()) {
+            groups.add(new ConfigSnapshot.Group(
+                group.name, toEntries(group.codes), toEntries(group.rsrcs)));
+        }
+        try {
+            new ConfigSnapshot(config, groups).write(getLocalPath(SNAPSHOT_FILE), key);
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to write config snapshot.", ioe);
+        }
+    }
+
+    protected static List<ConfigSnapshot.Entry> toEntries(List<Resource> rsrcs) {
+        List<ConfigSnapshot.Entry> entries = new ArrayList<>(rsrcs.size());
+        for (Resource rsrc : rsrcs) {
+            entries.add(new ConfigSnapshot.Entry(rsrc.getPath(), rsrc.getAttrs()));
+        }
+        return entries;
     }
 
     /**
@@ -1899,6 +2632,8 @@ public class Application {
     protected long _targetVersion = -1;
     protected String _appbase;
     protected URL _vappbase;
+    protected URL _resolverBase;
+    protected Resource.RemoteResolver _remoteResolver;
     protected URL _latest;
     protected String _class;
     protected String _dockName;
@@ -1906,6 +2641,8 @@ public class Application {
     protected boolean _strictComments;
     protected boolean _allowOffline;
     protected int _maxConcDownloads;
+    protected boolean _warmUpConnections;
+    protected boolean _useConfigSnapshot;
 
     protected String _trackingURL;
     protected Set<Integer> _trackingPcts;
@@ -1929,13 +2666,20 @@ public class Application {
     protected final List<String> _cpdirs = new ArrayList<>();
 
     protected int _verifyTimeout = 60;
+    protected boolean _fastRevalidate;
+    protected boolean _verifyInBackground;
+    protected long _sampleBytes = DEFAULT_SAMPLE_BYTES;
+    protected long _sampleMillis;
 
     protected RevalidatePolicy _revalidatePolicy = RevalidatePolicy.AFTER_UPDATE;
     protected boolean _useCodeCache;
+    protected boolean _stageUpdates;
+    protected int _digestVersion = Digest.VERSION;
     protected int _codeCacheRetentionDays;
 
     protected final Map<String, AuxGroup> _auxgroups = new HashMap<>();
     protected final Map<String, Boolean> _auxactive = new HashMap<>();
+    protected volatile ActiveResources _activeResources;
 
     protected final List<String> _jvmargs = new ArrayList<>();
     protected final List<String> _appargs = new ArrayList<>();
@@ -1956,10 +2700,52 @@ public class Application {
 
     protected final Random _rando = new Random();
 
+    /**
+     * Runs control file fetches in the background, created on demand.
+     */
+    protected ExecutorService _fetcher;
+
+    /**
+     * Records which of our resources have been validated, created on demand.
+     */
+    protected ValidationLedger _ledger;
+
     protected static final String[] EMPTY_STRING_ARRAY = new String[0];
 
+    /** The largest total size of the small resources that are verified as a single task. */
+    protected static final long VERIFY_BATCH_SIZE = 4 * 1024 * 1024;
+
+    /** The largest number of small resources that are verified as a single task. */
+    protected static final int VERIFY_BATCH_COUNT = 128;
+
+    /** The default size in bytes of the resources rehashed by the sample revalidation policy. */
+    protected static final long DEFAULT_SAMPLE_BYTES = 256L * 1024 * 1024;
+
+    /** The interval in milliseconds at which verification progress is reported. */
+    protected static final long PROGRESS_INTERVAL = 100L;
+
+    /** Creates the threads of background verification passes. */
+    protected static final ForkJoinPool.ForkJoinWorkerThreadFactory LOW_PRIORITY_THREADS =
+        pool -> {
+            ForkJoinWorkerThread thread =
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        };
+
     protected static final String ENV_VAR_PREFIX = "%ENV.";
     protected static final Pattern ENV_VAR_PATTERN = Pattern.compile("%ENV\\.(.*?)%");
 
-    protected enum RevalidatePolicy {ALWAYS, AFTER_UPDATE}
+    protected enum RevalidatePolicy {
+        /** Rehashes every resource on every launch. */
+        ALWAYS,
+        /** Rehashes resources only once their validation markers were cleared by an update. */
+        AFTER_UPDATE,
+        /** Like {@link #AFTER_UPDATE}, but also rehashes resources whose size, modification time
+         * or file key changed since they were validated. */
+        ON_CHANGE,
+        /** Like {@link #AFTER_UPDATE}, but also rehashes a rotating sample of the resources on
+         * every launch, see {@link IntegritySampler}. */
+        SAMPLE
+    }
 }
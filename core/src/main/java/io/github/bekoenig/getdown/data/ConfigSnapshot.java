@@ -0,0 +1,265 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import io.github.bekoenig.getdown.util.Config;
+import io.github.bekoenig.getdown.util.FileUtil;
+import io.github.bekoenig.getdown.util.StringUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary snapshot of a parsed {@code getdown.txt} and the resource table derived from
+ * it, which lets the launcher skip parsing the config file on launches where it is unchanged. A
+ * snapshot is keyed by the digest of the config file and the platform qualifiers it was parsed
+ * with (see {@link #key}) and is ignored as soon as either changes.
+ */
+public class ConfigSnapshot {
+
+    /**
+     * A resource recorded in a snapshot.
+     */
+    public static class Entry {
+        public final String path;
+        public final EnumSet<Resource.Attr> attrs;
+
+        public Entry(String path, EnumSet<Resource.Attr> attrs) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+    }
+
+    /**
+     * A group of resources recorded in a snapshot: the application's own resources if the name
+     * is null, or those of an auxiliary group.
+     */
+    public static class Group {
+        public final String name;
+        public final List<Entry> codes;
+        public final List<Entry> rsrcs;
+
+        public Group(String name, List<Entry> codes, List<Entry> rsrcs) {
+            this.name = name;
+            this.codes = Collections.unmodifiableList(codes);
+            this.rsrcs = Collections.unmodifiableList(rsrcs);
+        }
+    }
+
+    /**
+     * Returns the key under which a snapshot of {@code cfgfile} parsed with {@code opts} is
+     * stored, or null if there is no such file.
+     */
+    public static String key(File cfgfile, Config.ParseOpts opts) throws IOException {
+        if (!cfgfile.exists()) {
+            return null;
+        }
+        MessageDigest md = Digest.getMessageDigest(Digest.VERSION);
+        byte[] digest = md.digest(Files.readAllBytes(cfgfile.toPath()));
+        return StringUtil.hexlate(digest) + "\t" + opts.osname + "\t" + opts.osarch;
+    }
+
+    /**
+     * Reads the snapshot stored in {@code file}, returning null if there is none, if it was
+     * stored under a key other than {@code key} or if it cannot be read.
+     */
+    public static ConfigSnapshot read(File file, String key) {
+        if (key == null || !file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION || !key.equals(readString(in))) {
+                return null;
+            }
+
+            // the attributes the bits of the resource entries stand for, by bit
+            Resource.Attr[] attrBits = new Resource.Attr[in.readInt()];
+            for (int ii = 0; ii < attrBits.length; ii++) {
+                attrBits[ii] = Resource.Attr.valueOf(readString(in));
+            }
+
+            Map<String, Object> data = new HashMap<>();
+            for (int ii = in.readInt(); ii > 0; ii--) {
+                String name = readString(in);
+                int count = in.readInt();
+                if (count < 0) {
+                    data.put(name, readString(in));
+                } else {
+                    String[] values = new String[count];
+                    for (int vv = 0; vv < count; vv++) {
+                        values[vv] = readString(in);
+                    }
+                    data.put(name, values);
+                }
+            }
+
+            List<Group> groups = new ArrayList<>();
+            Map<Integer, EnumSet<Resource.Attr>> attrs = new HashMap<>();
+            for (int ii = in.readInt(); ii > 0; ii--) {
+                String name = in.readBoolean() ? readString(in) : null;
+                List<Entry> codes = readEntries(in, attrBits, attrs);
+                groups.add(new Group(name, codes, readEntries(in, attrBits, attrs)));
+            }
+            return new ConfigSnapshot(new Config(data), groups);
+
+        } catch (IOException | RuntimeException e) {
+            LOGGER.atWarn()
+                .setMessage("Ignoring unreadable config snapshot")
+                .addKeyValue("file", file)
+                .setCause(e)
+                .log();
+            return null;
+        }
+    }
+
+    public ConfigSnapshot(Config config, List<Group> groups) {
+        _config = config;
+        _groups = groups;
+    }
+
+    /**
+     * Returns the config recorded in this snapshot.
+     */
+    public Config getConfig() {
+        return _config;
+    }
+
+    /**
+     * Returns the resource groups recorded in this snapshot.
+     */
+    public List<Group> getGroups() {
+        return _groups;
+    }
+
+    /**
+     * Writes this snapshot to {@code file} under the supplied key, replacing any existing
+     * snapshot in a single rename.
+     */
+    public void write(File file, String key) throws IOException {
+        File temp = new File(file.getPath() + "_new");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, key);
+
+            // the entries record their attributes as bits, we note which bit stands for which
+            // attribute, so that changes to the attributes don't garble old snapshots
+            Resource.Attr[] attrBits = Resource.Attr.values();
+            out.writeInt(attrBits.length);
+            for (Resource.Attr attr : attrBits) {
+                writeString(out, attr.name());
+            }
+
+            out.writeInt(_config.getNames().size());
+            for (String name : _config.getNames()) {
+                writeString(out, name);
+                Object value = _config.getRaw(name);
+                if (value instanceof String[]) {
+                    String[] values = (String[]) value;
+                    out.writeInt(values.length);
+                    for (String val : values) {
+                        writeString(out, val);
+                    }
+                } else {
+                    out.writeInt(-1);
+                    writeString(out, (String) value);
+                }
+            }
+
+            out.writeInt(_groups.size());
+            for (Group group : _groups) {
+                out.writeBoolean(group.name != null);
+                if (group.name != null) {
+                    writeString(out, group.name);
+                }
+                writeEntries(out, group.codes);
+                writeEntries(out, group.rsrcs);
+            }
+        }
+        if (!FileUtil.renameTo(temp, file)) {
+            throw new IOException("Failed to replace config snapshot '" + file + "'.");
+        }
+    }
+
+    /**
+     * Reads a list of resource entries.
+     *
+     * @param attrBits the attributes which the bits of the entries' attributes stand for.
+     * @param attrs the attribute sets read so far, by their bits.
+     */
+    protected static List<Entry> readEntries(
+        DataInputStream in, Resource.Attr[] attrBits, Map<Integer, EnumSet<Resource.Attr>> attrs)
+        throws IOException {
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int ii = 0; ii < count; ii++) {
+            String path = readString(in);
+            // resources share a handful of attribute sets, so we share them as well
+            entries.add(new Entry(path, attrs.computeIfAbsent(in.readInt(), bits -> {
+                EnumSet<Resource.Attr> set = EnumSet.noneOf(Resource.Attr.class);
+                for (int bb = 0; bb < attrBits.length; bb++) {
+                    if ((bits & (1 << bb)) != 0) {
+                        set.add(attrBits[bb]);
+                    }
+                }
+                return set;
+            })));
+        }
+        return entries;
+    }
+
+    protected static void writeEntries(DataOutputStream out, List<Entry> entries)
+        throws IOException {
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            writeString(out, entry.path);
+            int bits = 0;
+            for (Resource.Attr attr : entry.attrs) {
+                bits |= 1 << attr.ordinal();
+            }
+            out.writeInt(bits);
+        }
+    }
+
+    // DataOutput.writeUTF() is limited to 64k, which a config value could conceivably exceed
+    protected static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    protected static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected final Config _config;
+    protected final List<Group> _groups;
+
+    /** Identifies the layout of snapshot files; bump this whenever it changes. */
+    protected static final int FORMAT_VERSION = 2;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigSnapshot.class);
+}
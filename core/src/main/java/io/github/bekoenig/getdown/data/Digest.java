@@ -29,10 +29,17 @@ public class Digest {
     private static final Logger LOGGER = LoggerFactory.getLogger(Digest.class);
 
     /**
-     * The current version of the digest protocol.
+     * The current version of the digest protocol, used unless an application opts into a newer
+     * one via {@code digest_version}.
      */
     public static final int VERSION = 2;
 
+    /**
+     * The newest version of the digest protocol, see {@link MerkleDigest}. Digest files are
+     * created for all versions up to this one.
+     */
+    public static final int MAX_VERSION = 3;
+
     /**
      * Returns the name of the digest file for the specified protocol version.
      */
@@ -49,6 +56,7 @@ public class Digest {
             case 1:
                 return "SHA1withRSA";
             case 2:
+            case 3:
                 return "SHA256withRSA";
             default:
                 throw new IllegalArgumentException("Invalid digest version " + version);
@@ -62,11 +70,36 @@ public class Digest {
      */
     public static void createDigest(int version, List<Resource> resources, File output)
         throws IOException {
-        // first compute the digests for all the resources in parallel
+        writeDigest(version, resources, computeDigests(version, resources), output);
+    }
+
+    /**
+     * Computes the digests of the supplied resources in parallel.
+     *
+     * @param version the version of the digest protocol to use.
+     * @return a map from resource to its digest.
+     */
+    public static Map<Resource, String> computeDigests(int version, Collection<Resource> resources)
+        throws IOException {
+        Map<Resource, String> digests = new HashMap<>();
+        for (Map.Entry<Resource, String[]> entry :
+                 computeDigests(new int[] { version }, resources).entrySet()) {
+            digests.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return digests;
+    }
+
+    /**
+     * Computes the digests of the supplied resources for several versions of the digest protocol
+     * in parallel, reading each resource just once.
+     *
+     * @return a map from resource to its digests, in the order of {@code versions}.
+     */
+    public static Map<Resource, String[]> computeDigests(
+        int[] versions, Collection<Resource> resources) throws IOException {
         ExecutorService exec = Executors.newFixedThreadPool(SysProps.threadPoolSize());
-        final Map<Resource, String> digests = new ConcurrentHashMap<>();
+        final Map<Resource, String[]> digests = new ConcurrentHashMap<>();
         final BlockingQueue<Object> completed = new LinkedBlockingQueue<>();
-        final int fversion = version;
 
         long start = System.currentTimeMillis();
 
@@ -74,8 +107,7 @@ public class Digest {
         for (final Resource rsrc : resources) {
             exec.execute(() -> {
                 try {
-                    MessageDigest md = getMessageDigest(fversion);
-                    digests.put(rsrc, rsrc.computeDigest(fversion, md, null));
+                    digests.put(rsrc, rsrc.computeDigests(versions, null));
                     completed.add(rsrc);
                 } catch (Throwable t) {
                     completed.add(new IOException("Error computing digest for: " + rsrc, t));
@@ -101,7 +133,25 @@ public class Digest {
             throw new IOException("Timeout computing digests. Wow.");
         }
 
-        StringBuilder data = new StringBuilder();
+        long elapsed = System.currentTimeMillis() - start;
+        LOGGER.atDebug()
+            .setMessage("Computed digests")
+            .addKeyValue("rsrcs", resources.size())
+            .addKeyValue("time", elapsed + "ms")
+            .log();
+        return digests;
+    }
+
+    /**
+     * Writes a digest file at the specified location which lists the supplied {@code digests} of
+     * {@code resources} in order.
+     *
+     * @param version the version of the digest protocol to use.
+     */
+    public static void writeDigest(int version, List<Resource> resources,
+                                   Map<Resource, String> digests, File output)
+        throws IOException {
+        MessageDigest md = getMessageDigest(version);
         try (FileOutputStream fos = new FileOutputStream(output);
              OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
              PrintWriter pout = new PrintWriter(osw)) {
@@ -109,22 +159,13 @@ public class Digest {
             for (Resource rsrc : resources) {
                 String path = rsrc.getPath();
                 String digest = digests.get(rsrc);
-                note(data, path, digest);
+                note(md, path, digest);
                 pout.println(path + " = " + digest);
             }
-            // finally compute and append the digest for the file contents
-            MessageDigest md = getMessageDigest(version);
-            byte[] contents = data.toString().getBytes(UTF_8);
+            // finally append the digest for the file contents
             String filename = digestFile(version);
-            pout.println(filename + " = " + StringUtil.hexlate(md.digest(contents)));
+            pout.println(filename + " = " + StringUtil.hexlate(md.digest()));
         }
-
-        long elapsed = System.currentTimeMillis() - start;
-        LOGGER.atDebug()
-            .setMessage("Computed digests")
-            .addKeyValue("rsrcs", resources.size())
-            .addKeyValue("time", elapsed + "ms")
-            .log();
     }
 
     /**
@@ -154,28 +195,33 @@ public class Digest {
      * @param version the version of the digest protocol to use.
      */
     public Digest(File appdir, int version, boolean strictComments) throws IOException {
-        // parse and validate our digest file contents
+        _version = version;
+        // parse and validate our digest file contents, hashing them as we go
         String filename = digestFile(version);
-        StringBuilder data = new StringBuilder();
+        MessageDigest md = getMessageDigest(version);
         File dfile = new File(appdir, filename);
         Config.ParseOpts opts = Config.createOpts(false);
         opts.strictComments = strictComments;
         // bias = toward key: the key is the filename and could conceivably contain = signs, value
         // is the hex encoded hash which will not contain =
         opts.biasToKey = true;
-        for (String[] pair : Config.parsePairs(dfile, opts)) {
-            if (pair[0].equals(filename)) {
-                _metaDigest = pair[1];
-                break;
+        Config.parsePairs(dfile, opts, (path, digest) -> {
+            if (_metaDigest != null) {
+                return; // ignore anything following the meta-digest
             }
-            _digests.put(pair[0], pair[1]);
-            note(data, pair[0], pair[1]);
+            if (path.equals(filename)) {
+                _metaDigest = digest;
+                return;
+            }
+            _digests.put(path, digest);
+            note(md, path, digest);
+        });
+        if (_metaDigest == null) {
+            _metaDigest = "";
         }
 
         // we've reached the end, validate our contents
-        MessageDigest md = getMessageDigest(version);
-        byte[] contents = data.toString().getBytes(UTF_8);
-        String hash = StringUtil.hexlate(md.digest(contents));
+        String hash = StringUtil.hexlate(md.digest());
         if (!hash.equals(_metaDigest)) {
             String err = MessageUtil.tcompose("m.invalid_digest_file", _metaDigest, hash);
             throw new IOException(err);
@@ -197,12 +243,29 @@ public class Digest {
      * error was encountered during the validation process.
      */
     public boolean validateResource(Resource resource, ProgressObserver obs) {
+        return validateResource(resource, null, obs);
+    }
+
+    /**
+     * Like {@link #validateResource(Resource, ProgressObserver)}, but if {@code checksum} is not
+     * null, also computes the checksum of the resource's file (see {@link
+     * Resource#computeChecksum}) into its first element, while reading the file for the digest.
+     */
+    public boolean validateResource(Resource resource, long[] checksum, ProgressObserver obs) {
         try {
-            String chash = resource.computeDigest(VERSION, getMessageDigest(VERSION), obs);
+            // we keep the chunk hashes of an installed file, so that if just some of its chunks
+            // are damaged, the downloader can tell which ones and fetch only those
+            byte[][] chunks = (_version >= 3 && !resource.getLocalNew().exists()) ?
+                resource.computeChunks(checksum, obs) : null;
+            String chash = (chunks != null) ? MerkleDigest.root(chunks) :
+                resource.computeDigest(_version, getMessageDigest(_version), checksum, obs);
             String ehash = _digests.get(resource.getPath());
             if (chash.equals(ehash)) {
+                resource.setDamage(null);
                 return true;
             }
+            resource.setDamage((chunks != null && chunks.length > 1 && ehash != null) ?
+                new MerkleDigest.Damage(chunks, ehash) : null);
             LOGGER.atInfo()
                 .setMessage("Resource failed digest check")
                 .addKeyValue("rsrc", resource)
@@ -219,6 +282,13 @@ public class Digest {
         return false;
     }
 
+    /**
+     * Returns the version of the digest protocol used by this digest.
+     */
+    public int getVersion() {
+        return _version;
+    }
+
     /**
      * Returns the digest of the given {@code resource}.
      */
@@ -226,15 +296,41 @@ public class Digest {
         return _digests.get(resource.getPath());
     }
 
+    /**
+     * Returns the paths of the resources whose expected digest differs between {@code other} and
+     * this digest, including the resources listed by only one of them.
+     */
+    public Set<String> changedPaths(Digest other) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> entry : _digests.entrySet()) {
+            if (!entry.getValue().equals(other._digests.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String path : other._digests.keySet()) {
+            if (!_digests.containsKey(path)) {
+                changed.add(path);
+            }
+        }
+        return changed;
+    }
+
     /**
      * Used by {@link #createDigest} and {@link Digest}.
      */
-    protected static void note(StringBuilder data, String path, String digest) {
-        data.append(path).append(" = ").append(digest).append("\n");
+    protected static void note(MessageDigest md, String path, String digest) {
+        md.update(path.getBytes(UTF_8));
+        md.update(NOTE_SEPARATOR);
+        md.update(digest.getBytes(UTF_8));
+        md.update(NOTE_TERMINATOR);
     }
 
+    protected final int _version;
     protected final HashMap<String, String> _digests = new HashMap<>();
-    protected String _metaDigest = "";
+    protected String _metaDigest;
+
+    protected static final byte[] NOTE_SEPARATOR = " = ".getBytes(UTF_8);
+    protected static final byte[] NOTE_TERMINATOR = "\n".getBytes(UTF_8);
 
     protected static final String FILE_NAME = "digest";
     protected static final String FILE_SUFFIX = ".txt";
@@ -242,6 +242,14 @@ public final class EnvConfig {
             Collections.emptyList());
     }
 
+    /**
+     * Returns a copy of this config which refers to {@code appDir} rather than our app dir, but
+     * otherwise uses the same app id, appbase, certificates and app args.
+     */
+    public EnvConfig withAppDir(File appDir) {
+        return new EnvConfig(appDir, appId, appBase, certs, appArgs);
+    }
+
     private EnvConfig(File appDir, String appId, String appBase, List<Certificate> certs,
                       List<String> appArgs) {
         this.appDir = appDir;
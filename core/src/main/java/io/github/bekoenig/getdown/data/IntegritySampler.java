@@ -0,0 +1,172 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import io.github.bekoenig.getdown.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Chooses the resources that are rehashed on a launch with the {@code sample} revalidation
+ * policy. Resources are visited in a pseudo random order that is fixed per installation, and
+ * each launch continues where the previous one stopped, so every resource is rehashed once per
+ * sweep through the installation, however often it is launched. The order and position of the
+ * sweep, and the hashing throughput observed by the last launch, persist in a small state file.
+ */
+public class IntegritySampler {
+
+    public IntegritySampler(File file) {
+        _file = file;
+        long seed = new Random().nextLong(), cursor = Long.MIN_VALUE;
+        if (file.exists()) {
+            try {
+                String[] fields = new String(Files.readAllBytes(file.toPath()),
+                    StandardCharsets.UTF_8).trim().split(" ", 4);
+                seed = Long.parseLong(fields[0]);
+                cursor = Long.parseLong(fields[1]);
+                _bytesPerMilli = Double.parseDouble(fields[2]);
+                _cursorPath = (fields.length > 3) ? fields[3] : null;
+            } catch (Exception e) {
+                LOGGER.warn("Ignoring invalid integrity sample state in '{}'.", file, e);
+            }
+        }
+        _seed = seed;
+        _cursor = cursor;
+    }
+
+    /**
+     * Selects the resources to rehash on this launch, and advances the sweep past them. At least
+     * one resource is selected, and more as long as their total size stays within {@code
+     * maxBytes} and, once the hashing throughput is known, {@code maxMillis} (if positive).
+     *
+     * @param sizes the sizes of {@code rsrcs}.
+     */
+    public Set<Resource> select(
+        List<Resource> rsrcs, long[] sizes, long maxBytes, long maxMillis) {
+        Set<Resource> sample = new HashSet<>();
+        if (rsrcs.isEmpty()) {
+            return sample;
+        }
+        long budget = maxBytes;
+        if (maxMillis > 0 && _bytesPerMilli > 0) {
+            budget = Math.min(budget, (long) (maxMillis * _bytesPerMilli));
+        }
+
+        // visit the resources in the order of their keys (and paths, should two keys collide),
+        // starting after the current cursor
+        long[] keys = new long[rsrcs.size()];
+        Integer[] order = new Integer[keys.length];
+        for (int ii = 0; ii < keys.length; ii++) {
+            keys[ii] = key(rsrcs.get(ii).getPath());
+            order[ii] = ii;
+        }
+        Arrays.sort(order, (i1, i2) -> keys[i1] != keys[i2] ? Long.compare(keys[i1], keys[i2]) :
+            rsrcs.get(i1).getPath().compareTo(rsrcs.get(i2).getPath()));
+        int start = 0;
+        while (start < order.length &&
+            !isAfterCursor(keys[order[start]], rsrcs.get(order[start]).getPath())) {
+            start++;
+        }
+        if (start == order.length) {
+            start = 0;
+        }
+
+        long total = 0, selected = 0;
+        for (long size : sizes) {
+            total += size;
+        }
+        for (int ii = 0; ii < order.length; ii++) {
+            int index = order[(start + ii) % order.length];
+            if (!sample.isEmpty() && selected + sizes[index] > budget) {
+                break;
+            }
+            sample.add(rsrcs.get(index));
+            selected += sizes[index];
+            _cursor = keys[index];
+            _cursorPath = rsrcs.get(index).getPath();
+            if (start + ii + 1 == order.length) {
+                LOGGER.info("Completed an integrity sweep through all resources.");
+            }
+        }
+        _sampledBytes = selected;
+
+        LOGGER.atInfo()
+            .setMessage("Sampled resources for integrity check")
+            .addKeyValue("count", sample.size())
+            .addKeyValue("size", (selected / 1024) + "k")
+            .addKeyValue("sweepLaunches", selected == 0 ? 1 : (total + selected - 1) / selected)
+            .log();
+        return sample;
+    }
+
+    /**
+     * Records how long it took to hash the selected resources, summed over the threads that
+     * hashed them, which bounds the size of future samples by time, and saves the state of the
+     * sweep.
+     */
+    public void finish(long millis) {
+        if (_sampledBytes > 0 && millis > 0) {
+            _bytesPerMilli = (double) _sampledBytes / millis;
+        }
+        File temp = new File(_file.getPath() + "_new");
+        try {
+            String state = _seed + " " + _cursor + " " + _bytesPerMilli +
+                (_cursorPath == null ? "" : " " + _cursorPath);
+            Files.write(temp.toPath(), state.getBytes(StandardCharsets.UTF_8));
+            if (!FileUtil.renameTo(temp, _file)) {
+                LOGGER.warn("Failed to replace integrity sample state '{}'.", _file);
+            }
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to save integrity sample state '{}'.", _file, ioe);
+        }
+    }
+
+    /**
+     * Returns the position of {@code path} in the order of this installation's sweep.
+     */
+    protected long key(String path) {
+        // a 64 bit FNV-1a hash of the path, as String.hashCode collides far too easily...
+        long hash = 0xCBF29CE484222325L;
+        for (int ii = 0; ii < path.length(); ii++) {
+            hash = (hash ^ path.charAt(ii)) * 0x100000001B3L;
+        }
+        // ...which the SplitMix64 finalizer scatters across the whole sweep
+        long key = _seed ^ hash * 0x9E3779B97F4A7C15L;
+        key = (key ^ (key >>> 30)) * 0xBF58476D1CE4E5B9L;
+        key = (key ^ (key >>> 27)) * 0x94D049BB133111EBL;
+        return key ^ (key >>> 31);
+    }
+
+    /**
+     * Returns true if the resource with the supplied key and path comes after the cursor in the
+     * order of the sweep.
+     */
+    protected boolean isAfterCursor(long key, String path) {
+        if (key != _cursor) {
+            return key > _cursor;
+        }
+        return _cursorPath != null && path.compareTo(_cursorPath) > 0;
+    }
+
+    protected final File _file;
+    protected final long _seed;
+    protected long _cursor;
+    protected String _cursorPath;
+    protected double _bytesPerMilli;
+    protected long _sampledBytes;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IntegritySampler.class);
+}
@@ -0,0 +1,327 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import io.github.bekoenig.getdown.util.ProgressObserver;
+import io.github.bekoenig.getdown.util.StringUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Computes and compares the chunked digests of version 3 of the digest protocol. A file is split
+ * into {@link #CHUNK_SIZE} chunks which are hashed independently (and thus in parallel), and the
+ * chunk hashes are combined into a Merkle tree. The digest of a file is the hex encoded root of
+ * that tree. The digester publishes the chunk hashes of files of more than one chunk next to
+ * them, in a file with the {@link #CHUNKS_SUFFIX} suffix, which a client fetches only to tell
+ * which chunks of a damaged file must be repaired, and checks against the root it expects.
+ *
+ * <p>Chunk hashes are computed as {@code SHA-256(0x00 || chunk)}, inner nodes as {@code
+ * SHA-256(0x01 || left || right)}, and the last node of an odd level is promoted unchanged. An
+ * empty file consists of one empty chunk.
+ */
+public class MerkleDigest {
+
+    /** The size of the chunks into which files are split. */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    /** The suffix of the file which lists the chunk hashes of a file, one per line. */
+    public static final String CHUNKS_SUFFIX = ".chunks";
+
+    /**
+     * Computes a chunked digest from data that is supplied in order, for when a file is read
+     * sequentially for other purposes anyway.
+     */
+    public static class Builder {
+        public Builder() {
+            _md.update(LEAF);
+        }
+
+        /**
+         * Adds the remaining bytes of {@code data} to the digest.
+         */
+        public void update(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                int length = Math.min(data.remaining(), CHUNK_SIZE - _chunkFill);
+                ByteBuffer slice = data.duplicate();
+                ((Buffer) slice).limit(slice.position() + length);
+                _md.update(slice);
+                ((Buffer) data).position(data.position() + length);
+                if ((_chunkFill += length) == CHUNK_SIZE) {
+                    finishChunk();
+                }
+            }
+        }
+
+        /**
+         * Returns the digest of the data supplied so far. The builder must not be used afterwards.
+         */
+        public String build() {
+            if (_chunkFill > 0 || _leaves.isEmpty()) {
+                finishChunk();
+            }
+            return root(getChunks());
+        }
+
+        /**
+         * Returns the chunk hashes of the data supplied, once {@link #build} was called.
+         */
+        public byte[][] getChunks() {
+            return _leaves.toArray(new byte[0][]);
+        }
+
+        protected void finishChunk() {
+            _leaves.add(_md.digest());
+            _md.update(LEAF);
+            _chunkFill = 0;
+        }
+
+        protected final MessageDigest _md = Digest.getMessageDigest(3);
+        protected final List<byte[]> _leaves = new ArrayList<>();
+        protected int _chunkFill;
+    }
+
+    /**
+     * The chunk hashes of a local file which failed validation against an expected digest. Once
+     * the chunk hashes of the expected file are fetched, they tell which chunks of the local file
+     * are damaged.
+     */
+    public static class Damage {
+        public Damage(byte[][] chunks, String expected) {
+            _chunks = chunks;
+            _expected = expected;
+        }
+
+        /**
+         * Returns the chunks in which our local file differs from the file with the supplied
+         * chunk hashes, or null if those hashes do not combine into the expected digest or if
+         * the two files consist of a different number of chunks.
+         */
+        public BitSet damagedChunks(byte[][] expected) {
+            if (expected.length != _chunks.length || !root(expected).equals(_expected)) {
+                return null;
+            }
+            BitSet damaged = new BitSet();
+            for (int ii = 0; ii < _chunks.length; ii++) {
+                if (!Arrays.equals(_chunks[ii], expected[ii])) {
+                    damaged.set(ii);
+                }
+            }
+            return damaged;
+        }
+
+        protected final byte[][] _chunks;
+        protected final String _expected;
+    }
+
+    /**
+     * Computes the chunked digest of the supplied file.
+     */
+    public static String compute(File target, ProgressObserver obs) throws IOException {
+        return root(computeChunks(target, null, obs));
+    }
+
+    /**
+     * Computes the chunk hashes of the supplied file.
+     *
+     * @param checksum if not null, receives the CRC32 checksum of the file in its first element,
+     * which is computed chunk by chunk along with the chunk hashes.
+     */
+    public static byte[][] computeChunks(File target, long[] checksum, ProgressObserver obs)
+        throws IOException {
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            long[] crcs = (checksum == null) ? null : new long[chunks];
+            AtomicLong hashed = new AtomicLong();
+            byte[][] leaves;
+            try {
+                leaves = IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+                    try {
+                        CRC32 crc = (crcs == null) ? null : new CRC32();
+                        byte[] leaf = hashChunk(channel, chunk, crc);
+                        if (crc != null) {
+                            crcs[chunk] = crc.getValue();
+                        }
+                        long length = Math.min(CHUNK_SIZE, size - (long) chunk * CHUNK_SIZE);
+                        long done = hashed.addAndGet(length);
+                        if (obs != null && size > 0) {
+                            synchronized (obs) {
+                                Resource.updateProgress(obs, done, size);
+                            }
+                        }
+                        return leaf;
+                    } catch (IOException ioe) {
+                        throw new UncheckedIOException(ioe);
+                    }
+                }).toArray(byte[][]::new);
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+            if (checksum != null) {
+                long crc = crcs[0];
+                for (int chunk = 1; chunk < chunks; chunk++) {
+                    crc = combineCrc(crc, crcs[chunk],
+                        Math.min(CHUNK_SIZE, size - (long) chunk * CHUNK_SIZE));
+                }
+                checksum[0] = crc;
+            }
+            return leaves;
+        }
+    }
+
+    /**
+     * Returns the digest of a file with the supplied chunk hashes, the root of their Merkle tree.
+     */
+    public static String root(byte[][] leaves) {
+        List<byte[]> level = new ArrayList<>(Arrays.asList(leaves));
+        MessageDigest md = Digest.getMessageDigest(3);
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int ii = 0; ii < level.size(); ii += 2) {
+                if (ii + 1 == level.size()) {
+                    parents.add(level.get(ii));
+                } else {
+                    md.update(NODE);
+                    md.update(level.get(ii));
+                    md.update(level.get(ii + 1));
+                    parents.add(md.digest());
+                }
+            }
+            level = parents;
+        }
+        return StringUtil.hexlate(level.get(0));
+    }
+
+    /**
+     * Formats the supplied chunk hashes for a {@link #CHUNKS_SUFFIX} file.
+     */
+    public static String formatChunks(byte[][] leaves) {
+        StringBuilder buf = new StringBuilder();
+        for (byte[] leaf : leaves) {
+            buf.append(StringUtil.hexlate(leaf)).append('\n');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Parses the contents of a {@link #CHUNKS_SUFFIX} file.
+     *
+     * @return the chunk hashes, or null if {@code data} does not list valid chunk hashes.
+     */
+    public static byte[][] parseChunks(String data) {
+        String[] lines = data.trim().split("\\s+");
+        byte[][] leaves = new byte[lines.length][];
+        for (int ii = 0; ii < lines.length; ii++) {
+            String line = lines[ii];
+            if (line.length() != 2 * HASH_LENGTH) {
+                return null;
+            }
+            leaves[ii] = new byte[HASH_LENGTH];
+            for (int bb = 0; bb < HASH_LENGTH; bb++) {
+                int hi = Character.digit(line.charAt(2 * bb), 16);
+                int lo = Character.digit(line.charAt(2 * bb + 1), 16);
+                if (hi < 0 || lo < 0) {
+                    return null;
+                }
+                leaves[ii][bb] = (byte) (hi << 4 | lo);
+            }
+        }
+        return leaves;
+    }
+
+    protected static byte[] hashChunk(FileChannel channel, int chunk, CRC32 crc)
+        throws IOException {
+        MessageDigest md = Digest.getMessageDigest(3);
+        md.update(LEAF);
+        ByteBuffer buffer = Resource.DIRECT_BUFFER.get();
+        long position = (long) chunk * CHUNK_SIZE, end = position + CHUNK_SIZE;
+        while (position < end) {
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            ((Buffer) buffer).flip();
+            if (crc != null) {
+                crc.update(buffer.duplicate());
+            }
+            md.update(buffer);
+            position += read;
+        }
+        return md.digest();
+    }
+
+    /**
+     * Returns the CRC32 of the concatenation of two blocks of data, given the CRC32 of each and
+     * the length of the second one, as zlib's {@code crc32_combine} does: the CRC of the first
+     * block is advanced over {@code length2} zero bytes by repeatedly squaring the operator that
+     * advances it by one zero bit.
+     */
+    protected static long combineCrc(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32], odd = new long[32];
+        odd[0] = 0xedb88320L;
+        for (int nn = 1; nn < 32; nn++) {
+            odd[nn] = 1L << (nn - 1);
+        }
+        squareGf2(even, odd); // two zero bits
+        squareGf2(odd, even); // four zero bits
+        do {
+            squareGf2(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = timesGf2(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            squareGf2(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = timesGf2(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long timesGf2(long[] matrix, long vector) {
+        long sum = 0;
+        for (int ii = 0; vector != 0; ii++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[ii];
+            }
+        }
+        return sum;
+    }
+
+    private static void squareGf2(long[] square, long[] matrix) {
+        for (int nn = 0; nn < 32; nn++) {
+            square[nn] = timesGf2(matrix, matrix[nn]);
+        }
+    }
+
+    protected static final byte LEAF = 0, NODE = 1;
+
+    /** The length of a chunk hash in bytes. */
+    protected static final int HASH_LENGTH = 32;
+}
@@ -6,18 +6,27 @@
 package io.github.bekoenig.getdown.data;
 
 import io.github.bekoenig.getdown.util.FileUtil;
+import io.github.bekoenig.getdown.util.LaunchUtil;
 import io.github.bekoenig.getdown.util.ProgressObserver;
 import io.github.bekoenig.getdown.util.StringUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -69,8 +78,22 @@ public class Resource implements Comparable<Resource> {
     public static String computeDigest(int version, File target, MessageDigest md,
                                        ProgressObserver obs)
         throws IOException {
+        return computeDigest(version, target, md, null, obs);
+    }
+
+    /**
+     * Computes the digest of the supplied file and, if {@code checksum} is not null, its
+     * checksum (see {@link #computeChecksum}) into the first element of {@code checksum}. The
+     * checksum is fed from the same buffers as the digest, except for zip files, whose digest is
+     * computed from their inflated entries rather than the bytes of the file.
+     *
+     * @param version the version of the digest protocol to use.
+     */
+    public static String computeDigest(int version, File target, MessageDigest md,
+                                       long[] checksum, ProgressObserver obs)
+        throws IOException {
         md.reset();
-        byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+        byte[] buffer = HEAP_BUFFER.get();
         int read;
 
         boolean isZip = isJar(target) || isZip(target); // jar is a zip too
@@ -98,6 +121,9 @@ public class Resource implements Comparable<Resource> {
                     updateProgress(obs, eidx++, entries.size());
                 }
 
+                if (checksum != null) {
+                    checksum[0] = computeChecksum(target, null);
+                }
                 return StringUtil.hexlate(md.digest());
             } catch (ZipException e) {
                 LOGGER.warn("Zip digest computation for {} failed. Falling back to binary mode.",
@@ -106,18 +132,136 @@ public class Resource implements Comparable<Resource> {
             }
         }
 
-        long totalSize = target.length(), position = 0L;
-        try (FileInputStream fin = new FileInputStream(target)) {
-            while ((read = fin.read(buffer)) != -1) {
-                md.update(buffer, 0, read);
-                position += read;
-                updateProgress(obs, position, totalSize);
+        // from version 3 on, plain files are hashed chunk by chunk into a Merkle tree
+        if (version >= 3) {
+            return MerkleDigest.root(MerkleDigest.computeChunks(target, checksum, obs));
+        }
+
+        CRC32 crc = (checksum == null) ? null : new CRC32();
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+            long totalSize = channel.size(), position = 0L;
+            if (totalSize >= MAP_THRESHOLD && !LaunchUtil.isWindows()) {
+                // hash large files straight out of the page cache; not on Windows though, where a
+                // mapped file cannot be replaced until its mapping has been garbage collected
+                while (position < totalSize) {
+                    long length = Math.min(MAP_CHUNK_SIZE, totalSize - position);
+                    ByteBuffer mapped =
+                        channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    if (crc != null) {
+                        crc.update(mapped.duplicate());
+                    }
+                    md.update(mapped);
+                    position += length;
+                    updateProgress(obs, position, totalSize);
+                }
+            } else {
+                // (Buffer casts keep us linkable on Java 8, which lacks the covariant overrides)
+                ByteBuffer dbuffer = DIRECT_BUFFER.get();
+                ((Buffer) dbuffer).clear();
+                while (channel.read(dbuffer) != -1) {
+                    ((Buffer) dbuffer).flip();
+                    position += dbuffer.remaining();
+                    if (crc != null) {
+                        crc.update(dbuffer.duplicate());
+                    }
+                    md.update(dbuffer);
+                    ((Buffer) dbuffer).clear();
+                    updateProgress(obs, position, totalSize);
+                }
             }
         }
 
+        if (crc != null) {
+            checksum[0] = crc.getValue();
+        }
         return StringUtil.hexlate(md.digest());
     }
 
+    /**
+     * Computes the digests of the supplied file for several versions of the digest protocol at
+     * once, reading (and for zip files, inflating) the file just once.
+     *
+     * @return the digests, in the order of {@code versions}.
+     */
+    public static String[] computeDigests(int[] versions, File target, ProgressObserver obs)
+        throws IOException {
+        MessageDigest[] mds = new MessageDigest[versions.length];
+        for (int ii = 0; ii < versions.length; ii++) {
+            mds[ii] = Digest.getMessageDigest(versions[ii]);
+        }
+
+        if (isJar(target) || isZip(target)) {
+            byte[] buffer = HEAP_BUFFER.get();
+            int read;
+            try (ZipFile zip = new ZipFile(target)) {
+                List<? extends ZipEntry> entries = Collections.list(zip.entries());
+                entries.sort(ENTRY_COMP);
+
+                int eidx = 1;
+                for (ZipEntry entry : entries) {
+                    // old versions of the digest code skipped metadata, so we feed the entry only
+                    // to the digests of the versions that include it
+                    boolean meta = entry.getName().startsWith("META-INF");
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        while ((read = in.read(buffer)) != -1) {
+                            for (int ii = 0; ii < versions.length; ii++) {
+                                if (versions[ii] >= 2 || !meta) {
+                                    mds[ii].update(buffer, 0, read);
+                                }
+                            }
+                        }
+                    }
+                    updateProgress(obs, eidx++, entries.size());
+                }
+
+                String[] digests = new String[versions.length];
+                for (int ii = 0; ii < versions.length; ii++) {
+                    digests[ii] = StringUtil.hexlate(mds[ii].digest());
+                }
+                return digests;
+            } catch (ZipException e) {
+                LOGGER.warn("Zip digest computation for {} failed. Falling back to binary mode.",
+                    target, e);
+                for (MessageDigest md : mds) {
+                    md.reset();
+                }
+            }
+        }
+
+        // from version 3 on, plain files are digested into a Merkle tree
+        MerkleDigest.Builder[] merkles = new MerkleDigest.Builder[versions.length];
+        for (int ii = 0; ii < versions.length; ii++) {
+            if (versions[ii] >= 3) {
+                merkles[ii] = new MerkleDigest.Builder();
+            }
+        }
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+            long totalSize = channel.size(), position = 0L;
+            ByteBuffer dbuffer = DIRECT_BUFFER.get();
+            ((Buffer) dbuffer).clear();
+            while (channel.read(dbuffer) != -1) {
+                ((Buffer) dbuffer).flip();
+                position += dbuffer.remaining();
+                for (int ii = 0; ii < versions.length; ii++) {
+                    if (merkles[ii] != null) {
+                        merkles[ii].update(dbuffer.duplicate());
+                    } else {
+                        mds[ii].update(dbuffer.duplicate());
+                    }
+                }
+                ((Buffer) dbuffer).clear();
+                updateProgress(obs, position, totalSize);
+            }
+        }
+
+        String[] digests = new String[versions.length];
+        for (int ii = 0; ii < versions.length; ii++) {
+            digests[ii] = (merkles[ii] != null) ? merkles[ii].build() :
+                StringUtil.hexlate(mds[ii].digest());
+        }
+        return digests;
+    }
+
     /**
      * Returns whether {@code file} is a {@code zip} file.
      */
@@ -134,22 +278,37 @@ public class Resource implements Comparable<Resource> {
         return path.endsWith(".jar") || path.endsWith(".jar_new");
     }
 
+    /**
+     * Resolves the remote URL of a resource from its path.
+     */
+    @FunctionalInterface
+    public interface RemoteResolver {
+        URL resolve(String path) throws MalformedURLException;
+    }
+
     /**
      * Creates a resource with the supplied remote URL and local path.
      */
     public Resource(String path, URL remote, File local, EnumSet<Attr> attrs) {
-        _path = path;
+        this(path, local, attrs, null);
         _remote = remote;
-        _local = local;
-        _localNew = new File(local.toString() + "_new");
-        _marker = new File(_local.getPath() + "v");
+    }
 
-        _attrs = attrs;
-        _isZip = isJar(local) || isZip(local);
-        boolean unpack = attrs.contains(Attr.UNPACK);
-        if (unpack && _isZip) {
-            _unpacked = _local.getParentFile();
+    /**
+     * Creates a resource whose remote URL is resolved by {@code resolver} when it is first
+     * needed. The resolver must be able to resolve the path, as resolution failures are not
+     * reported until then.
+     */
+    public Resource(String path, File local, EnumSet<Attr> attrs, RemoteResolver resolver) {
+        _path = path;
+        _resolver = resolver;
+        _local = local;
+        int bits = 0;
+        for (Attr attr : attrs) {
+            bits |= 1 << attr.ordinal();
         }
+        _attrs = (byte) bits;
+        _isZip = isJar(local) || isZip(local);
     }
 
     /**
@@ -170,14 +329,14 @@ public class Resource implements Comparable<Resource> {
      * Returns the location of the to-be-installed new version of this resource.
      */
     public File getLocalNew() {
-        return _localNew;
+        return new File(_local.getPath() + "_new");
     }
 
     /**
      * Returns the location of the unpacked resource.
      */
     public File getUnpacked() {
-        return _unpacked;
+        return (hasAttr(Attr.UNPACK) && _isZip) ? _local.getParentFile() : null;
     }
 
     /**
@@ -191,28 +350,56 @@ public class Resource implements Comparable<Resource> {
      * Returns the remote location of this resource.
      */
     public URL getRemote() {
-        return _remote;
+        URL remote = _remote;
+        if (remote == null && _resolver != null) {
+            try {
+                _remote = remote = _resolver.resolve(_path);
+            } catch (MalformedURLException mue) {
+                throw new IllegalStateException("Invalid remote URL for '" + _path + "'.", mue);
+            }
+        }
+        return remote;
+    }
+
+    /**
+     * Returns the attributes of this resource.
+     */
+    public EnumSet<Attr> getAttrs() {
+        EnumSet<Attr> attrs = EnumSet.noneOf(Attr.class);
+        for (Attr attr : Attr.values()) {
+            if (hasAttr(attr)) {
+                attrs.add(attr);
+            }
+        }
+        return attrs;
+    }
+
+    /**
+     * Returns true if this resource has the specified attribute.
+     */
+    public boolean hasAttr(Attr attr) {
+        return (_attrs & (1 << attr.ordinal())) != 0;
     }
 
     /**
      * Returns true if this resource should be unpacked as a part of the validation process.
      */
     public boolean shouldUnpack() {
-        return _attrs.contains(Attr.UNPACK) && !SysProps.noUnpack();
+        return hasAttr(Attr.UNPACK) && !SysProps.noUnpack();
     }
 
     /**
      * Returns true if this resource should be pre-downloaded.
      */
     public boolean shouldPredownload() {
-        return _attrs.contains(Attr.PRELOAD);
+        return hasAttr(Attr.PRELOAD);
     }
 
     /**
      * Returns true if this resource is a native lib jar.
      */
     public boolean isNative() {
-        return _attrs.contains(Attr.NATIVE);
+        return hasAttr(Attr.NATIVE);
     }
 
     /**
@@ -223,13 +410,73 @@ public class Resource implements Comparable<Resource> {
      */
     public String computeDigest(int version, MessageDigest md, ProgressObserver obs)
         throws IOException {
-        File file;
+        return computeDigest(version, digestTarget(), md, null, obs);
+    }
+
+    /**
+     * Computes the digest of this resource's underlying file along with its checksum, see {@link
+     * #computeDigest(int, File, MessageDigest, long[], ProgressObserver)}.
+     */
+    public String computeDigest(int version, MessageDigest md, long[] checksum,
+                                ProgressObserver obs)
+        throws IOException {
+        return computeDigest(version, digestTarget(), md, checksum, obs);
+    }
+
+    /**
+     * Computes the hashes of the chunks of this resource's local file, from which its digest is
+     * computed from version 3 of the digest protocol on, see {@link MerkleDigest}.
+     *
+     * @param checksum if not null, receives the checksum of the file in its first element, see
+     * {@link #computeChecksum}.
+     * @return the chunk hashes, or null if this resource is a jar or zip file, whose digest is
+     * computed from its entries instead.
+     */
+    public byte[][] computeChunks(long[] checksum, ProgressObserver obs) throws IOException {
+        return _isZip ? null : MerkleDigest.computeChunks(_local, checksum, obs);
+    }
+
+    /**
+     * Returns the file whose digest is this resource's digest: the downloaded {@code _new} file
+     * if there is one, our local file otherwise.
+     */
+    protected File digestTarget() {
         if (_local.toString().toLowerCase(Locale.ROOT).endsWith(Application.CONFIG_FILE)) {
-            file = _local;
-        } else {
-            file = _localNew.exists() ? _localNew : _local;
+            return _local;
         }
-        return computeDigest(version, file, md, obs);
+        File localNew = getLocalNew();
+        return localNew.exists() ? localNew : _local;
+    }
+
+    /**
+     * Computes the digests of this resource for several versions of the digest protocol at once,
+     * see {@link #computeDigests(int[], File, ProgressObserver)}.
+     */
+    public String[] computeDigests(int[] versions, ProgressObserver obs) throws IOException {
+        return computeDigests(versions, digestTarget(), obs);
+    }
+
+    /**
+     * Records this resource's validation state in the supplied ledger rather than in a marker
+     * file next to the resource.
+     */
+    void setLedger(ValidationLedger ledger) {
+        _ledger = ledger;
+    }
+
+    /**
+     * Returns the chunk hashes of our local file if it failed validation but may be repaired by
+     * fetching just its damaged chunks, or null.
+     */
+    public MerkleDigest.Damage getDamage() {
+        return _damage;
+    }
+
+    /**
+     * Notes the chunk hashes of our local file which failed validation, see {@link MerkleDigest}.
+     */
+    public void setDamage(MerkleDigest.Damage damage) {
+        _damage = damage;
     }
 
     /**
@@ -241,27 +488,242 @@ public class Resource implements Comparable<Resource> {
             clearMarker();
             return false;
         }
-        return _marker.exists();
+        if (_ledger == null) {
+            return getMarker().exists();
+        }
+        try {
+            return readMarker() != null;
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to read marker of '{}'.", _path, ioe);
+            return false;
+        }
     }
 
     /**
      * Creates a "validated" marker file for this resource to indicate
      * that its MD5 hash has been computed and compared with the value in
-     * the digest file.
+     * the digest file. Resources which are listed in the digest file should
+     * be marked with {@link #markAsValid(String)} instead, which also records
+     * their digest.
      *
      * @throws IOException if we fail to create the marker file.
      */
     public void markAsValid()
         throws IOException {
-        _marker.createNewFile();
+        if (_ledger != null) {
+            _ledger.mark(_path, "");
+        } else {
+            getMarker().createNewFile();
+        }
+    }
+
+    /**
+     * Returns true if this resource has a "validated" marker file that was created by {@link
+     * #markAsValid(String)} with the supplied digest, and the size, modification time and file
+     * key of the resource's file have not changed since.
+     */
+    public boolean isMarkedValid(String digest) {
+        if (!_local.exists()) {
+            clearMarker();
+            return false;
+        }
+        try {
+            String marked = readMarker(), stat = stat();
+            if (marked != null && marked.contains(CHECKSUM_PREFIX)) {
+                marked = marked.substring(0, marked.lastIndexOf(' '));
+            }
+            return marked != null && stat != null && marked.equals(stamp(stat, digest));
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to read marker of '{}'.", _path, ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Creates a "validated" marker file for this resource which records the supplied digest
+     * along with the current size, modification time and file key of the resource's file. Use
+     * {@link #markAsValid(String, String)} if the file might have changed since it was hashed.
+     *
+     * @throws IOException if we fail to create the marker file.
+     */
+    public void markAsValid(String digest)
+        throws IOException {
+        markAsValid(stat(), digest);
+    }
+
+    /**
+     * Creates a "validated" marker file for this resource which records the supplied digest
+     * along with {@code stat}, which {@link #stat} returned before the file was hashed.
+     *
+     * @throws IOException if we fail to create the marker file.
+     */
+    public void markAsValid(String stat, String digest)
+        throws IOException {
+        writeMarker(stamp(stat, digest));
+    }
+
+    /**
+     * Like {@link #markAsValid(String)}, but also records the supplied checksum of the
+     * resource's file, see {@link #computeChecksum}.
+     *
+     * @throws IOException if we fail to create the marker file.
+     */
+    public void markAsValid(String digest, long checksum)
+        throws IOException {
+        markAsValid(stat(), digest, checksum);
+    }
+
+    /**
+     * Like {@link #markAsValid(String, String)}, but also records the supplied checksum of the
+     * resource's file, see {@link #computeChecksum}.
+     *
+     * @throws IOException if we fail to create the marker file.
+     */
+    public void markAsValid(String stat, String digest, long checksum)
+        throws IOException {
+        writeMarker(stamp(stat, digest) + " " + CHECKSUM_PREFIX + Long.toHexString(checksum));
+    }
+
+    /**
+     * Returns the checksum recorded by {@link #markAsValid(String, long)} when this resource was
+     * last validated against {@code digest}, or null if there is none.
+     */
+    public Long getMarkedChecksum(String digest) {
+        try {
+            String marked = (digest == null) ? null : readMarker();
+            int cidx = (marked == null) ? -1 : marked.lastIndexOf(" " + CHECKSUM_PREFIX);
+            if (cidx < 0 || !marked.substring(0, cidx).endsWith(" " + digest)) {
+                return null;
+            }
+            return Long.parseLong(marked.substring(cidx + CHECKSUM_PREFIX.length() + 1), 16);
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.warn("Failed to read marker of '{}'.", _path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Computes the CRC32 checksum of this resource's local file. Unlike {@link #computeDigest},
+     * this only guards against local corruption, so it must never be trusted for content that
+     * was fetched from the network.
+     *
+     * <p>This is a plain CRC32 rather than CRC32C or a hash of the xxHash class on purpose: we
+     * target Java 8, which lacks {@code java.util.zip.CRC32C} (added in Java 9), and CRC32 is
+     * just as intrinsified and more than fast enough to detect accidental corruption. Changing
+     * it would invalidate the checksums recorded in existing markers, see {@link
+     * #CHECKSUM_PREFIX}.
+     */
+    public long computeChecksum(ProgressObserver obs) throws IOException {
+        return computeChecksum(_local, obs);
+    }
+
+    /**
+     * Computes the CRC32 checksum of the supplied file.
+     */
+    protected static long computeChecksum(File target, ProgressObserver obs) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+            long totalSize = channel.size(), position = 0L;
+            ByteBuffer dbuffer = DIRECT_BUFFER.get();
+            ((Buffer) dbuffer).clear();
+            while (channel.read(dbuffer) != -1) {
+                ((Buffer) dbuffer).flip();
+                position += dbuffer.remaining();
+                crc.update(dbuffer);
+                ((Buffer) dbuffer).clear();
+                updateProgress(obs, position, totalSize);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the stat tuple of our file, its size, modification time and file key, which must be
+     * obtained before the file is hashed and passed to {@link #markAsValid(String, String)}.
+     *
+     * @return the stat tuple, or null if the file was modified so recently that a further
+     * modification might not change its stat tuple.
+     */
+    public String stat() throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(_local.toPath(), BasicFileAttributes.class);
+        long mtime = attrs.lastModifiedTime().toMillis();
+        if (System.currentTimeMillis() - mtime < RACY_MILLIS) {
+            return null;
+        }
+        return attrs.size() + " " + mtime + " " + attrs.fileKey();
+    }
+
+    /**
+     * Returns {@code stat} followed by {@code digest}. A null stat is recorded as one that never
+     * matches, so the resource is rehashed the next time its stat tuple is checked.
+     */
+    protected static String stamp(String stat, String digest) {
+        return (stat == null ? RACY_STAT : stat) + " " + digest;
+    }
+
+    /**
+     * Records {@code marked} as the contents of our marker.
+     */
+    protected void writeMarker(String marked) throws IOException {
+        if (_ledger != null) {
+            _ledger.mark(_path, marked);
+        } else {
+            Files.write(getMarker().toPath(), marked.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Returns the location of the old style marker file of this resource.
+     */
+    protected File getMarker() {
+        return new File(_local.getPath() + "v");
+    }
+
+    /**
+     * Returns the contents of our marker, or null if we have none. While our ledger is migrating,
+     * an old marker file is moved into the ledger.
+     */
+    protected String readMarker() throws IOException {
+        String marked = (_ledger == null) ? null : _ledger.get(_path);
+        File marker = getMarker();
+        if (marked == null && (_ledger == null || _ledger.isMigrating()) && marker.exists()) {
+            marked = new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim();
+            if (_ledger != null) {
+                _ledger.mark(_path, marked);
+                FileUtil.deleteHarder(marker);
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Deletes the old style marker file of this resource, once our ledger no longer migrates
+     * them.
+     */
+    void deleteLegacyMarker() {
+        File marker = getMarker();
+        if (marker.exists() && !FileUtil.deleteHarder(marker)) {
+            LOGGER.warn("Failed to erase marker file '{}'.", marker);
+        }
     }
 
     /**
      * Removes any "validated" marker file associated with this resource.
      */
     public void clearMarker() {
-        if (_marker.exists() && !FileUtil.deleteHarder(_marker)) {
-            LOGGER.warn("Failed to erase marker file '{}'.", _marker);
+        if (_ledger != null) {
+            try {
+                _ledger.clear(_path);
+            } catch (IOException ioe) {
+                LOGGER.warn("Failed to clear marker of '{}'.", _path, ioe);
+            }
+            if (!_ledger.isMigrating()) {
+                return;
+            }
+        }
+        File marker = getMarker();
+        if (marker.exists() && !FileUtil.deleteHarder(marker)) {
+            LOGGER.warn("Failed to erase marker file '{}'.", marker);
         }
     }
 
@@ -291,7 +753,7 @@ public class Resource implements Comparable<Resource> {
             throw new IOException("Requested to unpack non-jar file '" + _local + "'.");
         }
         try (ZipFile jar = new ZipFile(_local)) {
-            FileUtil.unpackJar(jar, _unpacked, _attrs.contains(Attr.CLEAN));
+            FileUtil.unpackJar(jar, getUnpacked(), hasAttr(Attr.CLEAN));
         }
     }
 
@@ -303,7 +765,7 @@ public class Resource implements Comparable<Resource> {
         if (shouldUnpack()) {
             unpack();
         }
-        if (_attrs.contains(Attr.EXEC)) {
+        if (hasAttr(Attr.EXEC)) {
             FileUtil.makeExecutable(_local);
         }
     }
@@ -353,18 +815,39 @@ public class Resource implements Comparable<Resource> {
     }
 
     protected final String _path;
-    protected final URL _remote;
+    protected final RemoteResolver _resolver;
+    protected volatile URL _remote;
     protected final File _local;
-    protected final File _localNew;
-    protected final File _marker;
-    protected File _unpacked;
-    protected final EnumSet<Attr> _attrs;
+    protected final byte _attrs;
     protected final boolean _isZip;
+    protected ValidationLedger _ledger;
+    protected volatile MerkleDigest.Damage _damage;
 
     /**
      * Used to sort the entries in a jar file.
      */
     protected static final Comparator<ZipEntry> ENTRY_COMP = Comparator.comparing(ZipEntry::getName);
 
-    protected static final int DIGEST_BUFFER_SIZE = 5 * 1025;
+    protected static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    /** Files at least this large are memory mapped for hashing. */
+    protected static final long MAP_THRESHOLD = 1024 * 1024;
+
+    /** The largest region of a file that we map at once. */
+    protected static final long MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /** Precedes the checksum recorded in a marker by {@link #markAsValid(String, long)}. */
+    protected static final String CHECKSUM_PREFIX = "crc32:";
+
+    /** Files modified less than this many milliseconds ago have no trustworthy stat tuple. */
+    public static final long RACY_MILLIS = 2000L;
+
+    /** Recorded in place of a stat tuple that we don't trust. */
+    protected static final String RACY_STAT = "-";
+
+    /** Per-thread buffers for hashing, which spares us allocating one for every resource. */
+    protected static final ThreadLocal<byte[]> HEAP_BUFFER =
+        ThreadLocal.withInitial(() -> new byte[DIGEST_BUFFER_SIZE]);
+    protected static final ThreadLocal<ByteBuffer> DIRECT_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE));
 }
@@ -0,0 +1,141 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches the files of an application's resources and invalidates the validation marker of
+ * every resource whose file is modified, deleted or replaced, so that the next launch rehashes
+ * exactly those resources and can trust the markers of the rest. The watcher is meant to run as
+ * long as the application itself, either in the launched application (see {@link #watch}) or in
+ * a resident helper process; changes made while no watcher runs are not noticed.
+ */
+public class ResourceWatcher implements Closeable {
+
+    /**
+     * Starts watching the active resources of the application installed in {@code appdir}.
+     */
+    public static ResourceWatcher watch(File appdir) throws IOException {
+        Application app = new Application(new EnvConfig(appdir));
+        app.init(true);
+        ResourceWatcher watcher = new ResourceWatcher(
+            app.getValidationLedger(), app.getAllActiveResources());
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * Creates a watcher for the supplied resources, whose markers are kept in {@code ledger}.
+     * The watcher does nothing until it is {@link #start}ed.
+     */
+    public ResourceWatcher(ValidationLedger ledger, Collection<Resource> rsrcs)
+        throws IOException {
+        _ledger = ledger;
+        _service = FileSystems.getDefault().newWatchService();
+        // a watch service only reports changes to the immediate children of a directory, so we
+        // register every directory that contains resources
+        Map<Path, Map<Path, Resource>> dirs = new HashMap<>();
+        for (Resource rsrc : rsrcs) {
+            Path local = rsrc.getLocal().toPath().toAbsolutePath();
+            dirs.computeIfAbsent(local.getParent(), dir -> new HashMap<>())
+                .put(local.getFileName(), rsrc);
+        }
+        for (Map.Entry<Path, Map<Path, Resource>> entry : dirs.entrySet()) {
+            if (!entry.getKey().toFile().isDirectory()) {
+                continue; // resources without a directory aren't marked valid anyway
+            }
+            WatchKey key = entry.getKey().register(_service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            _watched.put(key, entry.getValue());
+        }
+    }
+
+    /**
+     * Starts processing file changes on a daemon thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "Getdown resource watcher");
+        thread.setDaemon(true);
+        thread.start();
+        LOGGER.atInfo()
+            .setMessage("Watching resources")
+            .addKeyValue("dirs", _watched.size())
+            .log();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _service.close();
+    }
+
+    protected void run() {
+        try {
+            while (true) {
+                WatchKey key = _service.take();
+                Map<Path, Resource> rsrcs = _watched.get(key);
+                // a single write often yields several events, we invalidate each resource once
+                Set<Resource> changed = new HashSet<>();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // we missed some events, so we can no longer vouch for any file here
+                        changed.addAll(rsrcs.values());
+                    } else {
+                        Resource rsrc = rsrcs.get((Path) event.context());
+                        if (rsrc != null) {
+                            changed.add(rsrc);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    // the directory is gone, and with it all of its resources
+                    changed.addAll(rsrcs.values());
+                    _watched.remove(key);
+                }
+                changed.forEach(this::invalidate);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // we've been closed
+        }
+    }
+
+    protected void invalidate(Resource rsrc) {
+        try {
+            if (!_ledger.invalidate(rsrc.getPath())) {
+                rsrc.clearMarker();
+            }
+            LOGGER.atInfo()
+                .setMessage("Invalidated changed resource")
+                .addKeyValue("rsrc", rsrc)
+                .log();
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to invalidate '{}'.", rsrc, ioe);
+        }
+    }
+
+    protected final ValidationLedger _ledger;
+    protected final WatchService _service;
+    protected final Map<WatchKey, Map<Path, Resource>> _watched = new HashMap<>();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceWatcher.class);
+}
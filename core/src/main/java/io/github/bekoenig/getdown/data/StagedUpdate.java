@@ -0,0 +1,426 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import io.github.bekoenig.getdown.net.Downloader;
+import io.github.bekoenig.getdown.tools.Patcher;
+import io.github.bekoenig.getdown.util.Config;
+import io.github.bekoenig.getdown.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Prepares the next version of an application in a staging directory while the current version
+ * runs, and swaps it into place the next time Getdown starts.
+ *
+ * <p>Staging fetches the control files and patches of the target version into the staging
+ * directory, applies the patches to the live application writing their results into the staging
+ * directory and downloads whatever is still missing or invalid. Only once everything validates
+ * against the new digest is the ready marker written. Activation turns the ready marker into a
+ * journal, moves the staged files over the live ones and moves the control files last, so that an
+ * interrupted activation is simply completed on the next start.
+ */
+public class StagedUpdate {
+    /** The directory, relative to the app dir, into which updates are staged. */
+    public static final String STAGING_DIR = "staged";
+
+    public StagedUpdate(Application app) {
+        _app = app;
+        _stagedir = app.getLocalPath(STAGING_DIR);
+    }
+
+    /**
+     * Stages the latest version of the application, unless it is not newer than the running
+     * version or has been staged already. This is slow, it should be called once the application
+     * has been launched, and without holding the application's update lock: the lock on the
+     * staging directory keeps {@link #activate} from moving an incomplete staging into place.
+     *
+     * @return true if a newer version is staged and ready to be activated.
+     */
+    public boolean stage() throws IOException {
+        if (!_app.stageUpdates()) {
+            return false;
+        }
+        long target = Application.parseLatestVersion(_app.conn.fetch(_app._latest));
+
+        FileChannel lock = lock();
+        if (lock == null) {
+            LOGGER.info("Staging directory is in use, not staging.");
+            return false;
+        }
+        boolean discard = false;
+        try {
+            if (target <= _app.getVersion()) {
+                // nothing to stage, clear out whatever an earlier staging may have left behind
+                discard = true;
+                return false;
+            }
+            File ready = new File(_stagedir, READY_FILE);
+            if (ready.exists() && readManifest(ready, null, null) == target) {
+                return true;
+            }
+            FileUtil.deleteHarder(ready);
+            LOGGER.atInfo()
+                .setMessage("Staging update")
+                .addKeyValue("cvers", _app.getVersion())
+                .addKeyValue("tvers", target)
+                .log();
+
+            // bootstrap the staged app with our config, it knows which patches lead to the target
+            FileUtil.copy(_app.getLocalPath(Application.CONFIG_FILE),
+                new File(_stagedir, Application.CONFIG_FILE));
+            Application staged = createStagedApp();
+            staged._targetVersion = target;
+            List<Resource> patches = new ArrayList<>();
+            Resource patch = staged.getPatchResource(null);
+            if (patch != null) {
+                patches.add(patch);
+                for (Application.AuxGroup aux : staged.getAuxGroups()) {
+                    if (staged.isAuxGroupActive(aux.name)) {
+                        patch = staged.getPatchResource(aux.name);
+                        if (patch != null) {
+                            patches.add(patch);
+                        }
+                    }
+                }
+            }
+
+            // now fetch the control files of the target version, verifying their signature, after
+            // dropping any digests an earlier staging of another version left behind
+            for (int dvers = Digest.VERSION; dvers <= Digest.MAX_VERSION; dvers++) {
+                File stale = new File(_stagedir, Digest.digestFile(dvers));
+                if (stale.exists()) {
+                    FileUtil.deleteHarder(stale);
+                }
+            }
+            staged.updateMetadata();
+            staged = createStagedApp();
+            if (staged.getVersion() != target) {
+                throw new IOException("Failed to fetch metadata for version " + target);
+            }
+            Digest digest = new Digest(
+                _stagedir, staged.getDigestVersion(), staged._strictComments);
+            if (!digest.validateResource(staged.getConfigResource(), null)) {
+                throw new IOException("Staged config does not match its digest");
+            }
+
+            // apply the patches to the live app, writing the patched files into the staging dir
+            download(patches, staged.maxConcurrentDownloads());
+            Patcher patcher = new Patcher();
+            for (Resource prsrc : patches) {
+                try {
+                    // if this patch file failed to download, skip it
+                    if (!prsrc.getLocalNew().exists()) continue;
+                    prsrc.install(false);
+                    patcher.patch(_app.getAppDir(), _stagedir, prsrc.getLocal(), null);
+                } catch (Exception e) {
+                    LOGGER.atWarn()
+                        .setMessage("Failed to apply patch")
+                        .addKeyValue("prsrc", prsrc)
+                        .setCause(e)
+                        .log();
+                }
+                FileUtil.deleteHarder(prsrc.getLocal());
+            }
+
+            // check the result against the new digest, whatever is missing or invalid and not
+            // unchanged from the live app is downloaded afresh; the files which the patcher
+            // verified against that digest already are not hashed again
+            Map<String, String[]> verified = (patcher.getDigestVersion() == digest.getVersion()) ?
+                patcher.getVerified() : Collections.emptyMap();
+            List<Resource> toDownload = new ArrayList<>();
+            for (Resource rsrc : staged.getAllActiveResources()) {
+                if (rsrc.getLocal().exists()) {
+                    String[] sd = verified.get(rsrc.getPath());
+                    if (sd != null && sd[1].equals(digest.getDigest(rsrc))) {
+                        continue;
+                    }
+                    if (!digest.validateResource(rsrc, null)) {
+                        FileUtil.deleteHarder(rsrc.getLocal());
+                        toDownload.add(rsrc);
+                    }
+                } else if (!isUnchanged(rsrc, digest, _app.getActiveResource(rsrc.getPath()))) {
+                    toDownload.add(rsrc);
+                }
+            }
+            download(toDownload, staged.maxConcurrentDownloads());
+            for (Resource rsrc : toDownload) {
+                // we don't install() as that would unpack the resource into the staging dir
+                if (!FileUtil.renameTo(rsrc.getLocalNew(), rsrc.getLocal()) ||
+                    !digest.validateResource(rsrc, null)) {
+                    throw new IOException("Failed to stage " + rsrc);
+                }
+            }
+
+            // finally note that the staged version is complete, and which digests it comes with
+            List<Integer> digests = new ArrayList<>();
+            for (int dvers = Digest.VERSION; dvers <= Digest.MAX_VERSION; dvers++) {
+                if (new File(_stagedir, Digest.digestFile(dvers)).exists()) {
+                    digests.add(dvers);
+                }
+            }
+            File temp = new File(_stagedir, READY_FILE + "_new");
+            writeManifest(temp, target, digests, patcher.getDeferredDeletes());
+            if (!FileUtil.renameTo(temp, ready)) {
+                throw new IOException("Failed to rename(" + temp + ", " + ready + ")");
+            }
+            LOGGER.atInfo()
+                .setMessage("Staged update")
+                .addKeyValue("tvers", target)
+                .addKeyValue("patched", patches.size())
+                .addKeyValue("downloaded", toDownload.size())
+                .log();
+            return true;
+
+        } finally {
+            lock.close();
+            if (discard) {
+                FileUtil.deleteDirHarder(_stagedir);
+            }
+        }
+    }
+
+    /**
+     * Moves a completely staged update into place, or completes the activation of one that was
+     * interrupted. The caller must hold the application's update lock and should reinitialize
+     * the application if an update was activated.
+     *
+     * @return true if a staged update was activated.
+     */
+    public boolean activate() throws IOException {
+        if (!_stagedir.exists()) {
+            return false;
+        }
+        FileChannel lock = lock();
+        if (lock == null) {
+            LOGGER.info("Staging directory is in use, not activating.");
+            return false;
+        }
+        boolean discard = false;
+        try {
+            File journal = new File(_stagedir, JOURNAL_FILE);
+            if (!journal.exists()) {
+                File ready = new File(_stagedir, READY_FILE);
+                // if staging never completed, it will be resumed after our next launch
+                if (!ready.exists()) {
+                    return false;
+                }
+                if (!FileUtil.renameTo(ready, journal)) {
+                    throw new IOException("Failed to rename(" + ready + ", " + journal + ")");
+                }
+            }
+
+            // the config is moved last, so if we already run the staged version (or a newer one
+            // which was installed the usual way) there's nothing left to do
+            List<String> deletes = new ArrayList<>();
+            List<Integer> digests = new ArrayList<>();
+            long version = readManifest(journal, deletes, digests);
+            if (version <= _app.getVersion()) {
+                discard = true;
+                return false;
+            }
+            LOGGER.atInfo()
+                .setMessage("Activating staged update")
+                .addKeyValue("cvers", _app.getVersion())
+                .addKeyValue("tvers", version)
+                .log();
+
+            Application staged = createStagedApp();
+            for (Resource rsrc : staged.getAllActiveResources()) {
+                if (rsrc.getLocal().exists()) {
+                    // the moved file is validated (and unpacked) in its new home by the caller
+                    Resource target = _app.createLocalResource(rsrc.getPath(), Resource.NORMAL);
+                    move(rsrc.getLocal(), target.getLocal());
+                    target.clearMarker();
+                }
+            }
+            for (String path : deletes) {
+                _app.createLocalResource(path, Resource.NORMAL).erase();
+            }
+            // the staged version may use other digest versions than ours, move those it comes
+            // with and delete the rest, which would otherwise describe our old version
+            for (int dvers = Digest.VERSION; dvers <= Digest.MAX_VERSION; dvers++) {
+                File live = _app.getLocalPath(Digest.digestFile(dvers));
+                if (digests.contains(dvers)) {
+                    move(new File(_stagedir, Digest.digestFile(dvers)), live);
+                } else if (live.exists()) {
+                    FileUtil.deleteHarder(live);
+                }
+            }
+            move(new File(_stagedir, Application.CONFIG_FILE),
+                _app.getLocalPath(Application.CONFIG_FILE));
+
+            discard = true;
+            return true;
+
+        } finally {
+            lock.close();
+            if (discard) {
+                FileUtil.deleteDirHarder(_stagedir);
+            }
+        }
+    }
+
+    /**
+     * Creates and initializes an application which lives in our staging directory.
+     */
+    protected Application createStagedApp() throws IOException {
+        Application staged = new Application(_app._envc.withAppDir(_stagedir));
+        staged.conn = _app.conn;
+        staged.init(true);
+        // aux groups are activated by token files in the live app dir
+        for (Application.AuxGroup aux : staged.getAuxGroups()) {
+            staged.setAuxGroupActive(aux.name, _app.isAuxGroupActive(aux.name));
+        }
+        return staged;
+    }
+
+    /**
+     * Returns true if the live copy of the supplied staged resource matches its new digest.
+     */
+    protected boolean isUnchanged(Resource rsrc, Digest digest, Resource liveRsrc) {
+        String expect = digest.getDigest(rsrc);
+        if (expect == null) {
+            return false;
+        }
+        // if the live resource is valid and its digest did not change, we need not hash it
+        if (liveRsrc != null && _app._digest != null && liveRsrc.isMarkedValid() &&
+            expect.equals(_app.getDigest(liveRsrc))) {
+            return true;
+        }
+        File file = _app.getLocalPath(rsrc.getPath());
+        try {
+            return file.exists() && expect.equals(Resource.computeDigest(
+                digest.getVersion(), file, Digest.getMessageDigest(digest.getVersion()), null));
+        } catch (IOException ioe) {
+            LOGGER.warn("Failed to compute digest of {}", file, ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Downloads the supplied resources into their {@code _new} files.
+     */
+    protected void download(Collection<Resource> resources, int maxConcurrent) throws IOException {
+        if (resources.isEmpty()) {
+            return;
+        }
+        List<Resource> failed = Collections.synchronizedList(new ArrayList<>());
+        Downloader dl = new Downloader(_app.conn) {
+            @Override
+            protected void downloadFailed(Resource rsrc, Exception e) {
+                LOGGER.atWarn()
+                    .setMessage("Staged download failed")
+                    .addKeyValue("rsrc", rsrc)
+                    .setCause(e)
+                    .log();
+                failed.add(rsrc);
+            }
+        };
+        dl.download(resources, maxConcurrent);
+        if (!failed.isEmpty()) {
+            throw new IOException("Failed to download " + failed);
+        }
+    }
+
+    /**
+     * Acquires the lock on our staging directory, creating it if needed.
+     *
+     * @return the locked channel, which releases the lock when closed, or null if someone else
+     * holds the lock.
+     */
+    protected FileChannel lock() throws IOException {
+        if (!_stagedir.exists() && !_stagedir.mkdirs()) {
+            throw new IOException("Failed to create " + _stagedir);
+        }
+        FileChannel channel = FileChannel.open(new File(_stagedir, LOCK_FILE).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return channel;
+            }
+        } catch (OverlappingFileLockException e) {
+            // someone in this JVM holds the lock
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Moves {@code source} over {@code target}, creating the target's parent directory if needed.
+     * Missing sources are ignored, they were moved by an earlier, interrupted activation.
+     */
+    protected static void move(File source, File target) throws IOException {
+        if (!source.exists()) {
+            return;
+        }
+        File parent = target.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            LOGGER.warn("Failed to create parent for '{}'.", target);
+        }
+        if (!FileUtil.renameTo(source, target)) {
+            throw new IOException("Failed to rename(" + source + ", " + target + ")");
+        }
+    }
+
+    /**
+     * Writes a ready marker or journal noting the staged version, its digest versions and the
+     * paths to delete.
+     */
+    protected static void writeManifest(File file, long version, List<Integer> digests,
+                                        List<String> deletes) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("version = " + version);
+            for (int dvers : digests) {
+                out.println("digest = " + dvers);
+            }
+            for (String path : deletes) {
+                out.println("delete = " + path);
+            }
+        }
+    }
+
+    /**
+     * Reads a ready marker or journal.
+     *
+     * @param deletes if non-null, the paths to delete are added to this list.
+     * @param digests if non-null, the staged digest versions are added to this list.
+     * @return the staged version or -1 if the file does not note one.
+     */
+    protected static long readManifest(File file, List<String> deletes, List<Integer> digests)
+        throws IOException {
+        long version = -1;
+        for (String[] pair : Config.parsePairs(file, Config.createOpts(false))) {
+            if ("version".equals(pair[0])) {
+                version = Long.parseLong(pair[1]);
+            } else if ("delete".equals(pair[0]) && deletes != null) {
+                deletes.add(pair[1]);
+            } else if ("digest".equals(pair[0]) && digests != null) {
+                digests.add(Integer.parseInt(pair[1]));
+            }
+        }
+        return version;
+    }
+
+    protected final Application _app;
+    protected final File _stagedir;
+
+    protected static final String READY_FILE = "ready.txt";
+    protected static final String JOURNAL_FILE = "activating.txt";
+    protected static final String LOCK_FILE = "staging.lock";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StagedUpdate.class);
+}
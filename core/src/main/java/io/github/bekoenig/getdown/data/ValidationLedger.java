@@ -0,0 +1,304 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which resources of an application have been validated, in a single append-only file
+ * rather than one marker file per resource. Each record maps a resource path to a stamp, which
+ * holds the digest the resource was validated against and usually the stat tuple of its file
+ * (see {@link Resource#markAsValid}). The ledger is loaded into memory on first use, superseded
+ * records are compacted away when loading, and clearing all records merely truncates the file.
+ *
+ * <p>Several processes may use the same ledger, a {@link ResourceWatcher} for instance records
+ * invalidations while a launcher validates resources. Every write to the ledger file therefore
+ * holds a lock on it, and compaction rereads and rewrites the file in place while holding that
+ * lock, so that it never loses a record another process appended.
+ *
+ * <p>Until a verification pass completed with this ledger, the ledger is <em>migrating</em>:
+ * resources then move the contents of their old marker files into the ledger as they are
+ * checked, see {@link Application#verifyResources}.
+ */
+public class ValidationLedger implements Closeable {
+
+    public ValidationLedger(File file) {
+        _file = file;
+    }
+
+    /**
+     * Returns the stamp recorded for the resource at {@code path}, or null if it is not marked
+     * as validated.
+     */
+    public synchronized String get(String path) {
+        load();
+        return _stamps.get(path);
+    }
+
+    /**
+     * Returns true if old marker files should be migrated into this ledger.
+     */
+    public synchronized boolean isMigrating() {
+        load();
+        return _migrating;
+    }
+
+    /**
+     * Notes that the old marker files have been migrated, which their owners must delete.
+     */
+    public synchronized void finishMigration() throws IOException {
+        load();
+        if (_migrating) {
+            _migrating = false;
+            append(MIGRATED + "\n");
+        }
+    }
+
+    /**
+     * Records the resource at {@code path} as validated with the supplied stamp.
+     */
+    public synchronized void mark(String path, String stamp) throws IOException {
+        load();
+        if (!stamp.equals(_stamps.put(path, stamp))) {
+            append("+\t" + path + "\t" + stamp + "\n");
+        }
+    }
+
+    /**
+     * Removes the record of the resource at {@code path}, if any.
+     */
+    public synchronized void clear(String path) throws IOException {
+        load();
+        if (_stamps.remove(path) != null) {
+            append("-\t" + path + "\n");
+        }
+    }
+
+    /**
+     * Records that the resource at {@code path} is no longer valid, whether or not this ledger
+     * knows it as validated. Unlike {@link #clear}, this may be called by another process than
+     * the one which validates resources, as the ledger file is reopened for every such record.
+     *
+     * @return false if there is no ledger file yet, so that the resource's old marker file (if
+     * any) must be removed instead.
+     */
+    public synchronized boolean invalidate(String path) throws IOException {
+        if (!_file.exists()) {
+            return false;
+        }
+        if (_stamps != null) {
+            _stamps.remove(path);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(_file, "rw")) {
+            append(file.getChannel(), "-\t" + path + "\n");
+        }
+        return true;
+    }
+
+    /**
+     * Removes all records. Old marker files are no longer migrated after this call.
+     */
+    public synchronized void clearAll() throws IOException {
+        load();
+        _stamps.clear();
+        _migrating = false;
+        FileChannel channel = open();
+        synchronized (monitor()) {
+            FileLock lock = channel.lock();
+            try {
+                channel.truncate(0);
+                write(channel, MIGRATED + "\n", 0);
+            } finally {
+                lock.release();
+            }
+        }
+        _records = 1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (_channel != null) {
+            _channel.close();
+            _channel = null;
+        }
+    }
+
+    protected void load() {
+        if (_stamps != null) {
+            return;
+        }
+        _stamps = new HashMap<>();
+        _migrating = true;
+        if (!_file.exists()) {
+            return;
+        }
+        try {
+            FileChannel channel = open();
+            synchronized (monitor()) {
+                FileLock lock = channel.lock();
+                try {
+                    String data = read(channel);
+                    // anything after the last newline is a record torn by a crash, which we
+                    // ignore; it must not precede the records we append, so we rewrite the
+                    // ledger, as we do if it consists mostly of superseded records
+                    if (parse(data) < data.length() || shouldCompact()) {
+                        compact(channel);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException ioe) {
+            // treat an unreadable ledger as empty, which just means revalidating everything
+            LOGGER.warn("Failed to read validation ledger '{}'.", _file, ioe);
+            _stamps.clear();
+        }
+    }
+
+    /**
+     * Parses the records in {@code data} into our in-memory state.
+     *
+     * @return the length of the data up to the end of the last complete record.
+     */
+    protected int parse(String data) {
+        _stamps.clear();
+        _migrating = true;
+        _records = 0;
+        int end = data.lastIndexOf('\n') + 1;
+        for (String record : data.substring(0, end).split("\n")) {
+            String[] fields = record.split("\t", 3);
+            if (fields.length == 3 && fields[0].equals("+")) {
+                _stamps.put(fields[1], fields[2]);
+            } else if (fields.length == 2 && fields[0].equals("-")) {
+                _stamps.remove(fields[1]);
+            } else if (record.equals(MIGRATED)) {
+                _migrating = false;
+            } else if (!record.isEmpty()) {
+                LOGGER.warn("Ignoring invalid validation ledger record '{}'.", record);
+            }
+            _records++;
+        }
+        return end;
+    }
+
+    /**
+     * Returns true if the ledger consists mostly of superseded records.
+     */
+    protected boolean shouldCompact() {
+        return _records > COMPACT_MIN_RECORDS && _records > 2 * _stamps.size();
+    }
+
+    /**
+     * Rewrites the ledger file to contain only the current records. The caller must hold the
+     * lock on the ledger file and must have read it while holding that lock. Should we crash
+     * while rewriting, the ledger merely loses some of its records, which means revalidating
+     * their resources.
+     */
+    protected void compact(FileChannel channel) throws IOException {
+        StringBuilder data = new StringBuilder();
+        if (!_migrating) {
+            data.append(MIGRATED).append('\n');
+        }
+        for (Map.Entry<String, String> entry : _stamps.entrySet()) {
+            data.append("+\t").append(entry.getKey()).append('\t').append(entry.getValue())
+                .append('\n');
+        }
+        channel.truncate(0);
+        write(channel, data.toString(), 0);
+        _records = _stamps.size();
+    }
+
+    protected void append(String record) throws IOException {
+        append(open(), record);
+        _records++;
+    }
+
+    /**
+     * Appends {@code record} to the ledger file, holding the lock on it. If a crash tore the
+     * last record in the file, it is terminated first, lest it swallow our record.
+     */
+    protected void append(FileChannel channel, String record) throws IOException {
+        synchronized (monitor()) {
+            FileLock lock = channel.lock();
+            try {
+                long size = channel.size();
+                ByteBuffer last = ByteBuffer.allocate(1);
+                if (size > 0 && channel.read(last, size - 1) == 1 && last.get(0) != '\n') {
+                    record = "\n" + record;
+                }
+                write(channel, record, size);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    protected FileChannel open() throws IOException {
+        // an interrupted write closes the channel, in which case we just reopen it
+        if (_channel == null || !_channel.isOpen()) {
+            _channel = new RandomAccessFile(_file, "rw").getChannel();
+        }
+        return _channel;
+    }
+
+    /**
+     * Returns the monitor which guards the lock on our ledger file within this JVM, as file
+     * locks are held by the whole JVM and another ledger on the same file may live in it.
+     */
+    protected Object monitor() {
+        return MONITORS.computeIfAbsent(_file.getAbsolutePath(), path -> new Object());
+    }
+
+    protected static String read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        for (long position = 0; buffer.hasRemaining(); ) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+    }
+
+    protected static void write(FileChannel channel, String data, long position)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    protected final File _file;
+    protected Map<String, String> _stamps;
+    protected boolean _migrating;
+    protected int _records;
+    protected FileChannel _channel;
+
+    /** The record which notes that old marker files have been migrated. */
+    protected static final String MIGRATED = "*";
+
+    /** Ledgers with fewer records than this are never compacted. */
+    protected static final int COMPACT_MIN_RECORDS = 1000;
+
+    /** The monitors guarding the locks on the ledger files of this JVM, by path. */
+    protected static final Map<String, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValidationLedger.class);
+}
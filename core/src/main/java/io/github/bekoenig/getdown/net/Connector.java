@@ -7,6 +7,8 @@ package io.github.bekoenig.getdown.net;
 
 import io.github.bekoenig.getdown.data.SysProps;
 import io.github.bekoenig.getdown.util.StreamUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.*;
@@ -21,6 +23,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  * when proxy credentials are rejected.
  */
 public class Connector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Connector.class);
 
     /**
      * The default connector uses no proxy.
@@ -151,6 +154,48 @@ public class Connector {
         return out.toString(UTF_8.toString());
     }
 
+    /**
+     * Opens and discards a connection to {@code url} on a background thread. This gets the DNS
+     * lookup and the TCP/TLS handshake out of the way while we are busy with other things; the JDK
+     * keeps idle HTTP connections alive, so the next request to the same host can reuse it.
+     * Failures are ignored, the real request will report them.
+     */
+    public void warmUp(final URL url) {
+        Thread warmer = new Thread("Connection warm-up") {
+            @Override
+            public void run() {
+                try {
+                    // the proxy resolves the host for us, so only look it up if we go direct
+                    if (proxy == null) {
+                        InetAddress.getByName(url.getHost());
+                    }
+                    URLConnection conn = open(url, 0, 0);
+                    conn.setUseCaches(false);
+                    if (conn instanceof HttpURLConnection) {
+                        HttpURLConnection hconn = (HttpURLConnection) conn;
+                        hconn.setRequestMethod("HEAD");
+                        // we don't use checkConnectStatus here as a refused warm-up request must
+                        // not change our state; the connection only goes back to the keep-alive
+                        // cache once its stream has been closed
+                        InputStream in = hconn.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST ?
+                            hconn.getInputStream() : hconn.getErrorStream();
+                        if (in != null) {
+                            in.close();
+                        }
+                    }
+                } catch (IOException ioe) {
+                    LOGGER.atDebug()
+                        .setMessage("Connection warm-up failed")
+                        .addKeyValue("url", url)
+                        .addKeyValue("error", ioe)
+                        .log();
+                }
+            }
+        };
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
     /**
      * Checks that {@code conn} returned an {@code OK} response code iff it is an HTTP connection.
      * If the connection failed for proxy related reasons, this changes the state of this connector
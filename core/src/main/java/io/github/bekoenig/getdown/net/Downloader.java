@@ -5,7 +5,9 @@
 
 package io.github.bekoenig.getdown.net;
 
+import io.github.bekoenig.getdown.data.MerkleDigest;
 import io.github.bekoenig.getdown.data.Resource;
+import io.github.bekoenig.getdown.util.FileUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,9 +16,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -50,7 +59,14 @@ public class Downloader {
         resolvingDownloads();
         for (Resource rsrc : resources) {
             try {
-                _sizes.put(rsrc, Math.max(checkSize(rsrc), 0L));
+                // only the damaged chunks of a repairable resource will be transferred
+                BitSet damaged = findDamagedChunks(rsrc);
+                if (damaged != null) {
+                    _damaged.put(rsrc, damaged);
+                }
+                long size = (damaged != null) ?
+                    (long) damaged.cardinality() * MerkleDigest.CHUNK_SIZE : checkSize(rsrc);
+                _sizes.put(rsrc, Math.max(size, 0L));
             } catch (IOException ioe) {
                 downloadFailed(rsrc, ioe);
             }
@@ -174,6 +190,39 @@ public class Downloader {
         }
     }
 
+    /**
+     * Determines which chunks of the local copy of {@code rsrc} are damaged, if it failed
+     * validation in a way that allows repairing it, by fetching the chunk hashes of its remote
+     * copy, which are published next to it (see {@link MerkleDigest#CHUNKS_SUFFIX}).
+     *
+     * @return the damaged chunks, or null if the resource must be downloaded in full.
+     */
+    protected BitSet findDamagedChunks(Resource rsrc) {
+        MerkleDigest.Damage damage = rsrc.getDamage();
+        if (damage == null) {
+            return null;
+        }
+        rsrc.setDamage(null);
+        try {
+            String remote = rsrc.getRemote().toString();
+            int query = remote.indexOf('?');
+            URL url = new URL(query < 0 ? remote + MerkleDigest.CHUNKS_SUFFIX :
+                remote.substring(0, query) + MerkleDigest.CHUNKS_SUFFIX + remote.substring(query));
+            byte[][] chunks = MerkleDigest.parseChunks(_conn.fetch(url));
+            BitSet damaged = (chunks == null) ? null : damage.damagedChunks(chunks);
+            if (damaged == null) {
+                logger.info("Chunk hashes of '{}' do not match its digest, downloading it in full.",
+                    rsrc);
+            }
+            return damaged;
+
+        } catch (IOException ioe) {
+            logger.info("No chunk hashes for '{}', downloading it in full: {}", rsrc,
+                ioe.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Periodically called by the protocol-specific downloaders to update their progress. This
      * should be called at least once for each resource to be downloaded, with the total downloaded
@@ -242,6 +291,14 @@ public class Downloader {
      * to aborted and abort any in-progress download if so.
      */
     protected void download(Resource rsrc) throws IOException {
+        // if we know which chunks of the resource are damaged, try to fetch just those
+        BitSet damaged = _damaged.get(rsrc);
+        if (damaged != null) {
+            if (repair(rsrc, damaged) || _state == State.ABORTED) {
+                return;
+            }
+        }
+
         URLConnection conn = _conn.open(rsrc.getRemote(), 0, 0);
         // make sure we got a satisfactory response code
         int code = _conn.checkConnectStatus(conn);
@@ -304,6 +361,77 @@ public class Downloader {
         }
     }
 
+    /**
+     * Repairs the local copy of {@code rsrc} by copying it to {@link Resource#getLocalNew} and
+     * replacing its {@code damaged} chunks with ones fetched via HTTP range requests.
+     *
+     * @return true if the resource was repaired, false if the server does not honor range
+     * requests, the repair failed otherwise or was aborted, in which case the whole resource must
+     * be fetched (unless the download was aborted).
+     */
+    protected boolean repair(Resource rsrc, BitSet damaged) {
+        File local = rsrc.getLocal(), localNew = rsrc.getLocalNew();
+        int chunks = (int) Math.max(1, (local.length() + MerkleDigest.CHUNK_SIZE - 1) /
+            MerkleDigest.CHUNK_SIZE);
+        logger.atInfo()
+            .setMessage("Repairing resource")
+            .addKeyValue("url", rsrc.getRemote())
+            .addKeyValue("chunks", damaged.cardinality())
+            .log();
+
+        boolean repaired = false;
+        try {
+            Files.copy(local.toPath(), localNew.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel out = FileChannel.open(localNew.toPath(), StandardOpenOption.WRITE)) {
+                long currentSize = 0L;
+                byte[] buffer = new byte[4 * 4096];
+                for (int chunk = damaged.nextSetBit(0); chunk >= 0;
+                     chunk = damaged.nextSetBit(chunk + 1)) {
+                    long start = (long) chunk * MerkleDigest.CHUNK_SIZE;
+                    long position = start;
+                    URLConnection conn = _conn.open(rsrc.getRemote(), 0, 0);
+                    conn.setRequestProperty(
+                        "Range", "bytes=" + start + "-" + (start + MerkleDigest.CHUNK_SIZE - 1));
+                    int code = _conn.checkConnectStatus(conn);
+                    String range = conn.getHeaderField("Content-Range");
+                    if (code != HttpURLConnection.HTTP_PARTIAL || range == null ||
+                        !range.startsWith("bytes " + start + "-")) {
+                        logger.info("Range requests not honored, downloading '{}' in full.", rsrc);
+                        conn.getInputStream().close();
+                        return false;
+                    }
+                    try (InputStream in = conn.getInputStream()) {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            if (_state == State.ABORTED) {
+                                return false;
+                            }
+                            out.write(ByteBuffer.wrap(buffer, 0, read), position);
+                            position += read;
+                            currentSize += read;
+                            reportProgress(rsrc, currentSize, _sizes.get(rsrc));
+                        }
+                    }
+                    // the last chunk of the new file may be shorter than the one we had
+                    if (chunk == chunks - 1) {
+                        out.truncate(position);
+                    }
+                }
+            }
+            repaired = true;
+            return true;
+
+        } catch (IOException ioe) {
+            logger.warn("Failed to repair '{}', downloading it in full.", rsrc, ioe);
+            return false;
+
+        } finally {
+            if (!repaired) {
+                FileUtil.deleteHarder(localNew);
+            }
+        }
+    }
+
     protected final Connector _conn;
 
     /**
@@ -311,6 +439,11 @@ public class Downloader {
      */
     protected final Map<Resource, Long> _sizes = new HashMap<>();
 
+    /**
+     * The damaged chunks of the resources which we repair rather than download in full.
+     */
+    protected final Map<Resource, BitSet> _damaged = new HashMap<>();
+
     /**
      * The bytes downloaded for each resource.
      */
@@ -0,0 +1,186 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Creates binary diffs between two versions of an arbitrary file, which {@link
+ * BinaryDiffPatcher} applies to the old version to rebuild the new one. The old file is split
+ * into blocks that are indexed by a rolling hash. A window slides over the new file, and each
+ * range that matches a block is extended as far as the two files agree and is encoded as a copy
+ * from the old file. Everything else is added literally. The encoder maps both files into
+ * memory, the patcher streams through the diff and reads only the copied ranges of the old file.
+ * A BinaryDiff instance may create any number of diffs one after the other.
+ */
+public class BinaryDiff implements BinaryDiffCodes {
+
+    /**
+     * Creates a binary diff which rebuilds {@code nfile} from {@code ofile}, and writes it to
+     * {@code out}.
+     *
+     * @return false if the files are too large to be diffed, in which case nothing is written.
+     */
+    public boolean createPatch(File ofile, File nfile, OutputStream out) throws IOException {
+        long olength = ofile.length(), nlength = nfile.length();
+        if (olength > Integer.MAX_VALUE || nlength > Integer.MAX_VALUE) {
+            return false;
+        }
+        try (FileChannel ochan = FileChannel.open(ofile.toPath(), StandardOpenOption.READ);
+             FileChannel nchan = FileChannel.open(nfile.toPath(), StandardOpenOption.READ)) {
+            createPatch(ochan.map(FileChannel.MapMode.READ_ONLY, 0, olength),
+                nchan.map(FileChannel.MapMode.READ_ONLY, 0, nlength), out);
+        }
+        return true;
+    }
+
+    /**
+     * Creates a binary diff which rebuilds {@code ndata} from {@code odata}, and writes it to
+     * {@code out}.
+     */
+    public void createPatch(byte[] odata, byte[] ndata, OutputStream out) throws IOException {
+        createPatch(ByteBuffer.wrap(odata), ByteBuffer.wrap(ndata), out);
+    }
+
+    protected void createPatch(ByteBuffer obuf, ByteBuffer nbuf, OutputStream out)
+        throws IOException {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+        dout.writeInt(MAGIC);
+        dout.writeByte(FORMAT_VERSION);
+        dout.writeLong(obuf.limit());
+        dout.writeLong(nbuf.limit());
+        encode(obuf, nbuf, dout);
+        dout.writeByte(END);
+        CRC32 crc = new CRC32();
+        crc.update(nbuf.duplicate());
+        dout.writeInt((int) crc.getValue());
+        dout.flush();
+    }
+
+    protected void encode(ByteBuffer obuf, ByteBuffer nbuf, DataOutputStream out)
+        throws IOException {
+        int olen = obuf.limit(), nlen = nbuf.limit();
+        // larger files get larger blocks, which bounds the size of our index
+        int bsize = MIN_BLOCK_SIZE;
+        while (olen / bsize > MAX_BLOCKS) {
+            bsize *= 2;
+        }
+        int blocks = olen / bsize;
+
+        // index the blocks of the old file by their hash, the first block with a hash wins
+        int tsize = 16;
+        while (tsize < blocks * 2) {
+            tsize <<= 1;
+        }
+        int[] table = new int[tsize];
+        int mask = tsize - 1;
+        for (int bb = 0; bb < blocks; bb++) {
+            int slot = slot(hash(obuf, bb * bsize, bsize), mask);
+            if (table[slot] == 0) {
+                table[slot] = bb + 1;
+            }
+        }
+        int pow = 1;
+        for (int ii = 1; ii < bsize; ii++) {
+            pow *= MULTIPLIER;
+        }
+
+        // slide a block sized window over the new file, looking for blocks of the old file
+        int pos = 0, literal = 0;
+        int hash = (blocks > 0 && nlen >= bsize) ? hash(nbuf, 0, bsize) : 0;
+        while (blocks > 0 && pos + bsize <= nlen) {
+            int block = table[slot(hash, mask)] - 1;
+            if (block >= 0 && matches(obuf, block * bsize, nbuf, pos, bsize)) {
+                // extend the match backwards into the pending literal and forwards
+                int opos = block * bsize, back = 0, length = bsize;
+                while (pos - back > literal && opos - back > 0 &&
+                    obuf.get(opos - back - 1) == nbuf.get(pos - back - 1)) {
+                    back++;
+                }
+                while (pos + length < nlen && opos + length < olen &&
+                    obuf.get(opos + length) == nbuf.get(pos + length)) {
+                    length++;
+                }
+                writeAdd(nbuf, literal, pos - back, out);
+                out.writeByte(COPY);
+                out.writeLong(opos - back);
+                out.writeInt(back + length);
+                pos += length;
+                literal = pos;
+                if (pos + bsize <= nlen) {
+                    hash = hash(nbuf, pos, bsize);
+                }
+                continue;
+            }
+            if (pos + bsize < nlen) {
+                hash = (hash - (nbuf.get(pos) & 0xFF) * pow) * MULTIPLIER +
+                    (nbuf.get(pos + bsize) & 0xFF);
+            }
+            pos++;
+        }
+        writeAdd(nbuf, literal, nlen, out);
+    }
+
+    protected void writeAdd(ByteBuffer nbuf, int from, int to, DataOutputStream out)
+        throws IOException {
+        if (from == to) {
+            return;
+        }
+        out.writeByte(ADD);
+        out.writeInt(to - from);
+        ByteBuffer data = nbuf.duplicate();
+        ((Buffer) data).position(from);
+        while (from < to) {
+            int count = Math.min(_buffer.length, to - from);
+            data.get(_buffer, 0, count);
+            out.write(_buffer, 0, count);
+            from += count;
+        }
+    }
+
+    protected static int hash(ByteBuffer buf, int offset, int length) {
+        int hash = 0;
+        for (int ii = offset, end = offset + length; ii < end; ii++) {
+            hash = hash * MULTIPLIER + (buf.get(ii) & 0xFF);
+        }
+        return hash;
+    }
+
+    protected static int slot(int hash, int mask) {
+        hash *= 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    protected static boolean matches(ByteBuffer obuf, int opos, ByteBuffer nbuf, int npos,
+                                     int length) {
+        for (int ii = 0; ii < length; ii++) {
+            if (obuf.get(opos + ii) != nbuf.get(npos + ii)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected final byte[] _buffer = new byte[64 * 1024];
+
+    /** The smallest range of the old file that is copied rather than added literally. */
+    protected static final int MIN_BLOCK_SIZE = 32;
+
+    /** The largest number of blocks we index, about 16M of index. */
+    protected static final int MAX_BLOCKS = 1 << 21;
+
+    /** The multiplier of our polynomial rolling hash. */
+    protected static final int MULTIPLIER = 0x01000193;
+}
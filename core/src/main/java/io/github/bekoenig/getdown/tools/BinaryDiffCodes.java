@@ -0,0 +1,41 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.tools;
+
+/**
+ * Constants shared by {@link BinaryDiff} and {@link BinaryDiffPatcher}. A binary diff starts
+ * with {@link #MAGIC}, the {@link #FORMAT_VERSION} byte and the lengths of the old and the new
+ * file. It continues with a list of instructions which rebuild the new file from the old one,
+ * each an instruction byte followed by its operands, ends with {@link #END} and finally the
+ * CRC-32 of the new file.
+ */
+public interface BinaryDiffCodes {
+    /**
+     * The magic number with which every binary diff starts.
+     */
+    int MAGIC = 0x47444244;
+
+    /**
+     * The version of the binary diff format.
+     */
+    int FORMAT_VERSION = 1;
+
+    /**
+     * The instruction which ends the list of instructions.
+     */
+    int END = 0;
+
+    /**
+     * An instruction followed by a length and as many bytes to append to the new file.
+     */
+    int ADD = 1;
+
+    /**
+     * An instruction followed by an offset into the old file and the length of the range to
+     * copy from there into the new file.
+     */
+    int COPY = 2;
+}
@@ -0,0 +1,124 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Applies a binary diff created by {@link BinaryDiff} to the old version of a file.
+ */
+public class BinaryDiffPatcher implements BinaryDiffCodes {
+
+    /**
+     * Rebuilds the new version of a file from its old version {@code ofile} and the binary diff
+     * read from {@code diff}, and writes it to {@code target}.
+     *
+     * @throws IOException if the diff is invalid or doesn't apply to {@code ofile}, in which case
+     * the contents of {@code target} are undefined.
+     */
+    public void patch(File ofile, InputStream diff, File target) throws IOException {
+        try (RandomAccessFile old = new RandomAccessFile(ofile, "r");
+             FileOutputStream fout = new FileOutputStream(target);
+             BufferedOutputStream out = new BufferedOutputStream(fout)) {
+            patch(old.length(), (offset, buffer, length) -> {
+                old.seek(offset);
+                old.readFully(buffer, 0, length);
+            }, diff, out);
+        }
+    }
+
+    /**
+     * Rebuilds the new version of some data from its old version {@code odata} and the binary
+     * diff read from {@code diff}, and writes it to {@code out}, which is left open.
+     *
+     * @throws IOException if the diff is invalid or doesn't apply to {@code odata}.
+     */
+    public void patch(byte[] odata, InputStream diff, OutputStream out) throws IOException {
+        patch(odata.length, (offset, buffer, length) ->
+            System.arraycopy(odata, (int) offset, buffer, 0, length), diff, out);
+    }
+
+    protected void patch(long olength, Source old, InputStream diff, OutputStream out)
+        throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(diff));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a binary diff");
+        }
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported binary diff version " + version);
+        }
+        if (in.readLong() != olength) {
+            throw new IOException("Binary diff does not apply to its base");
+        }
+        long nlength = in.readLong();
+
+        CRC32 crc = new CRC32();
+        long written = 0;
+        for (int op = in.readUnsignedByte(); op != END; op = in.readUnsignedByte()) {
+            switch (op) {
+            case ADD:
+                for (int remain = checkLength(in.readInt()); remain > 0; ) {
+                    int count = Math.min(_buffer.length, remain);
+                    in.readFully(_buffer, 0, count);
+                    write(count, crc, out);
+                    remain -= count;
+                    written += count;
+                }
+                break;
+            case COPY:
+                long offset = in.readLong();
+                int length = checkLength(in.readInt());
+                if (offset < 0 || offset + length > olength) {
+                    throw new IOException("Invalid copy in binary diff");
+                }
+                for (int remain = length; remain > 0; ) {
+                    int count = Math.min(_buffer.length, remain);
+                    old.read(offset, _buffer, count);
+                    write(count, crc, out);
+                    remain -= count;
+                    offset += count;
+                    written += count;
+                }
+                break;
+            default:
+                throw new IOException("Invalid binary diff instruction " + op);
+            }
+        }
+        out.flush();
+        if (written != nlength || in.readInt() != (int) crc.getValue()) {
+            throw new IOException("Binary diff produced invalid data");
+        }
+    }
+
+    protected void write(int count, CRC32 crc, OutputStream out) throws IOException {
+        crc.update(_buffer, 0, count);
+        out.write(_buffer, 0, count);
+    }
+
+    protected static int checkLength(int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Invalid length in binary diff");
+        }
+        return length;
+    }
+
+    /** Provides the contents of the old version. */
+    protected interface Source {
+        void read(long offset, byte[] buffer, int length) throws IOException;
+    }
+
+    protected final byte[] _buffer = new byte[64 * 1024];
+}
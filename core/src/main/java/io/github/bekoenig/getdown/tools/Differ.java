@@ -9,19 +9,26 @@ import io.github.bekoenig.getdown.data.Application;
 import io.github.bekoenig.getdown.data.Digest;
 import io.github.bekoenig.getdown.data.EnvConfig;
 import io.github.bekoenig.getdown.data.Resource;
+import io.github.bekoenig.getdown.data.SysProps;
 import io.github.bekoenig.getdown.util.FileUtil;
 import io.github.bekoenig.getdown.util.StreamUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 /**
@@ -29,15 +36,33 @@ import java.util.zip.ZipOutputStream;
  * application. The differences between all the files in the two
  * revisions are bundled into a single patch file which is placed into the
  * target version directory.
+ *
+ * <p>If enabled with {@link #setBinaryDiffs}, changed files other than jars are shipped as
+ * binary diffs ({@link Patcher#BDIFF} entries) and the modified entries of jars as deltas (see
+ * {@link JarDiff}). <em>Note:</em> patchers which predate binary diffs can't apply those, they
+ * create {@code foo.bdiff} files verbatim or reject the jar patch, after which the affected
+ * resources fail validation and are downloaded in full. Only enable binary diffs once all
+ * clients run a getdown that supports them.
  */
 public class Differ {
     private static final Logger LOGGER = LoggerFactory.getLogger(Differ.class);
 
+    /**
+     * Configures whether the patches created hereafter ship binary diffs of changed files and
+     * jar entries, which older patchers can't apply. Binary diffs are disabled by default.
+     */
+    public void setBinaryDiffs(boolean binaryDiffs) {
+        _binaryDiffs = binaryDiffs;
+    }
+
     /**
      * Creates a single patch file that contains the differences between
      * the two specified application directories. The patch file will be
      * created in the {@code nvdir} directory with name
-     * {@code patchV.dat} where V is the old application version.
+     * {@code patchV.dat} where V is the old application version. The
+     * patches for the main application and for its auxiliary groups are
+     * created concurrently, and the resources within each of them are
+     * diffed in parallel.
      */
     public void createDiff(File nvdir, File ovdir, boolean verbose)
         throws IOException {
@@ -67,142 +92,278 @@ public class Differ {
         nrsrcs.addAll(napp.getCodeResources());
         nrsrcs.addAll(napp.getResources());
 
-        // first create a patch for the main application
-        File patch = new File(nvdir, "patch" + overs + ".dat");
-        createPatch(patch, orsrcs, nrsrcs, verbose);
-
-        // next create patches for any auxiliary resource groups
-        for (Application.AuxGroup ag : napp.getAuxGroups()) {
-            orsrcs = new ArrayList<>();
-            Application.AuxGroup oag = oapp.getAuxGroup(ag.name);
-            if (oag != null) {
-                orsrcs.addAll(oag.codes);
-                orsrcs.addAll(oag.rsrcs);
+        // the digests published with both versions tell us which resources changed, so that we
+        // needn't read through both versions in their entirety to find out; we use the digests
+        // of the version that the new version's clients validate against
+        _digestVersion = napp.getDigestVersion();
+        _odigest = loadDigest(ovdir);
+        _ndigest = loadDigest(nvdir);
+
+        // the patches are assembled on threads of their own, while the resources they contain
+        // are diffed on a shared pool; the two must differ as assembly waits on the diffing
+        ExecutorService patchExec = Executors.newCachedThreadPool();
+        ExecutorService diffExec = Executors.newFixedThreadPool(SysProps.threadPoolSize());
+        try {
+            List<Future<?>> patches = new ArrayList<>();
+
+            // first create a patch for the main application
+            File patch = new File(nvdir, "patch" + overs + ".dat");
+            patches.add(submitPatch(patchExec, diffExec, patch, orsrcs, nrsrcs, verbose));
+
+            // next create patches for any auxiliary resource groups
+            for (Application.AuxGroup ag : napp.getAuxGroups()) {
+                orsrcs = new ArrayList<>();
+                Application.AuxGroup oag = oapp.getAuxGroup(ag.name);
+                if (oag != null) {
+                    orsrcs.addAll(oag.codes);
+                    orsrcs.addAll(oag.rsrcs);
+                }
+                nrsrcs = new ArrayList<>();
+                nrsrcs.addAll(ag.codes);
+                nrsrcs.addAll(ag.rsrcs);
+                patch = new File(nvdir, "patch-" + ag.name + overs + ".dat");
+                patches.add(submitPatch(patchExec, diffExec, patch, orsrcs, nrsrcs, verbose));
+            }
+
+            for (Future<?> future : patches) {
+                await(future);
             }
-            nrsrcs = new ArrayList<>();
-            nrsrcs.addAll(ag.codes);
-            nrsrcs.addAll(ag.rsrcs);
-            patch = new File(nvdir, "patch-" + ag.name + overs + ".dat");
-            createPatch(patch, orsrcs, nrsrcs, verbose);
+        } finally {
+            patchExec.shutdownNow();
+            diffExec.shutdownNow();
         }
     }
 
-    protected void createPatch(File patch, List<Resource> orsrcs,
+    protected Future<?> submitPatch(ExecutorService patchExec, ExecutorService diffExec,
+                                    File patch, List<Resource> orsrcs, List<Resource> nrsrcs,
+                                    boolean verbose) {
+        return patchExec.submit(() -> {
+            createPatch(diffExec, patch, orsrcs, nrsrcs, verbose);
+            return null;
+        });
+    }
+
+    /**
+     * Creates a patch file containing the differences between {@code orsrcs} and {@code
+     * nrsrcs}. The resources are diffed in parallel on {@code exec}, but the patch file lists
+     * them in the order of the supplied lists, so that it does not depend on scheduling.
+     */
+    protected void createPatch(ExecutorService exec, File patch, List<Resource> orsrcs,
                                List<Resource> nrsrcs, boolean verbose)
         throws IOException {
-        int version = Digest.VERSION;
-        MessageDigest md = Digest.getMessageDigest(version);
+        // for each file in the new application, it either already exists
+        // in the old application, or it is new
+        Map<String, Resource> opaths = new LinkedHashMap<>();
+        for (Resource orsrc : orsrcs) {
+            opaths.put(orsrc.getPath(), orsrc);
+        }
+        List<Future<PatchEntry>> entries = new ArrayList<>();
+        for (Resource rsrc : nrsrcs) {
+            Resource orsrc = opaths.remove(rsrc.getPath());
+            if (orsrc != null && isPublishedUnchanged(orsrc, rsrc)) {
+                if (verbose) {
+                    LOGGER.info("Unchanged: {}", rsrc.getPath());
+                }
+                continue;
+            }
+            entries.add(exec.submit(() -> diff(orsrc, rsrc, verbose)));
+        }
+
         try (FileOutputStream fos = new FileOutputStream(patch);
              BufferedOutputStream buffered = new BufferedOutputStream(fos);
              ZipOutputStream jout = new ZipOutputStream(buffered)) {
 
-            // for each file in the new application, it either already exists
-            // in the old application, or it is new
-            for (Resource rsrc : nrsrcs) {
-                int oidx = orsrcs.indexOf(rsrc);
-                Resource orsrc = (oidx == -1) ? null : orsrcs.remove(oidx);
-                if (orsrc != null) {
-                    // first see if they are the same
-                    String odig = orsrc.computeDigest(version, md, null);
-                    String ndig = rsrc.computeDigest(version, md, null);
-                    if (odig.equals(ndig)) {
-                        if (verbose) {
-                            LOGGER.info("Unchanged: {}", rsrc.getPath());
-                        }
-                        // by leaving it out, it will be left as is during the
-                        // patching process
-                        continue;
-                    }
-
-                    // otherwise potentially create a jar diff
-                    if (rsrc.getPath().endsWith(".jar")) {
-                        if (verbose) {
-                            LOGGER.info("JarDiff: {}", rsrc.getPath());
-                        }
-                        // here's a juicy one: JarDiff blindly pulls ZipEntry
-                        // objects out of one jar file and stuffs them into
-                        // another without clearing out things like the
-                        // compressed size, so if, for whatever reason (like
-                        // different JRE versions or phase of the moon) the
-                        // compressed size in the old jar file is different
-                        // than the compressed size generated when creating the
-                        // jardiff jar file, ZipOutputStream will choke and
-                        // we'll be hosed; so we recreate the jar files in
-                        // their entirety before running jardiff on 'em
-                        File otemp = rebuildJar(orsrc.getLocal());
-                        File temp = rebuildJar(rsrc.getLocal());
-                        jout.putNextEntry(new ZipEntry(rsrc.getPath() + Patcher.PATCH));
-                        jarDiff(otemp, temp, jout);
-                        FileUtil.deleteHarder(otemp);
-                        FileUtil.deleteHarder(temp);
-                        continue;
-                    }
+            // the manifest lists every entry with its size and the digest of its result
+            StringBuilder manifest = new StringBuilder(Patcher.MANIFEST_HEADER)
+                .append(' ').append(_digestVersion).append('\n');
+            for (Future<PatchEntry> future : entries) {
+                PatchEntry entry = await(future);
+                if (entry == null) {
+                    continue;
                 }
-
-                if (verbose) {
-                    LOGGER.info("Addition: {}", rsrc.getPath());
+                try {
+                    jout.putNextEntry(new ZipEntry(entry.name));
+                    pipe(entry.data, jout);
+                    manifest.append(entry.name).append('\t').append(entry.data.length())
+                        .append('\t').append(entry.digest).append('\n');
+                } finally {
+                    entry.dispose();
                 }
-                jout.putNextEntry(new ZipEntry(rsrc.getPath() + Patcher.CREATE));
-                pipe(rsrc.getLocal(), jout);
             }
 
-            // now any file remaining in orsrcs needs to be removed
-            for (Resource rsrc : orsrcs) {
+            // now any file remaining in the old application needs to be removed
+            for (Resource rsrc : opaths.values()) {
                 // add an entry with the resource name and the deletion suffix
                 if (verbose) {
                     LOGGER.info("Removal: {}", rsrc.getPath());
                 }
                 jout.putNextEntry(new ZipEntry(rsrc.getPath() + Patcher.DELETE));
+                manifest.append(rsrc.getPath()).append(Patcher.DELETE).append("\t0\t-\n");
             }
 
+            jout.putNextEntry(new ZipEntry(Patcher.MANIFEST));
+            jout.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+
             LOGGER.info("Created patch file: {}", patch);
 
-        } catch (IOException ioe) {
+        } catch (IOException | RuntimeException e) {
+            // don't leave the temporary files of the diffs we didn't get to lying around
+            for (Future<PatchEntry> future : entries) {
+                if (!future.cancel(true)) {
+                    try {
+                        PatchEntry entry = await(future);
+                        if (entry != null) {
+                            entry.dispose();
+                        }
+                    } catch (IOException | RuntimeException ignored) {
+                        // already reported, or the entry failed itself
+                    }
+                }
+            }
             FileUtil.deleteHarder(patch);
-            throw ioe;
+            throw e;
         }
     }
 
-    protected File rebuildJar(File target)
+    /**
+     * Diffs the new resource {@code rsrc} against its old counterpart, which is null if the
+     * resource is new. This is called on a worker thread.
+     *
+     * @return the entry to add to the patch file, or null if the resource is unchanged.
+     */
+    protected PatchEntry diff(Resource orsrc, Resource rsrc, boolean verbose)
         throws IOException {
-        File temp = Files.createTempFile("differ", "jar").toFile();
-        try (ZipFile jar = new ZipFile(target);
-             FileOutputStream tempFos = new FileOutputStream(temp);
-             BufferedOutputStream tempBos = new BufferedOutputStream(tempFos);
-             ZipOutputStream jout = new ZipOutputStream(tempBos)) {
-            byte[] buffer = new byte[4096];
-            for (Enumeration<? extends ZipEntry> iter = jar.entries(); iter.hasMoreElements(); ) {
-                ZipEntry entry = iter.nextElement();
-                entry.setCompressedSize(-1);
-                jout.putNextEntry(entry);
-                try (InputStream in = jar.getInputStream(entry)) {
-                    int size = in.read(buffer);
-                    while (size != -1) {
-                        jout.write(buffer, 0, size);
-                        size = in.read(buffer);
-                    }
+        // the digest of the new version goes into the patch's manifest, and tells us whether the
+        // resource changed, unless the published digests told us already
+        int version = _digestVersion;
+        MessageDigest md = Digest.getMessageDigest(version);
+        String ndig = publishedDigest(_ndigest, rsrc);
+        if (ndig == null) {
+            ndig = rsrc.computeDigest(version, md, null);
+        }
+        if (orsrc != null) {
+            String odig = publishedDigest(_odigest, orsrc);
+            if (odig == null) {
+                odig = orsrc.computeDigest(version, md, null);
+            }
+            if (odig.equals(ndig)) {
+                if (verbose) {
+                    LOGGER.info("Unchanged: {}", rsrc.getPath());
                 }
+                // by leaving it out, it will be left as is during the
+                // patching process
+                return null;
+            }
+
+            // otherwise potentially create a jar diff
+            if (rsrc.getPath().endsWith(".jar")) {
+                if (verbose) {
+                    LOGGER.info("JarDiff: {}", rsrc.getPath());
+                }
+                // JarDiff reads the jars as they are, normalizing the metadata of the entries
+                // it copies into the patch
+                File diff = Files.createTempFile("differ", "jardiff").toFile();
+                try (FileOutputStream out = new FileOutputStream(diff)) {
+                    jarDiff(orsrc.getLocal(), rsrc.getLocal(), out);
+                } catch (IOException | RuntimeException e) {
+                    FileUtil.deleteHarder(diff);
+                    throw e;
+                }
+                return new PatchEntry(rsrc.getPath() + Patcher.PATCH, diff, true, ndig);
+            }
+
+            // anything else is shipped as a binary diff, if that is smaller than the file
+            PatchEntry bdiff = _binaryDiffs ? binaryDiff(orsrc, rsrc, ndig) : null;
+            if (bdiff != null) {
+                if (verbose) {
+                    LOGGER.info("BinaryDiff: {}", rsrc.getPath());
+                }
+                return bdiff;
             }
         }
-        return temp;
+
+        if (verbose) {
+            LOGGER.info("Addition: {}", rsrc.getPath());
+        }
+        return new PatchEntry(rsrc.getPath() + Patcher.CREATE, rsrc.getLocal(), false, ndig);
     }
 
-    protected void jarDiff(File ofile, File nfile, ZipOutputStream jout) throws IOException {
-        JarDiff.createPatch(ofile.getPath(), nfile.getPath(), jout, false);
+    /**
+     * Creates a binary diff between the old and new version of a resource.
+     *
+     * @param ndig the digest of the new version.
+     * @return the diff's patch entry, or null if the diff is no smaller than the new version.
+     */
+    protected PatchEntry binaryDiff(Resource orsrc, Resource rsrc, String ndig)
+        throws IOException {
+        File diff = Files.createTempFile("differ", "bdiff").toFile();
+        boolean created;
+        try (FileOutputStream out = new FileOutputStream(diff)) {
+            created = new BinaryDiff().createPatch(orsrc.getLocal(), rsrc.getLocal(), out);
+        } catch (IOException | RuntimeException e) {
+            FileUtil.deleteHarder(diff);
+            throw e;
+        }
+        if (!created || diff.length() >= rsrc.getLocal().length()) {
+            FileUtil.deleteHarder(diff);
+            return null;
+        }
+        return new PatchEntry(rsrc.getPath() + Patcher.BDIFF, diff, true, ndig);
     }
 
-    public static void main(String[] args) {
-        if (args.length < 2) {
-            System.err.println(
-                "Usage: Differ [-verbose] new_vers_dir old_vers_dir");
-            System.exit(255);
+    /**
+     * Loads and validates the digest of our digest version published in {@code appdir}.
+     *
+     * @return the digest, or null if there is no valid digest, in which case the resources are
+     * hashed as needed.
+     */
+    protected Digest loadDigest(File appdir) {
+        try {
+            return new Digest(appdir, _digestVersion, false);
+        } catch (IOException ioe) {
+            LOGGER.atWarn()
+                .setMessage("No valid digest, hashing resources instead")
+                .addKeyValue("appdir", appdir)
+                .addKeyValue("cause", ioe.getMessage())
+                .log();
+            return null;
         }
+    }
+
+    /**
+     * Returns whether the published digests of both versions list the same digest for the old
+     * and new version of a resource.
+     */
+    protected boolean isPublishedUnchanged(Resource orsrc, Resource rsrc) {
+        String odig = publishedDigest(_odigest, orsrc);
+        return odig != null && odig.equals(publishedDigest(_ndigest, rsrc));
+    }
+
+    protected static String publishedDigest(Digest digest, Resource rsrc) {
+        return (digest == null) ? null : digest.getDigest(rsrc);
+    }
+
+    protected void jarDiff(File ofile, File nfile, OutputStream out) throws IOException {
+        new JarDiff(_binaryDiffs).createPatch(ofile.getPath(), nfile.getPath(), out, false);
+    }
+
+    public static void main(String[] args) {
         Differ differ = new Differ();
         boolean verbose = false;
         int aidx = 0;
-        if ("-verbose".equals(args[0])) {
-            verbose = true;
-            aidx++;
+        for (; aidx < args.length && args[aidx].startsWith("-"); aidx++) {
+            if ("-verbose".equals(args[aidx])) {
+                verbose = true;
+            } else if ("-binarydiffs".equals(args[aidx])) {
+                differ.setBinaryDiffs(true);
+            } else {
+                break;
+            }
+        }
+        if (args.length - aidx < 2) {
+            System.err.println(
+                "Usage: Differ [-verbose] [-binarydiffs] new_vers_dir old_vers_dir");
+            System.exit(255);
         }
         try {
             differ.createDiff(new File(args[aidx++]),
@@ -218,4 +379,52 @@ public class Differ {
             StreamUtil.copy(fin, out);
         }
     }
+
+    protected static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted creating patch");
+        } catch (CancellationException ce) {
+            throw new InterruptedIOException("Cancelled creating patch");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to create patch", cause);
+        }
+    }
+
+    /**
+     * An entry of a patch file, the file holding its contents and the digest of the file it
+     * creates or patches.
+     */
+    protected static class PatchEntry {
+        public final String name;
+        public final File data;
+        public final boolean temp;
+        public final String digest;
+
+        public PatchEntry(String name, File data, boolean temp, String digest) {
+            this.name = name;
+            this.data = data;
+            this.temp = temp;
+            this.digest = digest;
+        }
+
+        /** Deletes the contents of this entry, if they are held in a temporary file. */
+        public void dispose() {
+            if (temp) {
+                FileUtil.deleteHarder(data);
+            }
+        }
+    }
+
+    protected boolean _binaryDiffs;
+    protected int _digestVersion = Digest.VERSION;
+    protected Digest _odigest, _ndigest;
 }
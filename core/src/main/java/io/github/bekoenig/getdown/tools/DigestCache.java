@@ -0,0 +1,146 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.tools;
+
+import io.github.bekoenig.getdown.data.Resource;
+import io.github.bekoenig.getdown.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A persistent cache of the digests computed by the {@link Digester}, which lets build servers
+ * rehash only the files that changed since the last build. Digests are cached per file and
+ * digest version, and are only reused while the size, modification time and file key (the
+ * inode on most systems) of their file are unchanged. A single cache can serve any number of
+ * application directories.
+ */
+public class DigestCache {
+
+    /**
+     * Loads the cache stored in {@code file}, if it exists.
+     */
+    public DigestCache(File file) throws IOException {
+        _file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4) {
+                    _entries.put(fields[0] + "\t" + fields[1], new Entry(fields[2], fields[3]));
+                } else if (!line.isEmpty()) {
+                    LOGGER.warn("Ignoring invalid digest cache entry '{}'.", line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the stamp that identifies the current state of {@code file}, which must be obtained
+     * before the file is hashed and passed to {@link #put}.
+     */
+    public String stamp(File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return attrs.size() + " " + attrs.lastModifiedTime().toMillis() + " " + attrs.fileKey();
+    }
+
+    /**
+     * Returns the cached {@code version} digest of {@code file}, or null if none is cached or the
+     * file changed since it was cached.
+     */
+    public synchronized String get(File file, int version) throws IOException {
+        Entry entry = _entries.get(key(file, version));
+        if (entry != null && entry.stamp.equals(stamp(file))) {
+            _hits++;
+            entry.used = true;
+            return entry.digest;
+        }
+        _misses++;
+        return null;
+    }
+
+    /**
+     * Caches the {@code version} digest of {@code file}, which was computed from the state of the
+     * file described by {@code stamp}.
+     */
+    public synchronized void put(File file, int version, String stamp, String digest) {
+        // a file modified within the resolution of its file system's timestamps might be modified
+        // again without a visible change of its stamp, so we don't trust such stamps
+        long mtime = file.lastModified();
+        if (System.currentTimeMillis() - mtime < RACY_MILLIS) {
+            return;
+        }
+        Entry entry = new Entry(stamp, digest);
+        entry.used = true;
+        _entries.put(key(file, version), entry);
+    }
+
+    /**
+     * Writes this cache back to its file. Entries that were neither used nor added since the
+     * cache was loaded are kept as long as their files exist, so that a build of one application
+     * does not evict the entries of another.
+     */
+    public synchronized void save() throws IOException {
+        File temp = new File(_file.getPath() + "_new");
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Entry> entry : _entries.entrySet()) {
+                Entry value = entry.getValue();
+                String path = entry.getKey().substring(entry.getKey().indexOf('\t') + 1);
+                if (value.used || new File(path).exists()) {
+                    out.print(entry.getKey() + "\t" + value.stamp + "\t" + value.digest + "\n");
+                }
+            }
+        }
+        if (!FileUtil.renameTo(temp, _file)) {
+            throw new IOException("Failed to replace digest cache '" + _file + "'.");
+        }
+        LOGGER.atInfo()
+            .setMessage("Saved digest cache")
+            .addKeyValue("file", _file)
+            .addKeyValue("hits", _hits)
+            .addKeyValue("misses", _misses)
+            .log();
+    }
+
+    protected static String key(File file, int version) {
+        return version + "\t" + file.getAbsolutePath();
+    }
+
+    protected static class Entry {
+        public final String stamp;
+        public final String digest;
+        public boolean used;
+
+        public Entry(String stamp, String digest) {
+            this.stamp = stamp;
+            this.digest = digest;
+        }
+    }
+
+    protected final File _file;
+    protected final Map<String, Entry> _entries = new HashMap<>();
+    protected int _hits, _misses;
+
+    /** Files modified less than this many milliseconds ago are not cached. */
+    protected static final long RACY_MILLIS = Resource.RACY_MILLIS;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DigestCache.class);
+}
@@ -8,6 +8,7 @@ package io.github.bekoenig.getdown.tools;
 import io.github.bekoenig.getdown.data.Application;
 import io.github.bekoenig.getdown.data.Digest;
 import io.github.bekoenig.getdown.data.EnvConfig;
+import io.github.bekoenig.getdown.data.MerkleDigest;
 import io.github.bekoenig.getdown.data.Resource;
 import io.github.bekoenig.getdown.util.Config;
 import org.slf4j.Logger;
@@ -17,13 +18,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.Signature;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -38,17 +48,26 @@ public class Digester {
      */
     public static void main(String[] args)
         throws IOException, GeneralSecurityException {
+        DigestCache cache = null;
+        if (args.length > 2 && args[0].equals("-cache")) {
+            cache = new DigestCache(new File(args[1]));
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
         switch (args.length) {
             case 1:
-                createDigests(new File(args[0]), null, null, null);
+                createDigests(new File(args[0]), null, null, null, cache);
                 break;
             case 4:
-                createDigests(new File(args[0]), new File(args[1]), args[2], args[3]);
+                createDigests(new File(args[0]), new File(args[1]), args[2], args[3], cache);
                 break;
             default:
-                System.err.println("Usage: Digester app_dir [keystore_path password alias]");
+                System.err.println(
+                    "Usage: Digester [-cache cache_file] app_dir [keystore_path password alias]");
                 System.exit(255);
         }
+        if (cache != null) {
+            cache.save();
+        }
     }
 
     /**
@@ -56,11 +75,50 @@ public class Digester {
      */
     public static void createDigests(File appdir, File keystore, String password, String alias)
         throws IOException, GeneralSecurityException {
-        for (int version = 1; version <= Digest.VERSION; version++) {
-            createDigest(version, appdir);
-            if (keystore != null) {
-                signDigest(version, appdir, keystore, password, alias);
+        createDigests(appdir, keystore, password, alias, null);
+    }
+
+    /**
+     * Creates digest file(s) and optionally signs them if {@code keystore} is not null. Digests of
+     * files that did not change since they were put into {@code cache} are not recomputed, the
+     * cache is updated but not saved. The digests of all versions are computed in a single pass
+     * over each file, and each digest file is signed while the next one is written.
+     */
+    public static void createDigests(File appdir, File keystore, String password, String alias,
+                                     DigestCache cache)
+        throws IOException, GeneralSecurityException {
+        ExecutorService exec = Executors.newCachedThreadPool();
+        try {
+            // unlocking the key is deliberately slow, so we do that while we hash
+            Future<PrivateKey> key = (keystore == null) ? null :
+                exec.submit(() -> loadKey(keystore, password, alias));
+
+            // digest files of newer versions than the default are only of use to apps which
+            // opted into them via their config
+            Application app = readApplication(appdir);
+            int[] versions = new int[Math.max(Digest.VERSION, app.getDigestVersion())];
+            for (int ii = 0; ii < versions.length; ii++) {
+                versions[ii] = ii + 1;
             }
+            List<Resource> rsrcs = readResources(app);
+            Map<Resource, String[]> digests = computeDigests(versions, rsrcs, cache);
+
+            List<Future<?>> signings = new ArrayList<>();
+            for (int ii = 0; ii < versions.length; ii++) {
+                int version = versions[ii];
+                writeDigest(version, appdir, rsrcs, digests, ii);
+                if (key != null) {
+                    signings.add(exec.submit(() -> {
+                        signDigest(version, appdir, await(key));
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> signing : signings) {
+                await(signing);
+            }
+        } finally {
+            exec.shutdown();
         }
     }
 
@@ -69,30 +127,18 @@ public class Digester {
      */
     public static void createDigest(int version, File appdir)
         throws IOException {
-        File target = new File(appdir, Digest.digestFile(version));
-        LOGGER.info("Generating digest file '{}'...", target);
-
-        // create our application and instruct it to parse its business
-        EnvConfig envc = new EnvConfig(appdir);
-        Application app = new Application(envc);
-        Config config = Application.readConfig(envc, false);
-        app.initBase(config);
-        app.initResources(config);
-
-        List<Resource> rsrcs = new ArrayList<>();
-        rsrcs.add(app.getConfigResource());
-        rsrcs.addAll(app.getCodeResources());
-        rsrcs.addAll(app.getResources());
-        for (Application.AuxGroup ag : app.getAuxGroups()) {
-            rsrcs.addAll(ag.codes);
-            rsrcs.addAll(ag.rsrcs);
-        }
-
-        // reinit app just to verify that getdown.txt has valid format
-        app.init(true);
+        createDigest(version, appdir, null);
+    }
 
-        // now generate the digest file
-        Digest.createDigest(version, rsrcs, target);
+    /**
+     * Creates a digest file in the specified application directory, using and updating the
+     * digests in {@code cache} if it is not null.
+     */
+    public static void createDigest(int version, File appdir, DigestCache cache)
+        throws IOException {
+        List<Resource> rsrcs = readResources(readApplication(appdir));
+        int[] versions = { version };
+        writeDigest(version, appdir, rsrcs, computeDigests(versions, rsrcs, cache), 0);
     }
 
     /**
@@ -101,19 +147,22 @@ public class Digester {
     public static void signDigest(int version, File appdir,
                                   File storePath, String storePass, String storeAlias)
         throws IOException, GeneralSecurityException {
+        signDigest(version, appdir, loadKey(storePath, storePass, storeAlias));
+    }
+
+    /**
+     * Signs the digest file of the given {@code version} in the specified application directory
+     * with {@code key}.
+     */
+    public static void signDigest(int version, File appdir, PrivateKey key)
+        throws IOException, GeneralSecurityException {
         String filename = Digest.digestFile(version);
         File inputFile = new File(appdir, filename);
         File signatureFile = new File(appdir, filename + Application.SIGNATURE_SUFFIX);
 
-        try (FileInputStream storeInput = new FileInputStream(storePath);
-             FileInputStream dataInput = new FileInputStream(inputFile);
+        try (FileInputStream dataInput = new FileInputStream(inputFile);
              FileOutputStream signatureOutput = new FileOutputStream(signatureFile)) {
 
-            // initialize the keystore
-            KeyStore store = KeyStore.getInstance("JKS");
-            store.load(storeInput, storePass.toCharArray());
-            PrivateKey key = (PrivateKey) store.getKey(storeAlias, storePass.toCharArray());
-
             // sign the digest file
             String algo = Digest.sigAlgorithm(version);
             Signature sig = Signature.getInstance(algo);
@@ -132,4 +181,160 @@ public class Digester {
             signatureOutput.write(signed.getBytes(UTF_8));
         }
     }
+
+    /**
+     * Loads the private key with which digest files are signed from the supplied keystore.
+     */
+    protected static PrivateKey loadKey(File storePath, String storePass, String storeAlias)
+        throws IOException, GeneralSecurityException {
+        try (FileInputStream storeInput = new FileInputStream(storePath)) {
+            KeyStore store = KeyStore.getInstance("JKS");
+            store.load(storeInput, storePass.toCharArray());
+            return (PrivateKey) store.getKey(storeAlias, storePass.toCharArray());
+        }
+    }
+
+    /**
+     * Parses the config in the specified application directory into an application.
+     */
+    protected static Application readApplication(File appdir)
+        throws IOException {
+        // create our application and instruct it to parse its business
+        EnvConfig envc = new EnvConfig(appdir);
+        Application app = new Application(envc);
+        Config config = Application.readConfig(envc, false);
+        app.initBase(config);
+        app.initResources(config);
+
+        // reinit app just to verify that getdown.txt has valid format
+        app.init(true);
+        return app;
+    }
+
+    /**
+     * Returns all of the resources of {@code app} that are listed in its digest files.
+     */
+    protected static List<Resource> readResources(Application app) {
+        List<Resource> rsrcs = new ArrayList<>();
+        rsrcs.add(app.getConfigResource());
+        rsrcs.addAll(app.getCodeResources());
+        rsrcs.addAll(app.getResources());
+        for (Application.AuxGroup ag : app.getAuxGroups()) {
+            rsrcs.addAll(ag.codes);
+            rsrcs.addAll(ag.rsrcs);
+        }
+        return rsrcs;
+    }
+
+    /**
+     * Computes the digests of the supplied resources for the given versions, hashing only those
+     * resources for which {@code cache} lacks a digest of any of the versions.
+     */
+    protected static Map<Resource, String[]> computeDigests(
+        int[] versions, List<Resource> rsrcs, DigestCache cache) throws IOException {
+        if (cache == null) {
+            return Digest.computeDigests(versions, rsrcs);
+        }
+
+        Map<Resource, String[]> digests = new HashMap<>();
+        Map<Resource, String> stamps = new HashMap<>();
+        for (Resource rsrc : rsrcs) {
+            String[] cached = new String[versions.length];
+            boolean complete = true;
+            for (int ii = 0; ii < versions.length && complete; ii++) {
+                cached[ii] = cache.get(rsrc.getLocal(), versions[ii]);
+                complete = cached[ii] != null;
+            }
+            if (complete) {
+                digests.put(rsrc, cached);
+            } else {
+                stamps.put(rsrc, cache.stamp(rsrc.getLocal()));
+            }
+        }
+        Map<Resource, String[]> computed = Digest.computeDigests(versions, stamps.keySet());
+        for (Map.Entry<Resource, String[]> entry : computed.entrySet()) {
+            Resource rsrc = entry.getKey();
+            for (int ii = 0; ii < versions.length; ii++) {
+                cache.put(rsrc.getLocal(), versions[ii], stamps.get(rsrc), entry.getValue()[ii]);
+            }
+        }
+        digests.putAll(computed);
+        LOGGER.atInfo()
+            .setMessage("Reused cached digests")
+            .addKeyValue("cached", rsrcs.size() - stamps.size())
+            .addKeyValue("computed", stamps.size())
+            .log();
+        return digests;
+    }
+
+    /**
+     * Writes the digest file of the given {@code version}, which lists the digest at {@code
+     * index} of each of the supplied resources.
+     */
+    protected static void writeDigest(int version, File appdir, List<Resource> rsrcs,
+                                      Map<Resource, String[]> digests, int index)
+        throws IOException {
+        File target = new File(appdir, Digest.digestFile(version));
+        LOGGER.info("Generating digest file '{}'...", target);
+        Map<Resource, String> vdigests = new HashMap<>();
+        for (Map.Entry<Resource, String[]> entry : digests.entrySet()) {
+            vdigests.put(entry.getKey(), entry.getValue()[index]);
+        }
+        Digest.writeDigest(version, rsrcs, vdigests, target);
+        if (version >= 3) {
+            writeChunks(rsrcs, vdigests);
+        }
+    }
+
+    /**
+     * Writes the chunk hashes of each of the supplied resources that consists of more than one
+     * chunk next to it, from where clients fetch them to repair a damaged copy of the resource
+     * (see {@link MerkleDigest}). Chunk hashes that still match the resource's digest are kept.
+     */
+    protected static void writeChunks(List<Resource> rsrcs, Map<Resource, String> digests)
+        throws IOException {
+        for (Resource rsrc : rsrcs) {
+            File local = rsrc.getLocal();
+            File target = new File(local.getPath() + MerkleDigest.CHUNKS_SUFFIX);
+            if (Resource.isJar(local) || Resource.isZip(local) ||
+                local.length() <= MerkleDigest.CHUNK_SIZE) {
+                if (target.exists() && !target.delete()) {
+                    LOGGER.warn("Failed to delete stale chunk hashes '{}'.", target);
+                }
+                continue;
+            }
+            if (target.exists()) {
+                byte[][] chunks = MerkleDigest.parseChunks(
+                    new String(Files.readAllBytes(target.toPath()), UTF_8));
+                if (chunks != null && MerkleDigest.root(chunks).equals(digests.get(rsrc))) {
+                    continue;
+                }
+            }
+            byte[][] chunks = MerkleDigest.computeChunks(local, null, null);
+            Files.write(target.toPath(), MerkleDigest.formatChunks(chunks).getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * Waits for {@code future} and returns its result, rethrowing the exception it failed with.
+     */
+    protected static <T> T await(Future<T> future)
+        throws IOException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted signing digests");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to sign digests", cause);
+        }
+    }
 }
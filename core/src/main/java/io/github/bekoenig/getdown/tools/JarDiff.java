@@ -41,11 +41,16 @@
 
 package io.github.bekoenig.getdown.tools;
 
+import io.github.bekoenig.getdown.data.Digest;
+import io.github.bekoenig.getdown.util.StreamUtil;
+import io.github.bekoenig.getdown.util.StringUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.stream.IntStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -59,19 +64,39 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  *
  * <p> Refer to the JNLP spec for details on how this is done.
  *
+ * <p> If enabled, entries which exist in both archives but changed are shipped as binary diffs
+ * against their old version (see {@link BinaryDiff}) where those are smaller than the entries.
+ * Such patches hold {@code delta} commands, which patchers that predate them reject.
+ *
+ * <p> Entries are matched by a strong hash of their contents, which is computed once per entry,
+ * in parallel. A JarDiff instance may create any number of patches one after the other, separate
+ * instances can create patches concurrently.
+ *
  * @version 1.13, 06/26/03
  */
 public class JarDiff implements JarDiffCodes {
     private static final Logger LOGGER = LoggerFactory.getLogger(JarDiff.class);
-    private static final int DEFAULT_READ_SIZE = 2048;
-    private static final byte[] newBytes = new byte[DEFAULT_READ_SIZE];
-    private static final byte[] oldBytes = new byte[DEFAULT_READ_SIZE];
+    private static final int DEFAULT_READ_SIZE = 8192;
+
+    /**
+     * Creates a JarDiff which ships changed entries in full.
+     */
+    public JarDiff() {
+        this(false);
+    }
+
+    /**
+     * Creates a JarDiff which ships changed entries as binary diffs if {@code deltas} is true.
+     */
+    public JarDiff(boolean deltas) {
+        _deltas = deltas;
+    }
 
     /**
      * Creates a patch from the two passed in files, writing the result to {@code os}.
      */
-    public static void createPatch(String oldPath, String newPath,
-                                   OutputStream os, boolean minimal) throws IOException {
+    public void createPatch(String oldPath, String newPath,
+                            OutputStream os, boolean minimal) throws IOException {
         try (ZipFile2 oldArchive = new ZipFile2(oldPath);
              ZipFile2 newArchive = new ZipFile2(newPath)) {
 
@@ -158,15 +183,38 @@ public class JarDiff implements JarDiffCodes {
                 }
             }
 
+            // Modified entries are shipped as binary diffs against their old version, if
+            // enabled, where those are smaller than the entries themselves
+            Map<String, byte[]> deltas = new HashMap<>();
+            for (String newName : newEntries) {
+                ZipEntry oldEntry = oldArchive.getEntryByName(newName);
+                if (_deltas && oldEntry != null && !oldEntry.isDirectory()) {
+                    byte[] ndata = newArchive.read(newArchive.getEntryByName(newName));
+                    ByteArrayOutputStream delta = new ByteArrayOutputStream();
+                    _bdiff.createPatch(oldArchive.read(oldEntry), ndata, delta);
+                    if (delta.size() < ndata.length) {
+                        LOGGER.debug("delta.put {}", newName);
+                        deltas.put(newName, delta.toByteArray());
+                    }
+                }
+            }
+
             ZipOutputStream jos = new ZipOutputStream(os);
 
-            // Write out all the MOVEs and REMOVEs
-            createIndex(jos, deleted, moved);
+            // Write out all the MOVEs, REMOVEs and DELTAs
+            createIndex(jos, deleted, moved, deltas.keySet());
 
             // Put in New and Modified entries
             for (String newName : newEntries) {
-                LOGGER.debug("New File: {}", newName);
-                writeEntry(jos, newArchive.getEntryByName(newName), newArchive);
+                byte[] delta = deltas.get(newName);
+                if (delta != null) {
+                    LOGGER.debug("Delta: {}", newName);
+                    jos.putNextEntry(new ZipEntry(newName));
+                    jos.write(delta);
+                } else {
+                    LOGGER.debug("New File: {}", newName);
+                    writeEntry(jos, newArchive.getEntryByName(newName), newArchive);
+                }
             }
 
             jos.finish();
@@ -177,10 +225,11 @@ public class JarDiff implements JarDiffCodes {
     /**
      * Writes the index file out to {@code jos}.
      * {@code oldEntries} gives the names of the files that were removed,
-     * {@code movedMap} maps from the new name to the old name.
+     * {@code movedMap} maps from the new name to the old name,
+     * {@code deltaNames} gives the names of the entries shipped as binary diffs.
      */
     private static void createIndex(ZipOutputStream jos, List<String> oldEntries,
-                                    Map<String, String> movedMap)
+                                    Map<String, String> movedMap, Collection<String> deltaNames)
         throws IOException {
         StringWriter writer = new StringWriter();
         writer.write(VERSION_HEADER);
@@ -205,6 +254,14 @@ public class JarDiff implements JarDiffCodes {
             writer.write("\r\n");
         }
 
+        // And those that are shipped as binary diffs
+        for (String name : deltaNames) {
+            writer.write(DELTA_COMMAND);
+            writer.write(" ");
+            writeEscapedString(writer, name);
+            writer.write("\r\n");
+        }
+
         jos.putNextEntry(new ZipEntry(INDEX_NAME));
         byte[] bytes = writer.toString().getBytes(UTF_8);
         jos.write(bytes, 0, bytes.length);
@@ -237,30 +294,49 @@ public class JarDiff implements JarDiffCodes {
         return writer;
     }
 
-    private static void writeEntry(ZipOutputStream jos, ZipEntry entry, ZipFile2 file)
+    private void writeEntry(ZipOutputStream jos, ZipEntry entry, ZipFile2 file)
         throws IOException {
         try (InputStream data = file.getArchive().getInputStream(entry)) {
-            jos.putNextEntry(entry);
-            int size = data.read(newBytes);
+            jos.putNextEntry(normalize(entry));
+            int size = data.read(_buffer);
             while (size != -1) {
-                jos.write(newBytes, 0, size);
-                size = data.read(newBytes);
+                jos.write(_buffer, 0, size);
+                size = data.read(_buffer);
             }
         }
     }
 
     /**
-     * ZipFile2 wraps a ZipFile providing some convenience methods.
+     * Returns a copy of {@code entry} that can be written to another zip stream. The compressed
+     * size of the entry depends on the deflater that wrote the original archive (think different
+     * JRE versions), so we leave it to ours to recompute, lest the stream reject the entry.
+     */
+    protected static ZipEntry normalize(ZipEntry entry) {
+        ZipEntry copy = new ZipEntry(entry);
+        copy.setCompressedSize(-1);
+        return copy;
+    }
+
+    /**
+     * ZipFile2 wraps a ZipFile providing some convenience methods, and indexes its entries by
+     * the hash of their contents.
      */
     private static class ZipFile2 implements Iterable<ZipEntry>, Closeable {
         private final ZipFile _archive;
-        private List<ZipEntry> _entries;
-        private HashMap<String, ZipEntry> _nameToEntryMap;
-        private HashMap<Long, LinkedList<ZipEntry>> _crcToEntryMap;
+        private final List<ZipEntry> _entries = new ArrayList<>();
+        private final Map<String, ZipEntry> _nameToEntryMap = new HashMap<>();
+        private final Map<String, String> _nameToHashMap = new HashMap<>();
+        // maps each hash to the name of the first entry with those contents
+        private final Map<String, String> _hashToNameMap = new HashMap<>();
 
         public ZipFile2(String path) throws IOException {
             _archive = new ZipFile(new File(path));
-            index();
+            try {
+                index();
+            } catch (IOException | RuntimeException e) {
+                _archive.close();
+                throw e;
+            }
         }
 
         public ZipFile getArchive() {
@@ -277,45 +353,19 @@ public class JarDiff implements JarDiffCodes {
             return _nameToEntryMap.get(name);
         }
 
-        /**
-         * Returns true if the two InputStreams differ.
-         */
-        private static boolean differs(InputStream oldIS, InputStream newIS) throws IOException {
-            int newSize = 0;
-            int oldSize;
-            int total = 0;
-            boolean retVal = false;
-
-            while (newSize != -1) {
-                newSize = newIS.read(newBytes);
-                oldSize = oldIS.read(oldBytes);
-
-                if (newSize != oldSize) {
-                    LOGGER.debug("\tread sizes differ: {} {} total {}", newSize, oldSize, total);
-                    retVal = true;
-                    break;
-                }
-                if (newSize > 0) {
-                    while (--newSize >= 0) {
-                        total++;
-                        if (newBytes[newSize] != oldBytes[newSize]) {
-                            LOGGER.debug("\tbytes differ at {}", total);
-                            retVal = true;
-                            break;
-                        }
-                        if (retVal) {
-                            //Jump out
-                            break;
-                        }
-                        newSize = 0;
-                    }
-                }
+        public byte[] read(ZipEntry entry) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = _archive.getInputStream(entry)) {
+                StreamUtil.copy(in, out);
             }
+            return out.toByteArray();
+        }
 
-            return retVal;
+        public String getHashByName(String name) {
+            return _nameToHashMap.get(name);
         }
 
-        public String getBestMatch(ZipFile2 file, ZipEntry entry) throws IOException {
+        public String getBestMatch(ZipFile2 file, ZipEntry entry) {
             // check for same name and same content, return name if found
             if (contains(file, entry)) {
                 return (entry.getName());
@@ -325,80 +375,55 @@ public class JarDiff implements JarDiffCodes {
             return (hasSameContent(file, entry));
         }
 
-        public boolean contains(ZipFile2 f, ZipEntry e) throws IOException {
-            ZipEntry thisEntry = getEntryByName(e.getName());
-
-            // Look up name in 'this' ZipFile2 - if not exist return false
-            if (thisEntry == null)
-                return false;
+        public boolean contains(ZipFile2 f, ZipEntry e) {
+            String thisHash = getHashByName(e.getName());
+            return thisHash != null && thisHash.equals(f.getHashByName(e.getName()));
+        }
 
-            // Check CRC - if no match - return false
-            if (thisEntry.getCrc() != e.getCrc())
-                return false;
+        public String hasSameContent(ZipFile2 file, ZipEntry entry) {
+            return _hashToNameMap.get(file.getHashByName(entry.getName()));
+        }
 
-            // Check contents - if no match - return false
-            try (InputStream oldIS = getArchive().getInputStream(thisEntry);
-                 InputStream newIS = f.getArchive().getInputStream(e)) {
-                return !differs(oldIS, newIS);
+        private void index() throws IOException {
+            LOGGER.debug("indexing: {}", _archive.getName());
+            for (Enumeration<? extends ZipEntry> entries = _archive.entries();
+                 entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                _nameToEntryMap.put(entry.getName(), entry);
+                _entries.add(entry);
             }
-        }
 
-        public String hasSameContent(ZipFile2 file, ZipEntry entry) throws IOException {
-            String thisName = null;
-            Long crcL = entry.getCrc();
-            // check if this archive contains files with the passed in entry's crc
-            if (_crcToEntryMap.containsKey(crcL)) {
-                // get the Linked List with files with the crc
-                LinkedList<ZipEntry> ll = _crcToEntryMap.get(crcL);
-                // go through the list and check for content match
-                ListIterator<ZipEntry> li = ll.listIterator(0);
-                while (li.hasNext()) {
-                    ZipEntry thisEntry = li.next();
-                    // check for content match
-                    try (InputStream oldIS = getArchive().getInputStream(thisEntry);
-                         InputStream newIS = file.getArchive().getInputStream(entry)) {
-                        if (!differs(oldIS, newIS)) {
-                            thisName = thisEntry.getName();
-                            return thisName;
-                        }
+            // hashing the entries is the bulk of the work, so we do it in parallel
+            String[] hashes = new String[_entries.size()];
+            try {
+                IntStream.range(0, hashes.length).parallel().forEach(ii -> {
+                    try {
+                        hashes[ii] = hash(_entries.get(ii));
+                    } catch (IOException ioe) {
+                        throw new UncheckedIOException(ioe);
                     }
-                }
+                });
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
             }
-            return thisName;
-        }
-
-        private void index() {
-            Enumeration<? extends ZipEntry> entries = _archive.entries();
 
-            _nameToEntryMap = new HashMap<>();
-            _crcToEntryMap = new HashMap<>();
-            _entries = new ArrayList<>();
-            LOGGER.debug("indexing: {}", _archive.getName());
-            if (entries != null) {
-                while (entries.hasMoreElements()) {
-                    ZipEntry entry = entries.nextElement();
-                    long crc = entry.getCrc();
-                    Long crcL = crc;
-                    LOGGER.debug("\t{} CRC {}", entry.getName(), crc);
-
-                    _nameToEntryMap.put(entry.getName(), entry);
-                    _entries.add(entry);
-
-                    // generate the CRC to entries map
-                    if (_crcToEntryMap.containsKey(crcL)) {
-                        // key exist, add the entry to the correcponding linked list
-                        LinkedList<ZipEntry> ll = _crcToEntryMap.get(crcL);
-                        ll.add(entry);
-                        _crcToEntryMap.put(crcL, ll);
+            for (int ii = 0; ii < hashes.length; ii++) {
+                String name = _entries.get(ii).getName();
+                LOGGER.debug("\t{} hash {}", name, hashes[ii]);
+                _nameToHashMap.put(name, hashes[ii]);
+                _hashToNameMap.putIfAbsent(hashes[ii], name);
+            }
+        }
 
-                    } else {
-                        // create a new entry in the hashmap for the new key
-                        LinkedList<ZipEntry> ll = new LinkedList<>();
-                        ll.add(entry);
-                        _crcToEntryMap.put(crcL, ll);
-                    }
+        private String hash(ZipEntry entry) throws IOException {
+            MessageDigest md = Digest.getMessageDigest(Digest.VERSION);
+            byte[] buffer = new byte[DEFAULT_READ_SIZE];
+            try (InputStream in = _archive.getInputStream(entry)) {
+                for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                    md.update(buffer, 0, read);
                 }
             }
+            return StringUtil.hexlate(md.digest());
         }
 
         @Override
@@ -406,4 +431,8 @@ public class JarDiff implements JarDiffCodes {
             _archive.close();
         }
     }
+
+    protected final boolean _deltas;
+    protected final byte[] _buffer = new byte[DEFAULT_READ_SIZE];
+    protected final BinaryDiff _bdiff = new BinaryDiff();
 }
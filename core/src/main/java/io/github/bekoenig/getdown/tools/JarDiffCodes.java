@@ -28,4 +28,10 @@ public interface JarDiffCodes {
      * A jardiff command to move an entry.
      */
     String MOVE_COMMAND = "move";
+
+    /**
+     * A jardiff command to rebuild an entry from the binary diff stored under its name and the
+     * old entry of the same name, see {@link BinaryDiff}.
+     */
+    String DELTA_COMMAND = "delta";
 }
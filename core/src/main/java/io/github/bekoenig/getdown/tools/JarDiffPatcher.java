@@ -6,6 +6,7 @@
 package io.github.bekoenig.getdown.tools;
 
 import io.github.bekoenig.getdown.util.ProgressObserver;
+import io.github.bekoenig.getdown.util.StreamUtil;
 
 import java.io.*;
 import java.util.*;
@@ -38,7 +39,8 @@ public class JarDiffPatcher implements JarDiffCodes {
              ZipOutputStream jos = makeOutputStream(oldFile, target)) {
             Set<String> ignoreSet = new HashSet<>();
             Map<String, String> renameMap = new HashMap<>();
-            determineNameMapping(jarDiff, ignoreSet, renameMap);
+            Set<String> deltaSet = new HashSet<>();
+            determineNameMapping(jarDiff, ignoreSet, renameMap, deltaSet);
 
             // get all keys in renameMap
             String[] keys = renameMap.keySet().toArray(new String[renameMap.size()]);
@@ -70,7 +72,11 @@ public class JarDiffPatcher implements JarDiffCodes {
                     if (!INDEX_NAME.equals(entry.getName())) {
                         updateObserver(observer, currentEntry, size);
                         currentEntry++;
-                        writeEntry(jos, entry, jarDiff);
+                        if (deltaSet.contains(entry.getName())) {
+                            writeDeltaEntry(jos, entry, jarDiff, oldJar);
+                        } else {
+                            writeEntry(jos, entry, jarDiff);
+                        }
 
                         // Remove entry from oldjarNames since no implicit move is
                         // needed
@@ -149,8 +155,8 @@ public class JarDiffPatcher implements JarDiffCodes {
         }
     }
 
-    protected void determineNameMapping(
-        ZipFile jarDiff, Set<String> ignoreSet, Map<String, String> renameMap)
+    protected void determineNameMapping(ZipFile jarDiff, Set<String> ignoreSet,
+                                        Map<String, String> renameMap, Set<String> deltaSet)
         throws IOException {
         InputStream is = jarDiff.getInputStream(jarDiff.getEntry(INDEX_NAME));
         if (is == null) {
@@ -187,6 +193,14 @@ public class JarDiffPatcher implements JarDiffCodes {
                     throw new IOException("error.badmove: " + line);
                 }
 
+            } else if (line.startsWith(DELTA_COMMAND)) {
+                List<String> sub = getSubpaths(
+                    line.substring(DELTA_COMMAND.length()));
+                if (sub.size() != 1) {
+                    throw new IOException("error.baddelta: " + line);
+                }
+                deltaSet.add(sub.get(0));
+
             } else if (!line.isEmpty()) {
                 throw new IOException("error.badcommand: " + line);
             }
@@ -250,10 +264,31 @@ public class JarDiffPatcher implements JarDiffCodes {
         jos.putNextEntry(new ZipEntry(entry.getName()));
 
         // Read the entry
-        int size = data.read(newBytes);
+        int size = data.read(_newBytes);
         while (size != -1) {
-            jos.write(newBytes, 0, size);
-            size = data.read(newBytes);
+            jos.write(_newBytes, 0, size);
+            size = data.read(_newBytes);
+        }
+    }
+
+    /**
+     * Writes the entry rebuilt from the binary diff {@code entry} and the old entry of the same
+     * name.
+     */
+    protected void writeDeltaEntry(ZipOutputStream jos, ZipEntry entry, ZipFile jarDiff,
+                                   ZipFile oldJar)
+        throws IOException {
+        ZipEntry oldEntry = oldJar.getEntry(entry.getName());
+        if (oldEntry == null) {
+            throw new IOException("error.baddelta: " + entry.getName());
+        }
+        ByteArrayOutputStream odata = new ByteArrayOutputStream();
+        try (InputStream in = oldJar.getInputStream(oldEntry)) {
+            StreamUtil.copy(in, odata);
+        }
+        jos.putNextEntry(new ZipEntry(entry.getName()));
+        try (InputStream diff = jarDiff.getInputStream(entry)) {
+            _bdiffPatcher.patch(odata.toByteArray(), diff, jos);
         }
     }
 
@@ -269,8 +304,10 @@ public class JarDiffPatcher implements JarDiffCodes {
             throw new AssertionError("Unsupported source file '" + source + "'. Not a .jar or .zip?");
     }
 
-    protected static final int DEFAULT_READ_SIZE = 2048;
+    protected final BinaryDiffPatcher _bdiffPatcher = new BinaryDiffPatcher();
 
-    protected static final byte[] newBytes = new byte[DEFAULT_READ_SIZE];
-    protected static byte[] oldBytes = new byte[DEFAULT_READ_SIZE];
+    /** Our copy buffer, which is ours alone as jars may be patched concurrently. */
+    protected final byte[] _newBytes = new byte[DEFAULT_READ_SIZE];
+
+    protected static final int DEFAULT_READ_SIZE = 2048;
 }
@@ -5,17 +5,34 @@
 
 package io.github.bekoenig.getdown.tools;
 
+import io.github.bekoenig.getdown.data.Digest;
+import io.github.bekoenig.getdown.data.Resource;
+import io.github.bekoenig.getdown.data.SysProps;
 import io.github.bekoenig.getdown.util.FileUtil;
 import io.github.bekoenig.getdown.util.ProgressObserver;
 import io.github.bekoenig.getdown.util.StreamUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -43,6 +60,29 @@ public class Patcher {
      */
     public static final String DELETE = ".delete";
 
+    /**
+     * A suffix appended to file names to indicate that a file should be patched with a binary
+     * diff, see {@link BinaryDiff}.
+     */
+    public static final String BDIFF = ".bdiff";
+
+    /**
+     * The name of the optional manifest of a patch file. The manifest starts with a line
+     * holding {@link #MANIFEST_HEADER} and the version of the digests it lists, followed by a
+     * line per entry of the patch file, holding the entry's name, the uncompressed size of its
+     * contents and the digest of the file it creates or patches ({@code -} for deletions),
+     * separated by tabs.
+     *
+     * <p>Patchers which predate the manifest skip it as a bogus entry (logging a warning) and
+     * apply the other entries one after another, so patches with a manifest remain compatible.
+     */
+    public static final String MANIFEST = "patch.manifest";
+
+    /**
+     * The header of a patch file's {@link #MANIFEST}.
+     */
+    public static final String MANIFEST_HEADER = "getdown-patch 1";
+
     /**
      * Applies the specified patch file to the application living in the
      * specified application directory. The supplied observer, if
@@ -54,44 +94,245 @@ public class Patcher {
      * duration of the patch.
      */
     public void patch(File appdir, File patch, ProgressObserver obs)
+        throws IOException {
+        patch(appdir, appdir, patch, obs);
+    }
+
+    /**
+     * Applies the specified patch file to the application living in {@code srcdir}, writing all
+     * created and patched files to {@code destdir} instead. If the two directories differ, the
+     * application in {@code srcdir} is left untouched and the deletions requested by the patch
+     * are not performed but recorded, see {@link #getDeferredDeletes}.
+     *
+     * <p>If the patch has a {@link #MANIFEST}, its entries are applied concurrently, each
+     * created or patched file is verified against its digest from the manifest right away (and
+     * removed if it doesn't match), and progress is weighted by the sizes of the entries.
+     */
+    public void patch(File srcdir, File destdir, File patch, ProgressObserver obs)
         throws IOException {
         // save this information for later
         _obs = obs;
         _plength = patch.length();
 
         try (ZipFile file = new ZipFile(patch)) {
+            ZipEntry manifest = file.getEntry(MANIFEST);
+            if (manifest != null) {
+                patchConcurrently(file, manifest, srcdir, destdir);
+                return;
+            }
+
             Enumeration<? extends ZipEntry> entries = file.entries();
             while (entries.hasMoreElements()) {
                 ZipEntry entry = entries.nextElement();
-                String path = entry.getName();
-                long elength = entry.getCompressedSize();
-
-                // depending on the suffix, we do The Right Thing (tm)
-                if (path.endsWith(CREATE)) {
-                    path = strip(path, CREATE);
-                    logger.info("Creating {}...", path);
-                    createFile(file, entry, new File(appdir, path));
-
-                } else if (path.endsWith(PATCH)) {
-                    path = strip(path, PATCH);
-                    logger.info("Patching {}...", path);
-                    patchFile(file, entry, appdir, path);
-
-                } else if (path.endsWith(DELETE)) {
-                    path = strip(path, DELETE);
-                    logger.info("Removing {}...", path);
-                    File target = new File(appdir, path);
-                    if (!FileUtil.deleteHarder(target)) {
-                        logger.warn("Failure deleting '{}'.", target);
-                    }
+                if (note(entry.getName(), srcdir, destdir) != null) {
+                    apply(file, entry, srcdir, destdir);
+                }
+                // note that we've completed this entry
+                _complete += entry.getCompressedSize();
+            }
+        }
+    }
 
-                } else {
-                    logger.warn("Skipping bogus patch file entry: {}", path);
+    /**
+     * Returns the paths which the patches applied so far wanted deleted, but which were left in
+     * place because they were applied to a separate destination directory.
+     */
+    public List<String> getDeferredDeletes() {
+        return _deferredDeletes;
+    }
+
+    /**
+     * Returns the paths of the files which the patches applied so far created, patched or deleted
+     * in the destination directory, whether or not they succeeded in doing so. All other files
+     * were left untouched.
+     */
+    public Set<String> getTouchedPaths() {
+        return _touched;
+    }
+
+    /**
+     * Returns the files which the patches applied so far created or patched in the destination
+     * directory and which matched the digest their patch's manifest lists for them, by path. Each
+     * maps to the stat tuple of the file before it was hashed (see {@link Resource#stat}), which
+     * may be null, and its digest, so that the caller can mark it as validated without hashing it
+     * again. The digests are of the version returned by {@link #getDigestVersion}.
+     */
+    public Map<String, String[]> getVerified() {
+        return _verified;
+    }
+
+    /**
+     * Returns the version of the digests in {@link #getVerified}, or 0 if no patch with a
+     * manifest was applied.
+     */
+    public int getDigestVersion() {
+        return _digestVersion;
+    }
+
+    protected void patchConcurrently(ZipFile file, ZipEntry manifest, File srcdir,
+                                     File destdir)
+        throws IOException {
+        List<String[]> ops = new ArrayList<>();
+        int version;
+        long total = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+            file.getInputStream(manifest), StandardCharsets.UTF_8))) {
+            String header = in.readLine();
+            if (header == null || !header.startsWith(MANIFEST_HEADER + " ")) {
+                throw new IOException("Invalid patch manifest header: " + header);
+            }
+            version = Integer.parseInt(header.substring(MANIFEST_HEADER.length() + 1));
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] op = line.split("\t");
+                if (op.length != 3) {
+                    throw new IOException("Invalid patch manifest line: " + line);
                 }
+                total += Long.parseLong(op[1]);
+                ops.add(op);
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Invalid patch manifest", nfe);
+        }
+        if (version != _digestVersion) {
+            _verified.clear();
+            _digestVersion = version;
+        }
 
-                // note that we've completed this entry
-                _complete += elength;
+        // progress is reported as entries complete, weighted by their size
+        ProgressObserver obs = _obs;
+        _obs = null;
+        _complete = 0;
+        _plength = Math.max(total, 1);
+
+        ExecutorService exec = Executors.newFixedThreadPool(SysProps.threadPoolSize());
+        try {
+            // the entries of a patch target distinct files, so they can be applied in any order
+            List<Future<?>> applied = new ArrayList<>();
+            for (String[] op : ops) {
+                ZipEntry entry = file.getEntry(op[0]);
+                long size = Long.parseLong(op[1]);
+                String path = note(op[0], srcdir, destdir);
+                if (entry == null || path == null) {
+                    if (entry == null) {
+                        logger.warn("Patch lacks entry listed in its manifest: {}", op[0]);
+                    }
+                    completed(size, obs);
+                    continue;
+                }
+                applied.add(exec.submit(() -> {
+                    apply(file, entry, srcdir, destdir);
+                    if (!op[0].endsWith(DELETE)) {
+                        verify(path, new File(destdir, path), version, op[2]);
+                    }
+                    completed(size, obs);
+                    return null;
+                }));
+            }
+            for (Future<?> future : applied) {
+                try {
+                    future.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted applying patch");
+                } catch (ExecutionException ee) {
+                    throw new IOException("Failed to apply patch", ee.getCause());
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Records the path that the patch file entry {@code name} touches or deletes.
+     *
+     * @return the path, or null if the entry is not to be applied.
+     */
+    protected String note(String name, File srcdir, File destdir) {
+        String path;
+        if (name.endsWith(CREATE)) {
+            path = strip(name, CREATE);
+        } else if (name.endsWith(PATCH)) {
+            path = strip(name, PATCH);
+        } else if (name.endsWith(BDIFF)) {
+            path = strip(name, BDIFF);
+        } else if (name.endsWith(DELETE)) {
+            path = strip(name, DELETE);
+            if (!srcdir.equals(destdir)) {
+                logger.info("Deferring removal of {}...", path);
+                _deferredDeletes.add(path);
+                return null;
             }
+        } else {
+            logger.warn("Skipping bogus patch file entry: {}", name);
+            return null;
+        }
+        _touched.add(path);
+        // whatever we verified of this path before no longer holds
+        _verified.remove(path);
+        return path;
+    }
+
+    /**
+     * Applies a single entry of a patch file, depending on its suffix, see {@link #note}.
+     */
+    protected void apply(ZipFile file, ZipEntry entry, File srcdir, File destdir) {
+        String name = entry.getName();
+        // depending on the suffix, we do The Right Thing (tm)
+        if (name.endsWith(CREATE)) {
+            String path = strip(name, CREATE);
+            logger.info("Creating {}...", path);
+            createFile(file, entry, new File(destdir, path));
+
+        } else if (name.endsWith(PATCH)) {
+            String path = strip(name, PATCH);
+            logger.info("Patching {}...", path);
+            patchFile(file, entry, srcdir, destdir, path);
+
+        } else if (name.endsWith(BDIFF)) {
+            String path = strip(name, BDIFF);
+            logger.info("Patching {}...", path);
+            bdiffFile(file, entry, srcdir, destdir, path);
+
+        } else if (name.endsWith(DELETE)) {
+            String path = strip(name, DELETE);
+            logger.info("Removing {}...", path);
+            File target = new File(destdir, path);
+            if (!FileUtil.deleteHarder(target)) {
+                logger.warn("Failure deleting '{}'.", target);
+            }
+        }
+    }
+
+    /**
+     * Checks a created or patched file against the digest that the patch's manifest lists for
+     * it, and removes it if it doesn't match, so that it is downloaded afresh. If it matches, it
+     * is noted in {@link #getVerified}.
+     */
+    protected void verify(String path, File target, int version, String digest) {
+        if (!target.exists()) {
+            return; // we failed to create it, and said so already
+        }
+        try {
+            // the stat tuple must describe the file as it was before we hashed it
+            Resource rsrc = new Resource(path, null, target, Resource.NORMAL);
+            String stat = rsrc.stat();
+            String actual = rsrc.computeDigest(version, Digest.getMessageDigest(version), null);
+            if (actual.equals(digest)) {
+                _verified.put(path, new String[]{stat, digest});
+                return;
+            }
+            logger.warn("Patched '{}' does not match its digest, removing it.", target);
+        } catch (IOException ioe) {
+            logger.warn("Failed to verify patched '{}', removing it.", target, ioe);
+        }
+        FileUtil.deleteHarder(target);
+    }
+
+    protected synchronized void completed(long size, ProgressObserver obs) {
+        _complete += size;
+        if (obs != null) {
+            obs.progress((int) (100 * _complete / _plength));
         }
     }
 
@@ -100,14 +341,13 @@ public class Patcher {
     }
 
     protected void createFile(ZipFile file, ZipEntry entry, File target) {
-        // create our copy buffer if necessary
-        if (_buffer == null) {
-            _buffer = new byte[COPY_BUFFER_SIZE];
-        }
+        // entries may be created concurrently, so each gets its own copy buffer
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
 
-        // make sure the file's parent directory exists
+        // make sure the file's parent directory exists; entries are patched concurrently, so
+        // another thread may beat us to creating it, which mkdirs() reports as a failure
         File pdir = target.getParentFile();
-        if (!pdir.exists() && !pdir.mkdirs()) {
+        if (!pdir.mkdirs() && !pdir.isDirectory()) {
             logger.warn("Failed to create parent for '{}'.", target);
         }
 
@@ -115,9 +355,9 @@ public class Patcher {
              FileOutputStream fout = new FileOutputStream(target)) {
 
             int total = 0, read;
-            while ((read = in.read(_buffer)) != -1) {
+            while ((read = in.read(buffer)) != -1) {
                 total += read;
-                fout.write(_buffer, 0, read);
+                fout.write(buffer, 0, read);
                 updateProgress(total);
             }
 
@@ -126,14 +366,25 @@ public class Patcher {
         }
     }
 
-    protected void patchFile(ZipFile file, ZipEntry entry, File appdir, String path) {
-        File target = new File(appdir, path);
-        File patch = new File(appdir, entry.getName());
-        File otarget = new File(appdir, path + ".old");
+    protected void patchFile(ZipFile file, ZipEntry entry, File srcdir, File destdir,
+                             String path) {
+        // when patching in place, the current version of the jar is moved aside to .old
+        boolean inPlace = srcdir.equals(destdir);
+        File target = new File(destdir, path);
+        File patch = new File(destdir, entry.getName());
+        File otarget = inPlace ? new File(srcdir, path + ".old") : new File(srcdir, path);
         JarDiffPatcher patcher = null;
 
         // make sure no stale old target is lying around to mess us up
-        FileUtil.deleteHarder(otarget);
+        if (inPlace) {
+            FileUtil.deleteHarder(otarget);
+        }
+
+        // make sure the patch's (and thus the target's) parent directory exists
+        File pdir = patch.getParentFile();
+        if (!pdir.mkdirs() && !pdir.isDirectory()) {
+            logger.warn("Failed to create parent for '{}'.", patch);
+        }
 
         // pipe the contents of the patch into a file
         try (InputStream in = file.getInputStream(entry);
@@ -143,7 +394,7 @@ public class Patcher {
             StreamUtil.close(fout);
 
             // move the current version of the jar to .old
-            if (!FileUtil.renameTo(target, otarget)) {
+            if (inPlace && !FileUtil.renameTo(target, otarget)) {
                 logger.warn("Failed to .oldify '{}'.", target);
                 return;
             }
@@ -170,8 +421,46 @@ public class Patcher {
         } finally {
             // clean up our temporary files
             FileUtil.deleteHarder(patch);
+            if (inPlace) {
+                FileUtil.deleteHarder(otarget);
+            }
+        }
+    }
+
+    protected void bdiffFile(ZipFile file, ZipEntry entry, File srcdir, File destdir,
+                             String path) {
+        // when patching in place, the current version of the file is moved aside to .old
+        boolean inPlace = srcdir.equals(destdir);
+        File target = new File(destdir, path);
+        File otarget = inPlace ? new File(srcdir, path + ".old") : new File(srcdir, path);
+
+        // make sure no stale old target is lying around to mess us up
+        if (inPlace) {
             FileUtil.deleteHarder(otarget);
         }
+
+        // make sure the target's parent directory exists
+        File pdir = target.getParentFile();
+        if (!pdir.mkdirs() && !pdir.isDirectory()) {
+            logger.warn("Failed to create parent for '{}'.", target);
+        }
+
+        // the diff is applied straight from the patch file
+        try (InputStream in = file.getInputStream(entry)) {
+            if (inPlace && !FileUtil.renameTo(target, otarget)) {
+                logger.warn("Failed to .oldify '{}'.", target);
+                return;
+            }
+            new BinaryDiffPatcher().patch(otarget, in, target);
+
+        } catch (IOException ioe) {
+            logger.warn("Error patching '{}'", target, ioe);
+
+        } finally {
+            if (inPlace) {
+                FileUtil.deleteHarder(otarget);
+            }
+        }
     }
 
     protected void updateProgress(int progress) {
@@ -197,7 +486,10 @@ public class Patcher {
 
     protected ProgressObserver _obs;
     protected long _complete, _plength;
-    protected byte[] _buffer;
+    protected final List<String> _deferredDeletes = new ArrayList<>();
+    protected final Set<String> _touched = new LinkedHashSet<>();
+    protected final Map<String, String[]> _verified = new ConcurrentHashMap<>();
+    protected int _digestVersion;
 
     protected static final int COPY_BUFFER_SIZE = 4096;
 }
@@ -54,6 +54,14 @@ public class Config {
         return opts;
     }
 
+    /**
+     * Receives the key/value pairs parsed by {@link #parsePairs(Reader, ParseOpts, PairHandler)}.
+     */
+    @FunctionalInterface
+    public interface PairHandler {
+        void pair(String key, String value) throws IOException;
+    }
+
     /**
      * Parses configuration text containing key/value pairs.
      *
@@ -63,63 +71,52 @@ public class Config {
      */
     public static List<String[]> parsePairs(Reader source, ParseOpts opts) throws IOException {
         List<String[]> pairs = new ArrayList<>();
-        for (String line : FileUtil.readLines(source)) {
-            // nix comments
-            int cidx = line.indexOf('#');
-            if (opts.strictComments ? cidx == 0 : cidx != -1) {
-                line = line.substring(0, cidx);
-            }
-
-            // trim whitespace and skip blank lines
-            line = line.trim();
-            if (StringUtil.isBlank(line)) {
-                continue;
-            }
-
-            // parse our key/value pair
-            String[] pair = new String[2];
-            // if we're biasing toward key, put all the extra = in the key rather than the value
-            int eidx = opts.biasToKey ? line.lastIndexOf('=') : line.indexOf('=');
-            if (eidx != -1) {
-                pair[0] = line.substring(0, eidx).trim();
-                pair[1] = line.substring(eidx + 1).trim();
-            } else {
-                pair[0] = line;
-                pair[1] = "";
-            }
+        parsePairs(source, opts, (key, value) -> pairs.add(new String[]{key, value}));
+        return pairs;
+    }
 
-            // if the pair has an os qualifier, we need to process it
-            if (pair[1].startsWith("[")) {
-                int qidx = pair[1].indexOf(']');
-                if (qidx == -1) {
-                    LOGGER.atWarn()
-                        .setMessage("Bogus platform specifier")
-                        .addKeyValue("key", pair[0])
-                        .addKeyValue("value", pair[1])
-                        .log();
-                    continue; // omit the pair entirely
+    /**
+     * Parses configuration text containing key/value pairs, passing each pair to {@code handler}
+     * in the order they are parsed. The text is tokenized straight out of a character buffer, so
+     * that no string is created for anything but the keys and values. Closes the reader on
+     * successful or failed completion.
+     *
+     * @param opts options that influence the parsing. See {@link #createOpts}.
+     */
+    public static void parsePairs(Reader source, ParseOpts opts, PairHandler handler)
+        throws IOException {
+        char[] buf = new char[PARSE_BUFFER_SIZE];
+        // the unparsed text is in [start, end), of which [start, scan) contains no line break
+        int start = 0, scan = 0, end = 0;
+        try (Reader in = source) {
+            while (true) {
+                while (scan < end && buf[scan] != '\n' && buf[scan] != '\r') {
+                    scan++;
                 }
-                // if we're checking qualifiers and the os doesn't match this qualifier, skip it
-                String quals = pair[1].substring(1, qidx);
-                if (opts.osname != null && !checkQualifiers(quals, opts.osname, opts.osarch)) {
-                    LOGGER.atDebug()
-                        .setMessage("Skipping")
-                        .addKeyValue("quals", quals)
-                        .addKeyValue("osname", opts.osname)
-                        .addKeyValue("osarch", opts.osarch)
-                        .addKeyValue("key", pair[0])
-                        .addKeyValue("value", pair[1])
-                        .log();
+                if (scan < end) {
+                    // a lone \r or the \r of \r\n each end a line, the empty line is skipped
+                    parseLine(buf, start, scan, opts, handler);
+                    start = ++scan;
                     continue;
                 }
-                // otherwise filter out the qualifier text
-                pair[1] = pair[1].substring(qidx + 1).trim();
-            }
 
-            pairs.add(pair);
+                // we need more text, so make room for it at the end of our buffer
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    scan -= start;
+                    end -= start;
+                    start = 0;
+                } else if (end == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int read = in.read(buf, end, buf.length - end);
+                if (read < 0) {
+                    parseLine(buf, start, end, opts, handler);
+                    return;
+                }
+                end += read;
+            }
         }
-
-        return pairs;
     }
 
     /**
@@ -129,12 +126,23 @@ public class Config {
      * @param opts   options that influence the parsing. See {@link #createOpts}.
      */
     public static List<String[]> parsePairs(File source, ParseOpts opts)
+        throws IOException {
+        List<String[]> pairs = new ArrayList<>();
+        parsePairs(source, opts, (key, value) -> pairs.add(new String[]{key, value}));
+        return pairs;
+    }
+
+    /**
+     * Parses configuration file containing key/value pairs, passing each pair to {@code handler}.
+     *
+     * @param source the file containing the config text. Must be in the UTF-8 encoding.
+     * @param opts   options that influence the parsing. See {@link #createOpts}.
+     */
+    public static void parsePairs(File source, ParseOpts opts, PairHandler handler)
         throws IOException {
         // annoyingly FileReader does not allow encoding to be specified (uses platform default)
-        try (FileInputStream fis = new FileInputStream(source);
-             InputStreamReader input = new InputStreamReader(fis, StandardCharsets.UTF_8)) {
-            return parsePairs(input, opts);
-        }
+        parsePairs(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8),
+            opts, handler);
     }
 
     /**
@@ -185,20 +193,20 @@ public class Config {
         // I thought that we could use HashMap<String, String[]> and put new String[] {pair[1]} for
         // the null case, but it mysteriously dies on launch, so leaving it as HashMap<String,
         // Object> for now
-        for (String[] pair : parsePairs(source, opts)) {
-            Object value = data.get(pair[0]);
+        parsePairs(source, opts, (key, pvalue) -> {
+            Object value = data.get(key);
             if (value == null) {
-                data.put(pair[0], pair[1]);
+                data.put(key, pvalue);
             } else if (value instanceof String) {
-                data.put(pair[0], new String[]{(String) value, pair[1]});
+                data.put(key, new String[]{(String) value, pvalue});
             } else if (value instanceof String[]) {
                 String[] values = (String[]) value;
                 String[] nvalues = new String[values.length + 1];
                 System.arraycopy(values, 0, nvalues, 0, values.length);
-                nvalues[values.length] = pair[1];
-                data.put(pair[0], nvalues);
+                nvalues[values.length] = pvalue;
+                data.put(key, nvalues);
             }
-        }
+        });
 
         return data;
     }
@@ -240,6 +248,13 @@ public class Config {
         return _data.containsKey(name);
     }
 
+    /**
+     * Returns the names of all values in this config.
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(_data.keySet());
+    }
+
     /**
      * Returns the raw-value for {@code name}. This may be a {@code String}, {@code String[]}, or
      * {@code null}.
@@ -379,6 +394,107 @@ public class Config {
         return value;
     }
 
+    /**
+     * A helper function for {@link #parsePairs(Reader, ParseOpts, PairHandler)} which parses the
+     * line in {@code buf} from {@code start} (inclusive) to {@code end} (exclusive).
+     */
+    protected static void parseLine(char[] buf, int start, int end, ParseOpts opts,
+                                    PairHandler handler) throws IOException {
+        // nix comments
+        int cidx = indexOf(buf, start, end, '#', false);
+        if (opts.strictComments ? cidx == start : cidx != -1) {
+            end = cidx;
+        }
+
+        // trim whitespace and skip blank lines
+        while (start < end && buf[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buf[end - 1] <= ' ') {
+            end--;
+        }
+        int nonws = start;
+        while (nonws < end && Character.isWhitespace(buf[nonws])) {
+            nonws++;
+        }
+        if (nonws == end) {
+            return;
+        }
+
+        // parse our key/value pair; if we're biasing toward key, put all the extra = in the key
+        // rather than the value
+        String key, value;
+        int eidx = indexOf(buf, start, end, '=', opts.biasToKey);
+        if (eidx != -1) {
+            key = trimmed(buf, start, eidx);
+            value = trimmed(buf, eidx + 1, end);
+        } else {
+            key = new String(buf, start, end - start);
+            value = "";
+        }
+
+        // if the pair has an os qualifier, we need to process it
+        if (value.startsWith("[")) {
+            int qidx = value.indexOf(']');
+            if (qidx == -1) {
+                LOGGER.atWarn()
+                    .setMessage("Bogus platform specifier")
+                    .addKeyValue("key", key)
+                    .addKeyValue("value", value)
+                    .log();
+                return; // omit the pair entirely
+            }
+            // if we're checking qualifiers and the os doesn't match this qualifier, skip it
+            String quals = value.substring(1, qidx);
+            if (opts.osname != null && !checkQualifiers(quals, opts.osname, opts.osarch)) {
+                LOGGER.atDebug()
+                    .setMessage("Skipping")
+                    .addKeyValue("quals", quals)
+                    .addKeyValue("osname", opts.osname)
+                    .addKeyValue("osarch", opts.osarch)
+                    .addKeyValue("key", key)
+                    .addKeyValue("value", value)
+                    .log();
+                return;
+            }
+            // otherwise filter out the qualifier text
+            value = value.substring(qidx + 1).trim();
+        }
+
+        handler.pair(key, value);
+    }
+
+    /**
+     * Returns the index of the first (or {@code last}) {@code c} in {@code buf} between {@code
+     * start} and {@code end}, or -1.
+     */
+    protected static int indexOf(char[] buf, int start, int end, char c, boolean last) {
+        if (last) {
+            for (int ii = end - 1; ii >= start; ii--) {
+                if (buf[ii] == c) return ii;
+            }
+        } else {
+            for (int ii = start; ii < end; ii++) {
+                if (buf[ii] == c) return ii;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the text in {@code buf} between {@code start} and {@code end} with leading and
+     * trailing whitespace removed, like {@link String#trim}.
+     */
+    protected static String trimmed(char[] buf, int start, int end) {
+        while (start < end && buf[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buf[end - 1] <= ' ') {
+            end--;
+        }
+        return new String(buf, start, end - start);
+    }
+
     /**
      * A helper function for {@link #parsePairs(Reader, ParseOpts)}. Qualifiers have the following
      * form:
@@ -420,4 +536,7 @@ public class Config {
     }
 
     private final Map<String, Object> _data;
+
+    /** The initial size of the buffer config text is parsed from, it grows to fit long lines. */
+    private static final int PARSE_BUFFER_SIZE = 8192;
 }
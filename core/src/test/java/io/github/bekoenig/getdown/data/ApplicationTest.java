@@ -13,14 +13,20 @@ import org.junitpioneer.jupiter.SetSystemProperty;
 import java.io.IOException;
 import java.io.StringReader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.joining;
-import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 class ApplicationTest {
@@ -112,4 +118,315 @@ class ApplicationTest {
         assertThat(folder.resolve("arguments.txt").toFile()).exists().hasContent("some-arg some-more-arg " + someLongArg);
         assertThat(sargs).containsExactly("java-path", "@arguments.txt");
     }
+
+    @Test
+    void verifyResources_findsDamagedResources() throws Exception {
+        // GIVEN
+        StringBuilder config = new StringBuilder("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = large.dat\n");
+        Files.write(folder.resolve("app.jar"), new byte[0]);
+        Files.write(folder.resolve("large.dat"), new byte[5 * 1024 * 1024]);
+        for (int ii = 0; ii < 300; ii++) {
+            config.append("resource = small").append(ii).append(".txt\n");
+            Files.write(folder.resolve("small" + ii + ".txt"),
+                ("data" + ii).getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(folder.resolve("getdown.txt"),
+            config.toString().getBytes(StandardCharsets.UTF_8));
+        Application app = createApp();
+        app.init(false);
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        app._digest = new Digest(folder.toFile(), false);
+        Files.write(folder.resolve("small42.txt"), "damaged".getBytes(StandardCharsets.UTF_8));
+        List<Integer> progress = new ArrayList<>();
+        Set<Resource> unpacked = new HashSet<>(), toInstall = new HashSet<>();
+        Set<Resource> toDownload = new HashSet<>();
+
+        // WHEN
+        app.verifyResources(progress::add, new int[1], unpacked, toInstall, toDownload);
+
+        // THEN
+        assertThat(toDownload).containsExactly(app.createResource("small42.txt", Resource.NORMAL));
+        assertThat(unpacked).hasSize(301);
+        assertThat(toInstall).isEmpty();
+        assertThat(progress).isSorted().endsWith(100);
+    }
+
+    @Test
+    void verifyResources_finishesMigratingMarkerFiles() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = a.txt\n" +
+            "auxgroups = extra\nextra.resource = b.txt\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("app.jar"), new byte[0]);
+        Files.write(folder.resolve("a.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("a.txtv"), new byte[0]);
+        Files.write(folder.resolve("b.txt"), "b".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("b.txtv"), new byte[0]);
+        Application app = createApp();
+        app.init(false);
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        app._digest = new Digest(folder.toFile(), false);
+
+        // WHEN
+        app.verifyResources(percent -> {}, new int[1], new HashSet<>(), new HashSet<>(),
+            new HashSet<>());
+
+        // THEN
+        assertThat(app.getValidationLedger()._channel).isNull();
+        assertThat(app.getActiveResource("a.txt").isMarkedValid()).isTrue();
+        assertThat(folder.resolve("a.txtv")).doesNotExist();
+        assertThat(folder.resolve("b.txtv")).doesNotExist();
+        assertThat(new ValidationLedger(app.getLocalPath(Application.LEDGER_FILE)).isMigrating())
+            .isFalse();
+    }
+
+    @Test
+    void clearValidationMarkers_deletesMarkerFilesOnlyWhileMigrating() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = a.txt\n")
+            .getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("a.txtv"), new byte[0]);
+        Application app = createApp();
+        app.init(false);
+
+        // WHEN
+        app.clearValidationMarkers();
+        boolean deleted = !Files.exists(folder.resolve("a.txtv"));
+        Files.write(folder.resolve("a.txtv"), new byte[0]);
+        app.clearValidationMarkers();
+
+        // THEN
+        assertThat(deleted).isTrue();
+        assertThat(app.getValidationLedger().isMigrating()).isFalse();
+        // the migration ended with the first clear, afterwards marker files are ignored
+        assertThat(folder.resolve("a.txtv")).exists();
+    }
+
+    @Test
+    void verifyResources_inBackgroundLeavesResourcesInUseAlone() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nxresource = run.sh\nresource = a.txt\n")
+            .getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("app.jar"), new byte[0]);
+        Files.write(folder.resolve("run.sh"), "#!/bin/sh".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("a.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        Application app = createApp();
+        app.init(false);
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        app._digest = new Digest(folder.toFile(), false);
+        Files.write(folder.resolve("a.txt"), "damaged".getBytes(StandardCharsets.UTF_8));
+        Set<Resource> unpacked = new HashSet<>(), toDownload = new HashSet<>();
+
+        // WHEN
+        app.verifyResources(percent -> {}, null, unpacked, new HashSet<>(), toDownload, true);
+
+        // THEN
+        assertThat(unpacked).isEmpty();
+        assertThat(folder.resolve("run.sh").toFile().canExecute()).isFalse();
+        assertThat(app.getActiveResource("run.sh").isMarkedValid()).isTrue();
+        assertThat(toDownload).containsExactly(app.getActiveResource("a.txt"));
+    }
+
+    @Test
+    void verifyResources_fullyChecksSampledResources() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = a.txt\n" +
+            "revalidate_policy = sample\nrevalidate_sample_bytes = 1000000\n" +
+            "fast_revalidate = true\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("app.jar"), new byte[0]);
+        Files.write(folder.resolve("a.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        Application app = createApp();
+        app.init(false);
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        app._digest = new Digest(folder.toFile(), false);
+        // the recorded checksum matches the damaged file, as if its damage collided with it
+        Resource rsrc = app.getActiveResource("a.txt");
+        Files.write(folder.resolve("a.txt"), "damaged".getBytes(StandardCharsets.UTF_8));
+        rsrc.markAsValid(app._digest.getDigest(rsrc), rsrc.computeChecksum(null));
+        Set<Resource> toDownload = new HashSet<>();
+
+        // WHEN
+        app.verifyResources(percent -> {}, new int[1], new HashSet<>(), new HashSet<>(),
+            toDownload);
+
+        // THEN
+        assertThat(toDownload).containsExactly(rsrc);
+    }
+
+    @Test
+    void getAllActiveResources_isCachedUntilActivationChanges() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = a.txt\nauxgroups = extra\n" +
+            "extra.resource = b.txt\n").getBytes(StandardCharsets.UTF_8));
+        Application app = createApp();
+        app.init(false);
+        List<Resource> inactive = app.getAllActiveResources();
+
+        // WHEN
+        app.setAuxGroupActive("extra", true);
+
+        // THEN
+        assertThat(inactive).extracting(Resource::getPath).containsExactly("app.jar", "a.txt");
+        assertThat(app.getAllActiveResources()).extracting(Resource::getPath)
+            .containsExactly("app.jar", "a.txt", "b.txt");
+        assertThat(app.getAllActiveResources()).isSameAs(app.getAllActiveResources());
+        assertThat(app.getActiveResource("b.txt").getLocal())
+            .isEqualTo(folder.resolve("b.txt").toFile());
+    }
+
+    @Test
+    void canLaunchBeforeVerify_requiresValidatedResources() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = a.txt\nverify_in_background = true\n" +
+            "revalidate_policy = always\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("app.jar"), new byte[0]);
+        Files.write(folder.resolve("a.txt"), "data".getBytes(StandardCharsets.UTF_8));
+        Application app = createApp();
+        app.init(false);
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        app._digest = new Digest(folder.toFile(), false);
+        boolean unverified = app.canLaunchBeforeVerify();
+
+        // WHEN
+        app.verifyResources(percent -> {}, null, new HashSet<>(), new HashSet<>(),
+            new HashSet<>(), true);
+
+        // THEN
+        assertThat(unverified).isFalse();
+        assertThat(app.canLaunchBeforeVerify()).isTrue();
+        Files.write(folder.resolve("a.txt_new"), "update".getBytes(StandardCharsets.UTF_8));
+        assertThat(app.canLaunchBeforeVerify()).isFalse();
+    }
+
+    @Test
+    void canLaunchBeforeVerify_requiresPolicyThatRehashes() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("app.jar"), new byte[0]);
+        Files.write(folder.resolve("a.txt"), "data".getBytes(StandardCharsets.UTF_8));
+        long validated = System.currentTimeMillis() - 60_000L;
+        folder.resolve("app.jar").toFile().setLastModified(validated);
+        folder.resolve("a.txt").toFile().setLastModified(validated);
+        Application afterUpdate = createVerifiedApp("after_update");
+        Application onChange = createVerifiedApp("on_change");
+        boolean unchanged = onChange.canLaunchBeforeVerify();
+
+        // WHEN
+        folder.resolve("a.txt").toFile().setLastModified(validated + 1000L);
+
+        // THEN
+        assertThat(afterUpdate.canLaunchBeforeVerify()).isFalse();
+        assertThat(unchanged).isFalse();
+        assertThat(onChange.canLaunchBeforeVerify()).isTrue();
+    }
+
+    private Application createVerifiedApp(String policy) throws Exception {
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = a.txt\nverify_in_background = true\n" +
+            "revalidate_policy = " + policy + "\n").getBytes(StandardCharsets.UTF_8));
+        Application app = createApp();
+        app.init(false);
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        app._digest = new Digest(folder.toFile(), false);
+        app.verifyResources(percent -> {}, null, new HashSet<>(), new HashSet<>(),
+            new HashSet<>(), true);
+        return app;
+    }
+
+    @Test
+    void clearValidationMarkers_clearsOnlyChangedResources() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = a.txt\nresource = b.txt\n")
+            .getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("app.jar"), new byte[0]);
+        Files.write(folder.resolve("a.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("b.txt"), "b".getBytes(StandardCharsets.UTF_8));
+        Application app = createApp();
+        app.init(false);
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        Digest olddigest = new Digest(folder.toFile(), false);
+        for (Resource rsrc : app.getAllActiveResources()) {
+            rsrc.markAsValid();
+        }
+        Files.write(folder.resolve("b.txt"), "changed".getBytes(StandardCharsets.UTF_8));
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        app._digest = new Digest(folder.toFile(), false);
+
+        // WHEN
+        app.clearValidationMarkers(olddigest);
+
+        // THEN
+        assertThat(app.getActiveResource("a.txt").isMarkedValid()).isTrue();
+        assertThat(app.getActiveResource("b.txt").isMarkedValid()).isFalse();
+    }
+
+    @Test
+    void clearValidationMarkers_afterUpdateClearsOnlyTouchedResources() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = a.txt\nresource = b.txt\n")
+            .getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("app.jar"), new byte[0]);
+        Files.write(folder.resolve("a.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("b.txt"), "b".getBytes(StandardCharsets.UTF_8));
+        Application app = createApp();
+        app.init(false);
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        app._digest = new Digest(folder.toFile(), false);
+        List<Resource> oldrsrcs = app.getAllActiveResources();
+        for (Resource rsrc : oldrsrcs) {
+            rsrc.markAsValid();
+        }
+
+        // WHEN
+        app.clearValidationMarkers(Arrays.asList("a.txt"), oldrsrcs);
+
+        // THEN
+        assertThat(app.getActiveResource("a.txt").isMarkedValid()).isFalse();
+        assertThat(app.getActiveResource("b.txt").isMarkedValid()).isTrue();
+        assertThat(app.getActiveResource("app.jar").isMarkedValid()).isTrue();
+    }
+
+    @Test
+    void markPatchedValid_marksResourcesMatchingDigest() throws Exception {
+        // GIVEN
+        Files.write(folder.resolve("getdown.txt"), ("appbase = https://test.com/app/\n" +
+            "code = app.jar\nclass = app.Main\nresource = a.txt\nresource = b.txt\n")
+            .getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("app.jar"), new byte[0]);
+        Files.write(folder.resolve("a.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("b.txt"), "b".getBytes(StandardCharsets.UTF_8));
+        Application app = createApp();
+        app.init(false);
+        Digest.createDigest(2, app.getAllActiveResources(),
+            folder.resolve(Digest.digestFile(2)).toFile());
+        app._digest = new Digest(folder.toFile(), false);
+        Map<String, String[]> verified = new HashMap<>();
+        verified.put("a.txt", new String[]{null, app._digest.getDigest(
+            app.getActiveResource("a.txt"))});
+        verified.put("b.txt", new String[]{null, "bogus"});
+
+        // WHEN
+        app.markPatchedValid(2, verified);
+
+        // THEN
+        assertThat(app.getActiveResource("a.txt").isMarkedValid()).isTrue();
+        assertThat(app.getActiveResource("b.txt").isMarkedValid()).isFalse();
+        assertThat(app.getActiveResource("app.jar").isMarkedValid()).isFalse();
+    }
 }
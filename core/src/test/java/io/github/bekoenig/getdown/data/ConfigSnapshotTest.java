@@ -0,0 +1,143 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import io.github.bekoenig.getdown.util.Config;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConfigSnapshotTest {
+
+    @TempDir Path folder;
+
+    @Test
+    void init_readsUnchangedConfigFromSnapshot() throws Exception {
+        // GIVEN
+        writeConfig("appbase = https://test.com/app/%VERSION%\nversion = 7\nclass = app.Main\n" +
+            "code = app.jar\nucode = lib.jar\nresource = data/a b.txt\n" +
+            "jvmarg = -Xmx1g\njvmarg = -Dfoo=bar\nauxgroups = extra\nextra.resource = x.dat\n");
+        createApp().init(true);
+
+        // WHEN
+        Application app = createApp();
+        Config config = app.init(true);
+
+        // THEN
+        assertThat(snapshotFile()).exists();
+        assertThat(config.getMultiValue("jvmarg")).containsExactly("-Xmx1g", "-Dfoo=bar");
+        assertThat(config.getLong("version", -1L)).isEqualTo(7L);
+        assertThat(app.getCodeResources()).extracting(Resource::getPath)
+            .containsExactly("app.jar", "lib.jar");
+        assertThat(app.getCodeResources().get(1).shouldUnpack()).isTrue();
+        assertThat(app.getResources().get(0)._remote).isNull();
+        assertThat(app.getResources().get(0).getRemote())
+            .isEqualTo(new URL("https://test.com/app/7/data/a%20b.txt"));
+        assertThat(app.getAuxGroup("extra").rsrcs).extracting(Resource::getPath)
+            .containsExactly("x.dat");
+    }
+
+    @Test
+    void init_ignoresSnapshotOfChangedConfig() throws Exception {
+        // GIVEN
+        writeConfig("appbase = https://test.com/app/\nclass = app.Main\ncode = app.jar\n");
+        createApp().init(true);
+        writeConfig("appbase = https://test.com/app/\nclass = app.Main\ncode = other.jar\n");
+
+        // WHEN
+        Application app = createApp();
+        app.init(true);
+
+        // THEN
+        assertThat(app.getCodeResources()).extracting(Resource::getPath)
+            .containsExactly("other.jar");
+    }
+
+    @Test
+    void read_ignoresCorruptSnapshot() throws IOException {
+        // GIVEN
+        Files.write(snapshotFile().toPath(), new byte[] { 0, 0, 0, 1, 0, 0 });
+
+        // WHEN
+        ConfigSnapshot snapshot = ConfigSnapshot.read(snapshotFile(), "key");
+
+        // THEN
+        assertThat(snapshot).isNull();
+    }
+
+    @Test
+    void read_decodesAttributesByTheirRecordedNames() throws IOException {
+        // GIVEN
+        try (DataOutputStream out = new DataOutputStream(
+            Files.newOutputStream(snapshotFile().toPath()))) {
+            out.writeInt(ConfigSnapshot.FORMAT_VERSION);
+            ConfigSnapshot.writeString(out, "key");
+            out.writeInt(2);
+            ConfigSnapshot.writeString(out, "NATIVE");
+            ConfigSnapshot.writeString(out, "UNPACK");
+            out.writeInt(0);
+            out.writeInt(1);
+            out.writeBoolean(false);
+            out.writeInt(1);
+            ConfigSnapshot.writeString(out, "lib.jar");
+            out.writeInt(1);
+            out.writeInt(0);
+        }
+
+        // WHEN
+        ConfigSnapshot snapshot = ConfigSnapshot.read(snapshotFile(), "key");
+
+        // THEN
+        assertThat(snapshot).isNotNull();
+        assertThat(snapshot.getGroups().get(0).codes.get(0).attrs)
+            .containsExactly(Resource.Attr.NATIVE);
+    }
+
+    @Test
+    void read_ignoresSnapshotWithUnknownAttribute() throws IOException {
+        // GIVEN
+        try (DataOutputStream out = new DataOutputStream(
+            Files.newOutputStream(snapshotFile().toPath()))) {
+            out.writeInt(ConfigSnapshot.FORMAT_VERSION);
+            ConfigSnapshot.writeString(out, "key");
+            out.writeInt(1);
+            ConfigSnapshot.writeString(out, "BOGUS");
+        }
+
+        // WHEN
+        ConfigSnapshot snapshot = ConfigSnapshot.read(snapshotFile(), "key");
+
+        // THEN
+        assertThat(snapshot).isNull();
+    }
+
+    private Application createApp() {
+        List<EnvConfig.Note> notes = new ArrayList<>();
+        EnvConfig env = EnvConfig.create(new String[] { folder.toAbsolutePath().toString() }, notes);
+        Application app = new Application(env);
+        app.setUseConfigSnapshot(true);
+        return app;
+    }
+
+    private void writeConfig(String config) throws IOException {
+        Files.write(folder.resolve(Application.CONFIG_FILE), config.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File snapshotFile() {
+        return folder.resolve(Application.SNAPSHOT_FILE).toFile();
+    }
+}
@@ -0,0 +1,104 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IntegritySamplerTest {
+
+    @TempDir Path folder;
+
+    @Test
+    void select_sweepsAllResourcesAcrossLaunches() {
+        // GIVEN
+        List<Resource> rsrcs = createResources(10);
+        long[] sizes = new long[rsrcs.size()];
+        Arrays.fill(sizes, 10);
+        File state = folder.resolve("validation.sample").toFile();
+        Set<Resource> sampled = new HashSet<>();
+        List<Integer> sampleSizes = new ArrayList<>();
+
+        // WHEN
+        for (int launch = 0; launch < 3; launch++) {
+            IntegritySampler sampler = new IntegritySampler(state);
+            Set<Resource> sample = sampler.select(rsrcs, sizes, 35, 0);
+            sampler.finish(10);
+            sampleSizes.add(sample.size());
+            sampled.addAll(sample);
+        }
+        IntegritySampler sampler = new IntegritySampler(state);
+        Set<Resource> last = sampler.select(rsrcs, sizes, 35, 0);
+
+        // THEN
+        assertThat(sampleSizes).containsExactly(3, 3, 3);
+        assertThat(sampled).hasSize(9);
+        assertThat(last).hasSize(3);
+        sampled.addAll(last);
+        assertThat(sampled).containsExactlyInAnyOrderElementsOf(rsrcs);
+    }
+
+    @Test
+    void select_sweepsResourcesWithCollidingKeys() {
+        // GIVEN
+        List<Resource> rsrcs = createResources(6);
+        long[] sizes = new long[rsrcs.size()];
+        Arrays.fill(sizes, 10);
+        File state = folder.resolve("validation.sample").toFile();
+        Set<Resource> sampled = new HashSet<>();
+
+        // WHEN
+        for (int launch = 0; launch < 3; launch++) {
+            IntegritySampler sampler = new IntegritySampler(state) {
+                @Override protected long key(String path) {
+                    return 42L;
+                }
+            };
+            sampled.addAll(sampler.select(rsrcs, sizes, 20, 0));
+            sampler.finish(10);
+        }
+
+        // THEN
+        assertThat(sampled).containsExactlyInAnyOrderElementsOf(rsrcs);
+    }
+
+    @Test
+    void select_boundsSampleByObservedThroughput() {
+        // GIVEN
+        List<Resource> rsrcs = createResources(10);
+        long[] sizes = new long[rsrcs.size()];
+        Arrays.fill(sizes, 100);
+        File state = folder.resolve("validation.sample").toFile();
+        IntegritySampler first = new IntegritySampler(state);
+        first.select(rsrcs, sizes, 400, 0);
+        first.finish(40); // 10 bytes per millisecond
+
+        // WHEN
+        Set<Resource> sample = new IntegritySampler(state).select(rsrcs, sizes, 1000, 20);
+
+        // THEN
+        assertThat(sample).hasSize(2);
+    }
+
+    private List<Resource> createResources(int count) {
+        List<Resource> rsrcs = new ArrayList<>();
+        for (int ii = 0; ii < count; ii++) {
+            String path = "rsrc" + ii + ".dat";
+            rsrcs.add(new Resource(path, null, folder.resolve(path).toFile(), Resource.NORMAL));
+        }
+        return rsrcs;
+    }
+}
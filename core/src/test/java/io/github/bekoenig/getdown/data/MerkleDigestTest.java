@@ -0,0 +1,181 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import io.github.bekoenig.getdown.util.StringUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MerkleDigestTest {
+
+    @TempDir Path dir;
+
+    @Test
+    void compute_singleChunk_isLeafHash() throws IOException {
+        // GIVEN
+        byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+        Path file = write("small.txt", data);
+
+        // WHEN
+        String digest = MerkleDigest.compute(file.toFile(), null);
+
+        // THEN
+        assertThat(digest).isEqualTo(StringUtil.hexlate(hash(MerkleDigest.LEAF, data)));
+    }
+
+    @Test
+    void compute_multipleChunks_isRoot() throws IOException {
+        // GIVEN
+        byte[] data = random(2 * MerkleDigest.CHUNK_SIZE + 1000);
+        Path file = write("large.dat", data);
+
+        // WHEN
+        String digest = MerkleDigest.compute(file.toFile(), null);
+
+        // THEN
+        byte[] l0 = hash(MerkleDigest.LEAF, chunk(data, 0));
+        byte[] l1 = hash(MerkleDigest.LEAF, chunk(data, 1));
+        byte[] l2 = hash(MerkleDigest.LEAF, chunk(data, 2));
+        byte[] root = hash(MerkleDigest.NODE, hash(MerkleDigest.NODE, l0, l1), l2);
+        assertThat(digest).isEqualTo(StringUtil.hexlate(root));
+    }
+
+    @Test
+    void parseChunks_readsFormattedChunks() throws IOException {
+        // GIVEN
+        byte[][] chunks = MerkleDigest.computeChunks(
+            write("large.dat", random(2 * MerkleDigest.CHUNK_SIZE + 1000)).toFile(), null, null);
+
+        // WHEN
+        byte[][] parsed = MerkleDigest.parseChunks(MerkleDigest.formatChunks(chunks));
+
+        // THEN
+        assertThat(parsed).isDeepEqualTo(chunks);
+        assertThat(MerkleDigest.parseChunks("not a chunk hash\n")).isNull();
+    }
+
+    @Test
+    void computeChunks_computesChecksum() throws IOException {
+        // GIVEN
+        byte[] data = random(2 * MerkleDigest.CHUNK_SIZE + 1000);
+        Path file = write("large.dat", data);
+        long[] checksum = new long[1];
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        // WHEN
+        MerkleDigest.computeChunks(file.toFile(), checksum, null);
+
+        // THEN
+        assertThat(checksum[0]).isEqualTo(crc.getValue());
+    }
+
+    @Test
+    void builder_matchesCompute() throws IOException {
+        // GIVEN
+        byte[] data = random(2 * MerkleDigest.CHUNK_SIZE + 1000);
+        Path file = write("large.dat", data);
+        MerkleDigest.Builder builder = new MerkleDigest.Builder();
+
+        // WHEN
+        for (int pos = 0; pos < data.length; pos += 100_000) {
+            builder.update(ByteBuffer.wrap(data, pos, Math.min(100_000, data.length - pos)));
+        }
+
+        // THEN
+        assertThat(builder.build()).isEqualTo(MerkleDigest.compute(file.toFile(), null));
+    }
+
+    @Test
+    void damagedChunks_reportsDamagedChunks() throws IOException {
+        // GIVEN
+        byte[] data = random(3 * MerkleDigest.CHUNK_SIZE);
+        byte[][] expected =
+            MerkleDigest.computeChunks(write("good.dat", data).toFile(), null, null);
+        data[MerkleDigest.CHUNK_SIZE + 42] ^= 1;
+        byte[][] actual = MerkleDigest.computeChunks(write("bad.dat", data).toFile(), null, null);
+        MerkleDigest.Damage damage = new MerkleDigest.Damage(actual, MerkleDigest.root(expected));
+
+        // WHEN
+        BitSet damaged = damage.damagedChunks(expected);
+
+        // THEN
+        BitSet expectedDamage = new BitSet();
+        expectedDamage.set(1);
+        assertThat(damaged).isEqualTo(expectedDamage);
+    }
+
+    @Test
+    void damagedChunks_differentChunkCount_returnsNull() throws IOException {
+        // GIVEN
+        byte[][] expected = MerkleDigest.computeChunks(
+            write("long.dat", random(3 * MerkleDigest.CHUNK_SIZE)).toFile(), null, null);
+        byte[][] actual = MerkleDigest.computeChunks(
+            write("short.dat", random(2 * MerkleDigest.CHUNK_SIZE)).toFile(), null, null);
+        MerkleDigest.Damage damage = new MerkleDigest.Damage(actual, MerkleDigest.root(expected));
+
+        // WHEN
+        BitSet damaged = damage.damagedChunks(expected);
+
+        // THEN
+        assertThat(damaged).isNull();
+    }
+
+    @Test
+    void damagedChunks_chunksNotMatchingDigest_returnsNull() throws IOException {
+        // GIVEN
+        byte[] data = random(3 * MerkleDigest.CHUNK_SIZE);
+        byte[][] expected =
+            MerkleDigest.computeChunks(write("good.dat", data).toFile(), null, null);
+        data[42] ^= 1;
+        byte[][] actual = MerkleDigest.computeChunks(write("bad.dat", data).toFile(), null, null);
+        MerkleDigest.Damage damage = new MerkleDigest.Damage(actual, MerkleDigest.root(expected));
+        expected[2] = actual[0];
+
+        // WHEN
+        BitSet damaged = damage.damagedChunks(expected);
+
+        // THEN
+        assertThat(damaged).isNull();
+    }
+
+    private Path write(String name, byte[] data) throws IOException {
+        return Files.write(dir.resolve(name), data);
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] chunk(byte[] data, int chunk) {
+        int start = chunk * MerkleDigest.CHUNK_SIZE;
+        return Arrays.copyOfRange(data, start, Math.min(data.length, start + MerkleDigest.CHUNK_SIZE));
+    }
+
+    private static byte[] hash(byte prefix, byte[]... parts) {
+        MessageDigest md = Digest.getMessageDigest(3);
+        md.update(prefix);
+        for (byte[] part : parts) {
+            md.update(part);
+        }
+        return md.digest();
+    }
+}
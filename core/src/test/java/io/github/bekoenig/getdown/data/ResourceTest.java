@@ -1,13 +1,23 @@
 package io.github.bekoenig.getdown.data;
 
 import io.github.bekoenig.getdown.util.ProgressObserver;
+import io.github.bekoenig.getdown.util.StringUtil;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.CRC32;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class ResourceTest {
 
@@ -97,4 +107,167 @@ class ResourceTest {
         assertEquals("b88a53f07c9210de6706d7dbc632d9cde6468ad301390c93c41c823ae58ee28d", digest);
     }
 
+    @Test
+    void testMarkAsValid_WithDigest(@TempDir Path folder) throws IOException {
+        // GIVEN
+        File target = folder.resolve("data.txt").toFile();
+        Files.write(target.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+        target.setLastModified(System.currentTimeMillis() - 60_000L);
+        Resource rsrc = new Resource("data.txt", null, target, Resource.NORMAL);
+
+        // WHEN
+        rsrc.markAsValid("abc");
+
+        // THEN
+        assertTrue(rsrc.isMarkedValid("abc"));
+        assertFalse(rsrc.isMarkedValid("def"));
+    }
+
+    @Test
+    void testMarkAsValid_WithDigest_RecentlyModified(@TempDir Path folder) throws IOException {
+        // GIVEN
+        File target = folder.resolve("data.txt").toFile();
+        Files.write(target.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+        Resource rsrc = new Resource("data.txt", null, target, Resource.NORMAL);
+        String stat = rsrc.stat();
+
+        // WHEN
+        rsrc.markAsValid(stat, "abc");
+
+        // THEN
+        assertNull(stat);
+        assertTrue(rsrc.isMarkedValid());
+        assertFalse(rsrc.isMarkedValid("abc"));
+    }
+
+    @Test
+    void testMarkAsValid_WithDigest_FileChanged(@TempDir Path folder) throws IOException {
+        // GIVEN
+        File target = folder.resolve("data.txt").toFile();
+        Files.write(target.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+        target.setLastModified(System.currentTimeMillis() - 60_000L);
+        Resource rsrc = new Resource("data.txt", null, target, Resource.NORMAL);
+        rsrc.markAsValid("abc");
+
+        // WHEN
+        Files.write(target.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+
+        // THEN
+        assertTrue(rsrc.isMarkedValid());
+        assertFalse(rsrc.isMarkedValid("abc"));
+    }
+
+    @Test
+    void testMarkAsValid_WithoutDigest(@TempDir Path folder) throws IOException {
+        // GIVEN
+        File target = folder.resolve("data.txt").toFile();
+        Files.write(target.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+        Resource rsrc = new Resource("data.txt", null, target, Resource.NORMAL);
+
+        // WHEN
+        rsrc.markAsValid();
+
+        // THEN
+        assertTrue(rsrc.isMarkedValid());
+        assertFalse(rsrc.isMarkedValid("abc"));
+    }
+
+    @Test
+    void testMarkAsValid_WithChecksum(@TempDir Path folder) throws IOException {
+        // GIVEN
+        File target = folder.resolve("data.txt").toFile();
+        Files.write(target.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+        target.setLastModified(System.currentTimeMillis() - 60_000L);
+        Resource rsrc = new Resource("data.txt", null, target, Resource.NORMAL);
+        CRC32 crc = new CRC32();
+        crc.update("data".getBytes(StandardCharsets.UTF_8));
+
+        // WHEN
+        rsrc.markAsValid("abc", rsrc.computeChecksum(PROGRESS_OBSERVER));
+
+        // THEN
+        assertEquals(crc.getValue(), rsrc.getMarkedChecksum("abc"));
+        assertNull(rsrc.getMarkedChecksum("def"));
+        assertTrue(rsrc.isMarkedValid("abc"));
+    }
+
+    @Test
+    void testComputeDigest_WithChecksum(@TempDir Path folder) throws IOException {
+        // GIVEN
+        File target = folder.resolve("data.txt").toFile();
+        Files.write(target.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+        Resource rsrc = new Resource("data.txt", null, target, Resource.NORMAL);
+        long[] checksum = new long[1];
+
+        // WHEN
+        String digest = rsrc.computeDigest(2, Digest.getMessageDigest(2), checksum, null);
+
+        // THEN
+        assertEquals(rsrc.computeDigest(2, Digest.getMessageDigest(2), null), digest);
+        assertEquals(rsrc.computeChecksum(null), checksum[0]);
+    }
+
+    @Test
+    void testGetMarkedChecksum_WithoutChecksum(@TempDir Path folder) throws IOException {
+        // GIVEN
+        File target = folder.resolve("data.txt").toFile();
+        Files.write(target.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+        Resource rsrc = new Resource("data.txt", null, target, Resource.NORMAL);
+
+        // WHEN
+        rsrc.markAsValid("abc");
+
+        // THEN
+        assertNull(rsrc.getMarkedChecksum("abc"));
+    }
+
+    @Test
+    void testComputeDigests_ReadableZip() throws IOException {
+        // GIVEN
+        File target = new File(getClass().getClassLoader().getResource("io/github/bekoenig/getdown/data/readable.zip").getFile());
+
+        // WHEN
+        String[] digests = Resource.computeDigests(new int[] { 1, 2, 3 }, target, PROGRESS_OBSERVER);
+
+        // THEN
+        for (int version = 1; version <= 3; version++) {
+            assertEquals(Resource.computeDigest(version, target, Digest.getMessageDigest(version),
+                PROGRESS_OBSERVER), digests[version - 1]);
+        }
+    }
+
+    @Test
+    void testComputeDigests_LargeFile(@TempDir Path folder) throws IOException {
+        // GIVEN
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+        File target = folder.resolve("large.dat").toFile();
+        Files.write(target.toPath(), data);
+
+        // WHEN
+        String[] digests = Resource.computeDigests(new int[] { 1, 2, 3 }, target, PROGRESS_OBSERVER);
+
+        // THEN
+        for (int version = 1; version <= 3; version++) {
+            assertEquals(Resource.computeDigest(version, target, Digest.getMessageDigest(version),
+                PROGRESS_OBSERVER), digests[version - 1]);
+        }
+    }
+
+    @Test
+    void testComputeDigest_LargeFile(@TempDir Path folder) throws Exception {
+        // GIVEN
+        int version = 2;
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+        File target = folder.resolve("large.dat").toFile();
+        Files.write(target.toPath(), data);
+        MessageDigest md = Digest.getMessageDigest(version);
+
+        // WHEN
+        String digest = Resource.computeDigest(version, target, md, PROGRESS_OBSERVER);
+
+        // THEN
+        assertEquals(StringUtil.hexlate(MessageDigest.getInstance("SHA-256").digest(data)), digest);
+    }
 }
@@ -0,0 +1,106 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResourceWatcherTest {
+
+    @TempDir Path folder;
+
+    @Test
+    void watcher_invalidatesChangedResourcesOnly() throws Exception {
+        // GIVEN
+        Files.createDirectories(folder.resolve("lib"));
+        Resource changed = createResource("lib/changed.jar");
+        Resource unchanged = createResource("unchanged.txt");
+        File file = folder.resolve(Application.LEDGER_FILE).toFile();
+        try (ValidationLedger ledger = new ValidationLedger(file)) {
+            ledger.mark(changed.getPath(), "");
+            ledger.mark(unchanged.getPath(), "");
+        }
+
+        // WHEN
+        try (ResourceWatcher watcher = new ResourceWatcher(
+            new ValidationLedger(file), Arrays.asList(changed, unchanged))) {
+            watcher.start();
+            Files.write(changed.getLocal().toPath(), "new".getBytes(StandardCharsets.UTF_8));
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (new ValidationLedger(file).get(changed.getPath()) != null &&
+                System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        }
+
+        // THEN
+        ValidationLedger ledger = new ValidationLedger(file);
+        assertThat(ledger.get(changed.getPath())).isNull();
+        assertThat(ledger.get(unchanged.getPath())).isEmpty();
+    }
+
+    @Test
+    void invalidations_surviveConcurrentCompaction() throws Exception {
+        // GIVEN
+        File file = folder.resolve(Application.LEDGER_FILE).toFile();
+        try (ValidationLedger ledger = new ValidationLedger(file)) {
+            for (int ii = 0; ii < 500; ii++) {
+                ledger.mark("rsrc" + ii + ".jar", "1 2 3 abc");
+            }
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // WHEN
+        // a watcher invalidates resources while launchers load and compact the same ledger
+        Future<?> invalidated = executor.submit(() -> {
+            try (ValidationLedger watcher = new ValidationLedger(file)) {
+                for (int ii = 0; ii < 500; ii++) {
+                    watcher.invalidate("rsrc" + ii + ".jar");
+                }
+            }
+            return null;
+        });
+        int compactions = 0;
+        while (!invalidated.isDone()) {
+            try (ValidationLedger launcher = new ValidationLedger(file) {
+                @Override
+                protected boolean shouldCompact() {
+                    return true;
+                }
+            }) {
+                launcher.get("rsrc0.jar");
+                compactions++;
+            }
+        }
+        invalidated.get();
+        executor.shutdown();
+
+        // THEN
+        assertThat(compactions).isPositive();
+        try (ValidationLedger ledger = new ValidationLedger(file)) {
+            for (int ii = 0; ii < 500; ii++) {
+                assertThat(ledger.get("rsrc" + ii + ".jar")).isNull();
+            }
+        }
+    }
+
+    private Resource createResource(String path) throws Exception {
+        File local = folder.resolve(path).toFile();
+        Files.write(local.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+        return new Resource(path, null, local, Resource.NORMAL);
+    }
+}
@@ -0,0 +1,134 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StagedUpdateTest {
+
+    @TempDir Path appdir;
+
+    @Test
+    void activate_movesStagedFilesIntoPlace() throws IOException {
+        // GIVEN
+        write(appdir.resolve("getdown.txt"), config(1));
+        write(appdir.resolve("data.txt"), "old");
+        write(appdir.resolve("data.txtv"), "");
+        write(appdir.resolve("same.txt"), "same");
+        write(appdir.resolve("gone.txt"), "gone");
+        Path stagedir = appdir.resolve(StagedUpdate.STAGING_DIR);
+        write(stagedir.resolve("getdown.txt"), config(2));
+        write(stagedir.resolve("data.txt"), "new");
+        write(stagedir.resolve(StagedUpdate.READY_FILE),
+            "version = 2\ndigest = 3\ndelete = gone.txt\n");
+        write(appdir.resolve(Digest.digestFile(2)), "old digest");
+        write(appdir.resolve(Digest.digestFile(3)), "old digest");
+        write(stagedir.resolve(Digest.digestFile(3)), "new digest");
+        Application app = createApp();
+
+        // WHEN
+        boolean activated = new StagedUpdate(app).activate();
+
+        // THEN
+        assertThat(activated).isTrue();
+        assertThat(appdir.resolve("data.txt")).hasContent("new");
+        assertThat(appdir.resolve("data.txtv")).doesNotExist();
+        assertThat(appdir.resolve("same.txt")).hasContent("same");
+        assertThat(appdir.resolve("gone.txt")).doesNotExist();
+        assertThat(appdir.resolve(Digest.digestFile(2))).doesNotExist();
+        assertThat(appdir.resolve(Digest.digestFile(3))).hasContent("new digest");
+        assertThat(appdir.resolve("getdown.txt")).hasContent(config(2));
+        assertThat(stagedir).doesNotExist();
+    }
+
+    @Test
+    void activate_ignoresIncompleteStaging() throws IOException {
+        // GIVEN
+        write(appdir.resolve("getdown.txt"), config(1));
+        Path stagedir = appdir.resolve(StagedUpdate.STAGING_DIR);
+        write(stagedir.resolve("getdown.txt"), config(2));
+        Application app = createApp();
+
+        // WHEN
+        boolean activated = new StagedUpdate(app).activate();
+
+        // THEN
+        assertThat(activated).isFalse();
+        assertThat(appdir.resolve("getdown.txt")).hasContent(config(1));
+        assertThat(stagedir.resolve("getdown.txt")).exists();
+    }
+
+    @Test
+    void activate_discardsObsoleteJournal() throws IOException {
+        // GIVEN
+        write(appdir.resolve("getdown.txt"), config(2));
+        Path stagedir = appdir.resolve(StagedUpdate.STAGING_DIR);
+        write(stagedir.resolve("data.txt"), "stale");
+        write(stagedir.resolve(StagedUpdate.JOURNAL_FILE), "version = 2\n");
+        Application app = createApp();
+
+        // WHEN
+        boolean activated = new StagedUpdate(app).activate();
+
+        // THEN
+        assertThat(activated).isFalse();
+        assertThat(appdir.resolve("data.txt")).doesNotExist();
+        assertThat(stagedir).doesNotExist();
+    }
+
+    @Test
+    void canDeferUpdate_requiresInstalledVersion() throws IOException {
+        // GIVEN
+        write(appdir.resolve("getdown.txt"), config(1));
+        write(appdir.resolve("app.jar"), "");
+        write(appdir.resolve("data.txt"), "data");
+        write(appdir.resolve("same.txt"), "same");
+        Application app = createApp();
+        app._targetVersion = 2;
+        boolean fresh = app.canDeferUpdate();
+
+        // WHEN
+        for (Resource rsrc : app.getAllActiveResources()) {
+            rsrc.markAsValid();
+        }
+
+        // THEN
+        assertThat(fresh).isFalse();
+        assertThat(app.canDeferUpdate()).isTrue();
+        app._targetVersion = 1;
+        assertThat(app.canDeferUpdate()).isFalse();
+    }
+
+    private Application createApp() throws IOException {
+        Application app = new Application(new EnvConfig(appdir.toFile()));
+        app.init(false);
+        return app;
+    }
+
+    private static String config(long version) {
+        return "appbase = https://test.com/app/%VERSION%\n" +
+            "latest = https://test.com/app/getdown.txt\n" +
+            "version = " + version + "\n" +
+            "stage_updates = true\n" +
+            "code = app.jar\n" +
+            "class = app.Main\n" +
+            "resource = data.txt\n" +
+            "resource = same.txt\n";
+    }
+
+    private static void write(Path path, String contents) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,127 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ValidationLedgerTest {
+
+    @TempDir Path folder;
+
+    @Test
+    void mark_isVisibleAfterReload() throws IOException {
+        // GIVEN
+        File file = folder.resolve("validation.ledger").toFile();
+        try (ValidationLedger ledger = new ValidationLedger(file)) {
+            ledger.mark("a.jar", "");
+            ledger.mark("b.jar", "1 2 3 abc");
+            ledger.mark("c.jar", "");
+            ledger.clear("c.jar");
+            ledger.finishMigration();
+        }
+
+        // WHEN
+        ValidationLedger ledger = new ValidationLedger(file);
+
+        // THEN
+        assertThat(ledger.isMigrating()).isFalse();
+        assertThat(ledger.get("a.jar")).isEmpty();
+        assertThat(ledger.get("b.jar")).isEqualTo("1 2 3 abc");
+        assertThat(ledger.get("c.jar")).isNull();
+    }
+
+    @Test
+    void clearAll_truncatesLedger() throws IOException {
+        // GIVEN
+        File file = folder.resolve("validation.ledger").toFile();
+        try (ValidationLedger ledger = new ValidationLedger(file)) {
+            ledger.mark("a.jar", "");
+
+            // WHEN
+            ledger.clearAll();
+        }
+
+        // THEN
+        assertThat(file).hasContent(ValidationLedger.MIGRATED);
+        assertThat(new ValidationLedger(file).get("a.jar")).isNull();
+        assertThat(new ValidationLedger(file).isMigrating()).isFalse();
+    }
+
+    @Test
+    void load_ignoresTornRecord() throws IOException {
+        // GIVEN
+        Path file = folder.resolve("validation.ledger");
+        Files.write(file, "+\ta.jar\t\n+\tb.ja".getBytes(StandardCharsets.UTF_8));
+
+        // WHEN
+        ValidationLedger ledger = new ValidationLedger(file.toFile());
+
+        // THEN
+        assertThat(ledger.get("a.jar")).isEmpty();
+        assertThat(ledger.get("b.ja")).isNull();
+        assertThat(file).hasContent("+\ta.jar\t");
+    }
+
+    @Test
+    void invalidate_terminatesTornRecord() throws IOException {
+        // GIVEN
+        Path file = folder.resolve("validation.ledger");
+        Files.write(file, "+\ta.jar\t\n+\tb.jar\t\n+\tb.ja".getBytes(StandardCharsets.UTF_8));
+
+        // WHEN
+        new ValidationLedger(file.toFile()).invalidate("a.jar");
+
+        // THEN
+        ValidationLedger ledger = new ValidationLedger(file.toFile());
+        assertThat(ledger.get("a.jar")).isNull();
+        assertThat(ledger.get("b.jar")).isEmpty();
+    }
+
+    @Test
+    void resource_migratesMarkerFile() throws IOException {
+        // GIVEN
+        Path local = folder.resolve("a.jar");
+        Files.write(local, "data".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("a.jarv"), new byte[0]);
+        ValidationLedger ledger = new ValidationLedger(folder.resolve("validation.ledger").toFile());
+        Resource rsrc = new Resource("a.jar", null, local.toFile(), Resource.NORMAL);
+        rsrc.setLedger(ledger);
+
+        // WHEN
+        boolean valid = rsrc.isMarkedValid();
+
+        // THEN
+        assertThat(valid).isTrue();
+        assertThat(ledger.get("a.jar")).isEmpty();
+        assertThat(folder.resolve("a.jarv")).doesNotExist();
+    }
+
+    @Test
+    void resource_ignoresMarkerFileAfterClearAll() throws IOException {
+        // GIVEN
+        Path local = folder.resolve("a.jar");
+        Files.write(local, "data".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("a.jarv"), new byte[0]);
+        ValidationLedger ledger = new ValidationLedger(folder.resolve("validation.ledger").toFile());
+        Resource rsrc = new Resource("a.jar", null, local.toFile(), Resource.NORMAL);
+        rsrc.setLedger(ledger);
+
+        // WHEN
+        ledger.clearAll();
+
+        // THEN
+        assertThat(rsrc.isMarkedValid()).isFalse();
+    }
+}
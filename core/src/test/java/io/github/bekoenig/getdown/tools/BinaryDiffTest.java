@@ -0,0 +1,90 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.tools;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BinaryDiffTest {
+
+    @TempDir Path folder;
+
+    @Test
+    void patch_rebuildsEditedFileFromSmallDiff() throws Exception {
+        // GIVEN
+        byte[] odata = new byte[1024 * 1024];
+        new Random(42).nextBytes(odata);
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        edited.write(odata, 0, 1000);
+        edited.write(new byte[] { 1, 2, 3 }); // an insertion
+        edited.write(odata, 1000, 300_000);
+        edited.write(odata, 400_000, 500_000); // a deletion
+        edited.write(new byte[64]); // a replacement
+        edited.write(odata, 900_064, odata.length - 900_064);
+        byte[] ndata = edited.toByteArray();
+
+        // WHEN
+        byte[] diff = diff(odata, ndata);
+
+        // THEN
+        assertThat(diff.length).isLessThan(1024);
+        assertThat(patch(odata, diff)).isEqualTo(ndata);
+    }
+
+    @Test
+    void patch_rebuildsFilesWithoutCommonBlocks() throws Exception {
+        // GIVEN
+        byte[] ndata = new byte[1000];
+        Arrays.fill(ndata, (byte) 7);
+
+        // WHEN
+        byte[] diff = diff(new byte[0], ndata);
+
+        // THEN
+        assertThat(patch(new byte[0], diff)).isEqualTo(ndata);
+        assertThat(patch(ndata, diff(ndata, new byte[0]))).isEmpty();
+    }
+
+    @Test
+    void patch_rejectsDiffOfOtherFile() throws Exception {
+        // GIVEN
+        byte[] odata = new byte[4096];
+        new Random(7).nextBytes(odata);
+        byte[] diff = diff(odata, Arrays.copyOf(odata, 5000));
+
+        // WHEN/THEN
+        assertThatThrownBy(() -> patch(new byte[100], diff)).isInstanceOf(IOException.class);
+    }
+
+    private byte[] diff(byte[] odata, byte[] ndata) throws IOException {
+        File ofile = write("old", odata), nfile = write("new", ndata);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(new BinaryDiff().createPatch(ofile, nfile, out)).isTrue();
+        return out.toByteArray();
+    }
+
+    private byte[] patch(byte[] odata, byte[] diff) throws IOException {
+        File target = folder.resolve("target").toFile();
+        new BinaryDiffPatcher().patch(write("base", odata), new ByteArrayInputStream(diff), target);
+        return Files.readAllBytes(target.toPath());
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        return Files.write(folder.resolve(name), data).toFile();
+    }
+}
@@ -0,0 +1,251 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.tools;
+
+import io.github.bekoenig.getdown.util.StreamUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DifferTest {
+
+    @TempDir Path folder;
+
+    @Test
+    void createDiff_createsOrderedPatchThatUpdatesOldVersion() throws Exception {
+        // GIVEN
+        File odir = createVersion("1", "a.txt", "b.txt", "d.txt");
+        writeJar(odir, "app.jar", "old");
+        write(odir, "a.txt", "same");
+        write(odir, "b.txt", "old");
+        write(odir, "d.txt", "removed");
+        File ndir = createVersion("2", "a.txt", "b.txt", "c.txt");
+        writeJar(ndir, "app.jar", "new");
+        write(ndir, "a.txt", "same");
+        write(ndir, "b.txt", "new");
+        write(ndir, "c.txt", "added");
+
+        // WHEN
+        new Differ().createDiff(ndir, odir, false);
+
+        // THEN
+        File patch = new File(ndir, "patch1.dat");
+        List<String> entries = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(patch)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                entries.add(entry.getName());
+            }
+        }
+        assertThat(entries).containsExactly("app.jar.patch", "b.txt.create", "c.txt.create",
+            "d.txt.delete", Patcher.MANIFEST);
+        new Patcher().patch(odir, patch, null);
+        assertThat(new File(odir, "b.txt")).hasContent("new");
+        assertThat(new File(odir, "c.txt")).hasContent("added");
+        assertThat(new File(odir, "d.txt")).doesNotExist();
+        try (ZipFile jar = new ZipFile(new File(odir, "app.jar"))) {
+            assertThat(jar.getEntry("data.txt").getSize()).isEqualTo(3);
+            assertThat(jar.getEntry("new.txt")).isNotNull();
+        }
+    }
+
+    @Test
+    void createDiff_trustsPublishedDigests() throws Exception {
+        // GIVEN
+        File odir = createVersion("1", "a.txt", "b.txt");
+        writeJar(odir, "app.jar", "same");
+        write(odir, "a.txt", "same");
+        write(odir, "b.txt", "old");
+        File ndir = createVersion("2", "a.txt", "b.txt");
+        writeJar(ndir, "app.jar", "same");
+        write(ndir, "a.txt", "same");
+        write(ndir, "b.txt", "new");
+        Digester.createDigest(2, odir);
+        Digester.createDigest(2, ndir);
+        // a change the published digest doesn't know about is not noticed
+        write(ndir, "a.txt", "unpublished");
+
+        // WHEN
+        new Differ().createDiff(ndir, odir, false);
+
+        // THEN
+        try (ZipFile zip = new ZipFile(new File(ndir, "patch1.dat"))) {
+            assertThat(Collections.list(zip.entries())).extracting(ZipEntry::getName)
+                .containsExactly("b.txt.create", Patcher.MANIFEST);
+        }
+    }
+
+    @Test
+    void createDiff_usesConfiguredDigestVersion() throws Exception {
+        // GIVEN
+        File odir = createVersion("1", "a.txt", "b.txt");
+        writeJar(odir, "app.jar", "same");
+        write(odir, "a.txt", "same");
+        write(odir, "b.txt", "old");
+        File ndir = createVersion("2", "a.txt", "b.txt");
+        writeJar(ndir, "app.jar", "same");
+        write(ndir, "a.txt", "same");
+        write(ndir, "b.txt", "new");
+        for (File dir : Arrays.asList(odir, ndir)) {
+            Files.write(new File(dir, "getdown.txt").toPath(),
+                "digest_version = 3\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            Digester.createDigest(3, dir);
+        }
+        // a change the published digest doesn't know about is not noticed
+        write(ndir, "a.txt", "unpublished");
+
+        // WHEN
+        new Differ().createDiff(ndir, odir, false);
+
+        // THEN
+        File patch = new File(ndir, "patch1.dat");
+        try (ZipFile zip = new ZipFile(patch)) {
+            assertThat(Collections.list(zip.entries())).extracting(ZipEntry::getName)
+                .containsExactly("b.txt.create", Patcher.MANIFEST);
+            byte[] manifest = readAll(zip, zip.getEntry(Patcher.MANIFEST));
+            assertThat(new String(manifest, StandardCharsets.UTF_8))
+                .startsWith(Patcher.MANIFEST_HEADER + " 3\n");
+        }
+        new Patcher().patch(odir, patch, null);
+        assertThat(new File(odir, "b.txt")).hasContent("new");
+    }
+
+    @Test
+    void createDiff_copiesEntriesCompressedByOtherDeflaters() throws Exception {
+        // GIVEN
+        File odir = createVersion("1");
+        writeJar(odir, "app.jar", "old");
+        File ndir = createVersion("2");
+        char[] text = new char[64 * 1024];
+        Arrays.fill(text, 'x');
+        try (ZipOutputStream out = new ZipOutputStream(
+            new FileOutputStream(new File(ndir, "app.jar")))) {
+            out.setLevel(Deflater.NO_COMPRESSION);
+            out.putNextEntry(new ZipEntry("data.txt"));
+            out.write(new String(text).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // WHEN
+        new Differ().createDiff(ndir, odir, false);
+
+        // THEN
+        new Patcher().patch(odir, new File(ndir, "patch1.dat"), null);
+        try (ZipFile jar = new ZipFile(new File(odir, "app.jar"))) {
+            assertThat(Collections.list(jar.entries())).extracting(ZipEntry::getName)
+                .containsExactly("data.txt");
+            assertThat(jar.getEntry("data.txt").getSize()).isEqualTo(text.length);
+        }
+    }
+
+    @Test
+    void createDiff_shipsBinaryDiffsOfLargeFiles() throws Exception {
+        // GIVEN
+        byte[] data = new byte[256 * 1024];
+        new Random(1).nextBytes(data);
+        File odir = createVersion("1", "data.bin");
+        writeJar(odir, "app.jar", "same");
+        Files.write(new File(odir, "data.bin").toPath(), data);
+        File ndir = createVersion("2", "data.bin");
+        writeJar(ndir, "app.jar", "same");
+        data[1000]++;
+        Files.write(new File(ndir, "data.bin").toPath(), data);
+
+        Differ differ = new Differ();
+        differ.setBinaryDiffs(true);
+
+        // WHEN
+        differ.createDiff(ndir, odir, false);
+
+        // THEN
+        File patch = new File(ndir, "patch1.dat");
+        try (ZipFile zip = new ZipFile(patch)) {
+            assertThat(Collections.list(zip.entries())).extracting(ZipEntry::getName)
+                .containsExactly("data.bin.bdiff", Patcher.MANIFEST);
+        }
+        assertThat(patch.length()).isLessThan(data.length / 10);
+        new Patcher().patch(odir, patch, null);
+        assertThat(Files.readAllBytes(new File(odir, "data.bin").toPath())).isEqualTo(data);
+        assertThat(new File(odir, "data.bin.old")).doesNotExist();
+    }
+
+    @Test
+    void createDiff_shipsChangedFilesInFullByDefault() throws Exception {
+        // GIVEN
+        byte[] data = new byte[256 * 1024];
+        new Random(1).nextBytes(data);
+        File odir = createVersion("1", "data.bin");
+        writeJar(odir, "app.jar", "same");
+        Files.write(new File(odir, "data.bin").toPath(), data);
+        File ndir = createVersion("2", "data.bin");
+        writeJar(ndir, "app.jar", "same");
+        data[1000]++;
+        Files.write(new File(ndir, "data.bin").toPath(), data);
+
+        // WHEN
+        new Differ().createDiff(ndir, odir, false);
+
+        // THEN
+        File patch = new File(ndir, "patch1.dat");
+        try (ZipFile zip = new ZipFile(patch)) {
+            assertThat(Collections.list(zip.entries())).extracting(ZipEntry::getName)
+                .containsExactly("data.bin" + Patcher.CREATE, Patcher.MANIFEST);
+        }
+        new Patcher().patch(odir, patch, null);
+        assertThat(Files.readAllBytes(new File(odir, "data.bin").toPath())).isEqualTo(data);
+    }
+
+    private File createVersion(String version, String... rsrcs) throws IOException {
+        File dir = Files.createDirectories(folder.resolve(version)).toFile();
+        StringBuilder config = new StringBuilder("appbase = https://test.com/app/%VERSION%\n")
+            .append("version = ").append(version).append("\nclass = app.Main\ncode = app.jar\n");
+        for (String rsrc : rsrcs) {
+            config.append("resource = ").append(rsrc).append('\n');
+        }
+        write(dir, "getdown.txt", config.toString());
+        return dir;
+    }
+
+    private void writeJar(File dir, String name, String contents) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(
+            new FileOutputStream(new File(dir, name)))) {
+            out.putNextEntry(new ZipEntry("data.txt"));
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+            out.putNextEntry(new ZipEntry(contents + ".txt"));
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] readAll(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamUtil.copy(in, out);
+            return out.toByteArray();
+        }
+    }
+
+    private void write(File dir, String name, String contents) throws IOException {
+        Files.write(new File(dir, name).toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,73 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.tools;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DigestCacheTest {
+
+    @TempDir Path folder;
+
+    @Test
+    void get_returnsSavedDigest() throws IOException {
+        // GIVEN
+        File file = write("data.txt", "data", 60_000);
+        File cacheFile = folder.resolve("digest.cache").toFile();
+        DigestCache cache = new DigestCache(cacheFile);
+        cache.put(file, 2, cache.stamp(file), "abc");
+        cache.save();
+
+        // WHEN
+        DigestCache loaded = new DigestCache(cacheFile);
+
+        // THEN
+        assertThat(loaded.get(file, 2)).isEqualTo("abc");
+        assertThat(loaded.get(file, 1)).isNull();
+    }
+
+    @Test
+    void get_ignoresChangedFile() throws IOException {
+        // GIVEN
+        File file = write("data.txt", "data", 60_000);
+        DigestCache cache = new DigestCache(folder.resolve("digest.cache").toFile());
+        cache.put(file, 2, cache.stamp(file), "abc");
+
+        // WHEN
+        write("data.txt", "changed", 30_000);
+
+        // THEN
+        assertThat(cache.get(file, 2)).isNull();
+    }
+
+    @Test
+    void put_ignoresRecentlyModifiedFile() throws IOException {
+        // GIVEN
+        File file = write("data.txt", "data", 0);
+        DigestCache cache = new DigestCache(folder.resolve("digest.cache").toFile());
+
+        // WHEN
+        cache.put(file, 2, cache.stamp(file), "abc");
+
+        // THEN
+        assertThat(cache.get(file, 2)).isNull();
+    }
+
+    private File write(String name, String contents, long age) throws IOException {
+        File file = Files.write(folder.resolve(name), contents.getBytes(StandardCharsets.UTF_8))
+            .toFile();
+        file.setLastModified(System.currentTimeMillis() - age);
+        return file;
+    }
+}
@@ -0,0 +1,212 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.tools;
+
+import io.github.bekoenig.getdown.util.StreamUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JarDiffTest {
+
+    @TempDir Path folder;
+
+    @Test
+    void createPatch_movesEntriesWithSameContents() throws Exception {
+        // GIVEN
+        File ojar = writeJar("old.jar", "a.txt", "same", "b.txt", "moved", "c.txt", "removed");
+        File njar = writeJar("new.jar", "a.txt", "same", "d.txt", "moved", "e.txt", "added");
+        File diff = folder.resolve("patch.jardiff").toFile();
+
+        // WHEN
+        try (FileOutputStream out = new FileOutputStream(diff)) {
+            new JarDiff().createPatch(ojar.getPath(), njar.getPath(), out, false);
+        }
+
+        // THEN
+        try (ZipFile patch = new ZipFile(diff)) {
+            assertThat(read(patch, JarDiffCodes.INDEX_NAME))
+                .contains("move b.txt d.txt", "remove c.txt");
+            assertThat(patch.getEntry("a.txt")).isNull();
+            assertThat(patch.getEntry("d.txt")).isNull();
+            assertThat(read(patch, "e.txt")).isEqualTo("added");
+        }
+        File target = folder.resolve("patched.jar").toFile();
+        new JarDiffPatcher().patchJar(ojar.getPath(), diff.getPath(), target, null);
+        try (ZipFile patched = new ZipFile(target)) {
+            assertThat(read(patched, "a.txt")).isEqualTo("same");
+            assertThat(read(patched, "d.txt")).isEqualTo("moved");
+            assertThat(read(patched, "e.txt")).isEqualTo("added");
+            assertThat(patched.size()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void createPatch_shipsDeltasOfModifiedEntries() throws Exception {
+        // GIVEN
+        byte[] odata = new byte[16 * 1024];
+        new Random(3).nextBytes(odata);
+        byte[] ndata = odata.clone();
+        ndata[5000]++;
+        File ojar = writeJar("old.jar", "Main.class", odata, "tiny.txt", "a".getBytes(UTF_8));
+        File njar = writeJar("new.jar", "Main.class", ndata, "tiny.txt", "b".getBytes(UTF_8));
+        File diff = folder.resolve("patch.jardiff").toFile();
+
+        // WHEN
+        try (FileOutputStream out = new FileOutputStream(diff)) {
+            new JarDiff(true).createPatch(ojar.getPath(), njar.getPath(), out, false);
+        }
+
+        // THEN
+        try (ZipFile patch = new ZipFile(diff)) {
+            assertThat(read(patch, JarDiffCodes.INDEX_NAME))
+                .contains("delta Main.class").doesNotContain("delta tiny.txt");
+            assertThat(patch.getEntry("Main.class").getSize()).isLessThan(100);
+            assertThat(read(patch, "tiny.txt")).isEqualTo("b");
+        }
+        File target = folder.resolve("patched.jar").toFile();
+        new JarDiffPatcher().patchJar(ojar.getPath(), diff.getPath(), target, null);
+        try (ZipFile patched = new ZipFile(target)) {
+            assertThat(readBytes(patched, "Main.class")).isEqualTo(ndata);
+            assertThat(read(patched, "tiny.txt")).isEqualTo("b");
+        }
+    }
+
+    @Test
+    void createPatch_shipsModifiedEntriesInFullByDefault() throws Exception {
+        // GIVEN
+        byte[] odata = new byte[16 * 1024];
+        new Random(3).nextBytes(odata);
+        byte[] ndata = odata.clone();
+        ndata[5000]++;
+        File ojar = writeJar("old.jar", "Main.class", odata, "tiny.txt", "a".getBytes(UTF_8));
+        File njar = writeJar("new.jar", "Main.class", ndata, "tiny.txt", "a".getBytes(UTF_8));
+        File diff = folder.resolve("patch.jardiff").toFile();
+
+        // WHEN
+        try (FileOutputStream out = new FileOutputStream(diff)) {
+            new JarDiff().createPatch(ojar.getPath(), njar.getPath(), out, false);
+        }
+
+        // THEN
+        try (ZipFile patch = new ZipFile(diff)) {
+            assertThat(read(patch, JarDiffCodes.INDEX_NAME)).doesNotContain("delta");
+            assertThat(readBytes(patch, "Main.class")).isEqualTo(ndata);
+        }
+    }
+
+    @Test
+    void patchJar_appliesPatchesConcurrently() throws Exception {
+        // GIVEN
+        int count = 4;
+        File[] ojars = new File[count], diffs = new File[count];
+        byte[][] kept = new byte[count][], added = new byte[count][];
+        Random rando = new Random(5);
+        for (int ii = 0; ii < count; ii++) {
+            kept[ii] = new byte[256 * 1024];
+            rando.nextBytes(kept[ii]);
+            added[ii] = new byte[256 * 1024];
+            rando.nextBytes(added[ii]);
+            ojars[ii] = writeJar("old" + ii + ".jar", "kept.bin", kept[ii], "old.bin",
+                new byte[]{(byte) ii});
+            File njar = writeJar("new" + ii + ".jar", "kept.bin", kept[ii], "added.bin",
+                added[ii]);
+            diffs[ii] = folder.resolve("patch" + ii + ".jardiff").toFile();
+            try (FileOutputStream out = new FileOutputStream(diffs[ii])) {
+                new JarDiff().createPatch(ojars[ii].getPath(), njar.getPath(), out, false);
+            }
+        }
+
+        // WHEN
+        ExecutorService exec = Executors.newFixedThreadPool(count);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<File>> patched = new ArrayList<>();
+        try {
+            for (int ii = 0; ii < count; ii++) {
+                int idx = ii;
+                patched.add(exec.submit(() -> {
+                    File target = folder.resolve("patched" + idx + ".jar").toFile();
+                    start.await();
+                    new JarDiffPatcher().patchJar(
+                        ojars[idx].getPath(), diffs[idx].getPath(), target, null);
+                    return target;
+                }));
+            }
+            start.countDown();
+
+            // THEN
+            for (int ii = 0; ii < count; ii++) {
+                try (ZipFile jar = new ZipFile(patched.get(ii).get())) {
+                    assertThat(readBytes(jar, "kept.bin")).isEqualTo(kept[ii]);
+                    assertThat(readBytes(jar, "added.bin")).isEqualTo(added[ii]);
+                    assertThat(jar.getEntry("old.bin")).isNull();
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    private File writeJar(String name, String... contents) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int ii = 0; ii < contents.length; ii += 2) {
+            entries.put(contents[ii], contents[ii + 1]);
+        }
+        File jar = folder.resolve(name).toFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue().getBytes(UTF_8));
+            }
+        }
+        return jar;
+    }
+
+    private File writeJar(String name, String entry1, byte[] data1, String entry2, byte[] data2)
+        throws IOException {
+        File jar = folder.resolve(name).toFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry(entry1));
+            out.write(data1);
+            out.putNextEntry(new ZipEntry(entry2));
+            out.write(data2);
+        }
+        return jar;
+    }
+
+    private String read(ZipFile zip, String name) throws IOException {
+        return new String(readBytes(zip, name), UTF_8);
+    }
+
+    private byte[] readBytes(ZipFile zip, String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            StreamUtil.copy(in, out);
+        }
+        return out.toByteArray();
+    }
+}
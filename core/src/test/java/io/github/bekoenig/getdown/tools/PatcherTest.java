@@ -0,0 +1,73 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/bekoenig/getdown/blob/master/LICENSE
+
+package io.github.bekoenig.getdown.tools;
+
+import io.github.bekoenig.getdown.data.Digest;
+import io.github.bekoenig.getdown.data.Resource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PatcherTest {
+
+    @TempDir Path folder;
+
+    @Test
+    void patch_appliesManifestEntriesAndVerifiesResults() throws Exception {
+        // GIVEN
+        File appdir = Files.createDirectories(folder.resolve("app")).toFile();
+        Files.write(new File(appdir, "old.txt").toPath(), "old".getBytes(UTF_8));
+        String manifest = Patcher.MANIFEST_HEADER + " 2\n" +
+            "a.txt.create\t1\t" + digest("a") + "\n" +
+            "b.txt.create\t3\t" + digest("not b") + "\n" +
+            "old.txt.delete\t0\t-\n";
+        File patch = folder.resolve("patch.dat").toFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(patch))) {
+            write(out, "a.txt.create", "a");
+            write(out, "b.txt.create", "bbb");
+            write(out, "old.txt.delete", "");
+            write(out, Patcher.MANIFEST, manifest);
+        }
+        List<Integer> progress = Collections.synchronizedList(new ArrayList<>());
+        Patcher patcher = new Patcher();
+
+        // WHEN
+        patcher.patch(appdir, patch, progress::add);
+
+        // THEN
+        assertThat(new File(appdir, "a.txt")).hasContent("a");
+        assertThat(new File(appdir, "b.txt")).doesNotExist(); // failed verification
+        assertThat(new File(appdir, "old.txt")).doesNotExist();
+        assertThat(patcher.getTouchedPaths()).containsExactly("a.txt", "b.txt", "old.txt");
+        assertThat(patcher.getVerified()).containsOnlyKeys("a.txt");
+        assertThat(patcher.getVerified().get("a.txt")[1]).isEqualTo(digest("a"));
+        assertThat(patcher.getDigestVersion()).isEqualTo(2);
+        assertThat(progress).isSorted().last().isEqualTo(100);
+    }
+
+    private String digest(String contents) throws IOException {
+        File file = Files.write(folder.resolve("digest.txt"), contents.getBytes(UTF_8)).toFile();
+        return Resource.computeDigest(2, file, Digest.getMessageDigest(2), null);
+    }
+
+    private void write(ZipOutputStream out, String name, String contents) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(contents.getBytes(UTF_8));
+    }
+}
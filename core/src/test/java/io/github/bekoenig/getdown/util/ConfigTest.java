@@ -176,6 +176,47 @@ class ConfigTest {
         assertFalse(exists(parsed, notWin.key));
     }
 
+    @Test
+    void testCommentsAndLineBreaks() throws IOException {
+        String text = "# header\r\none = two # trailing\r\n\r\n  \n" +
+            "three = four\rfive=six=seven\n  # indented\neight";
+        List<String[]> parsed = Config.parsePairs(new StringReader(text), Config.createOpts(false));
+        assertEquals(4, parsed.size());
+        assertArrayEquals(new String[] {"one", "two"}, parsed.get(0));
+        assertArrayEquals(new String[] {"three", "four"}, parsed.get(1));
+        assertArrayEquals(new String[] {"five", "six=seven"}, parsed.get(2));
+        assertArrayEquals(new String[] {"eight", ""}, parsed.get(3));
+
+        Config.ParseOpts opts = Config.createOpts(false);
+        opts.strictComments = true;
+        opts.biasToKey = true;
+        parsed = Config.parsePairs(new StringReader(text), opts);
+        assertEquals(5, parsed.size());
+        assertArrayEquals(new String[] {"one", "two # trailing"}, parsed.get(0));
+        assertArrayEquals(new String[] {"five=six", "seven"}, parsed.get(2));
+        assertArrayEquals(new String[] {"# indented", ""}, parsed.get(3));
+    }
+
+    @Test
+    void testLongLines() throws IOException {
+        StringBuilder text = new StringBuilder();
+        StringBuilder longValue = new StringBuilder();
+        for (int ii = 0; ii < 5000; ii++) {
+            longValue.append("value").append(ii);
+        }
+        for (int ii = 0; ii < 2000; ii++) {
+            text.append("key").append(ii).append(" = ")
+                .append(ii == 1000 ? longValue : "value" + ii).append('\n');
+        }
+        List<String[]> parsed = Config.parsePairs(
+            new StringReader(text.toString()), Config.createOpts(false));
+        assertEquals(2000, parsed.size());
+        for (int ii = 0; ii < 2000; ii++) {
+            assertEquals("key" + ii, parsed.get(ii)[0]);
+            assertEquals(ii == 1000 ? longValue.toString() : "value" + ii, parsed.get(ii)[1]);
+        }
+    }
+
     static boolean exists(List<String[]> pairs, String key) {
         for (String[] pair : pairs) {
             if (pair[0].equals(key)) {
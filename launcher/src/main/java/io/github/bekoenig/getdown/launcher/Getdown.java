@@ -85,6 +85,8 @@ public abstract class Getdown
             fail(errmsg);
         }
         _app = new Application(envc);
+        _app.setWarmUpConnections(true);
+        _app.setUseConfigSnapshot(true);
         _startup = System.currentTimeMillis();
     }
 
@@ -104,7 +106,8 @@ public abstract class Getdown
         } else if (isUpdateAvailable()) {
             LOGGER.info("Installing {} downloaded resources:", _toInstallResources.size());
             for (Resource resource : _toInstallResources) {
-                resource.install(true);
+                resource.install(false);
+                resource.markAsValid(_app.getDigest(resource));
             }
             _toInstallResources.clear();
             _readyToInstall = false;
@@ -300,6 +303,16 @@ public abstract class Getdown
                     LOGGER.warn("getdown.txt was modified while getdown was waiting.");
                     throw new MultipleGetdownRunning();
                 }
+                // and take the lock back before we touch anything in the app dir
+                if (!_noUpdate && !_app.lockForUpdates()) {
+                    throw new MultipleGetdownRunning();
+                }
+            }
+
+            // if an earlier run staged the next version of the app, swap it into place
+            if (!_noUpdate && new StagedUpdate(_app).activate()) {
+                LOGGER.info("Activated staged update.");
+                readConfig(false);
             }
 
             // if no_update was specified, directly start the app without updating
@@ -323,25 +336,60 @@ public abstract class Getdown
             _toInstallResources = new HashSet<>();
             _readyToInstall = false;
 
+            // whether we launch our current version and stage its update once it is running
+            boolean deferUpdate = false;
+
             // setStep(Step.START);
             for (int ii = 0; ii < MAX_LOOPS; ii++) {
                 // make sure we have the desired version and that the metadata files are valid...
                 setStep(Step.VERIFY_METADATA);
                 setStatusAsync("m.validating", -1, -1L, false);
-                if (_app.verifyMetadata(this)) {
-                    LOGGER.info("Application requires update.");
-                    update();
+                if (_app.verifyMetadata(this) && !deferUpdate) {
+                    // if we'll stage updates after launching, don't make the user wait for this
+                    // one, unless we have no installed version to launch
+                    if ((!_silent || _launchInSilent) && !invokeDirect() &&
+                        _app.canDeferUpdate()) {
+                        LOGGER.info("Application requires update, staging it after launch.");
+                        deferUpdate = true;
+                    } else {
+                        LOGGER.info("Application requires update.");
+                        update();
 
-                    // loop back again and reverify the metadata
-                    continue;
+                        // loop back again and reverify the metadata
+                        continue;
+                    }
                 }
 
-                // now verify (and download) our resources...
+                // if the application is installed and wants it, launch right away and verify our
+                // resources once it is running
+                if ((!_silent || _launchInSilent) && !invokeDirect() &&
+                    !Boolean.getBoolean("check_unpacked") && _app.canLaunchBeforeVerify()) {
+                    // verifying clears the markers of (and repairs) damaged resources, which only
+                    // the getdown holding the update lock may do
+                    if (_app.lockForUpdates()) {
+                        LOGGER.info("Launching before verifying resources.");
+                        _verifyAfterLaunch = true;
+                    } else {
+                        LOGGER.info("Another getdown is running, launching without verifying.");
+                    }
+                    launch();
+                    return;
+                }
+
+                // now verify (and download) our resources, telling the user if we're repairing
+                // resources that were found damaged while the application was running
                 setStep(Step.VERIFY_RESOURCES);
-                setStatusAsync("m.validating", -1, -1L, false);
+                boolean repairing = _app.isDamaged();
+                if (repairing) {
+                    createInterfaceAsync(false);
+                }
+                setStatusAsync(repairing ? "m.repairing" : "m.validating", -1, -1L, false);
                 Set<Resource> toDownload = new HashSet<>();
                 _app.verifyResources(_progobs, alreadyValid, unpacked,
                     _toInstallResources, toDownload);
+                if (toDownload.isEmpty() && repairing) {
+                    _app.clearDamaged();
+                }
 
                 if (!toDownload.isEmpty()) {
                     // we have resources to download, also note them as to-be-installed
@@ -556,9 +604,32 @@ public abstract class Getdown
      */
     protected void update()
         throws IOException {
-        // first clear all validation markers
-        _app.clearValidationMarkers();
+        // note what we have now, so that afterwards we only revalidate what the update changed
+        List<Resource> oldrsrcs = _app.getAllActiveResources();
+        Set<String> touched = new HashSet<>();
+        Map<String, String[]> verified = new HashMap<>();
+        int[] version = new int[1];
+        try {
+            applyUpdate(touched, verified, version);
+        } catch (IOException | RuntimeException e) {
+            // we can't tell how far the update got, so we revalidate everything
+            _app.clearValidationMarkers();
+            throw e;
+        }
+        _app.clearValidationMarkers(touched, oldrsrcs);
+        // the patcher already hashed the files it verified, so we needn't hash them again
+        _app.markPatchedValid(version[0], verified);
+    }
 
+    /**
+     * Downloads and applies the patches to the next version, if any, and updates our metadata.
+     *
+     * @param touched receives the paths created, patched or deleted by the patches.
+     * @param verified receives the files the patches verified, see {@link Patcher#getVerified}.
+     * @param version receives the version of the verified digests in its first element.
+     */
+    protected void applyUpdate(Set<String> touched, Map<String, String[]> verified, int[] version)
+        throws IOException {
         // attempt to download the patch files
         Resource patch = _app.getPatchResource(null);
         if (patch != null) {
@@ -602,7 +673,19 @@ public abstract class Getdown
                     prsrc.install(false);
                     // now apply the patch
                     Patcher patcher = new Patcher();
-                    patcher.patch(prsrc.getLocal().getParentFile(), prsrc.getLocal(), pobs);
+                    try {
+                        patcher.patch(prsrc.getLocal().getParentFile(), prsrc.getLocal(), pobs);
+                    } finally {
+                        touched.addAll(patcher.getTouchedPaths());
+                        // a later patch supersedes what an earlier one verified
+                        verified.keySet().removeAll(patcher.getTouchedPaths());
+                        int pversion = patcher.getDigestVersion();
+                        if (pversion != 0 && pversion != version[0]) {
+                            verified.clear();
+                            version[0] = pversion;
+                        }
+                        verified.putAll(patcher.getVerified());
+                    }
                 } catch (Exception e) {
                     LOGGER.atWarn()
                         .setMessage("Failed to apply patch")
@@ -786,6 +869,15 @@ public abstract class Getdown
 
             // pump the percent up to 100%
             setStatusAsync(null, 100, -1L, false);
+
+            // now that the app is running, check the resources it was launched with
+            if (_verifyAfterLaunch) {
+                verifyAfterLaunch();
+            }
+            // and prepare its next version for our next launch
+            if (!invokeDirect() && !_noUpdate) {
+                stageUpdate();
+            }
             exit(0);
 
         } catch (Exception e) {
@@ -793,6 +885,68 @@ public abstract class Getdown
         }
     }
 
+    /**
+     * Verifies our resources in the background once the application was launched without
+     * verifying them first. Damaged resources are downloaded but not installed, as the running
+     * application is using them; the next launch finds their markers cleared, installs them and
+     * tells the user that it is repairing them.
+     */
+    protected void verifyAfterLaunch() {
+        // there's nothing more for the user to see
+        disposeContainer();
+        try {
+            Set<Resource> toDownload = new HashSet<>();
+            _app.verifyResources(percent -> {}, null, new HashSet<>(), new HashSet<>(),
+                toDownload, true);
+            if (toDownload.isEmpty()) {
+                LOGGER.info("Verified resources after launch.");
+                return;
+            }
+
+            LOGGER.atWarn()
+                .setMessage("Resources failed verification after launch, repairing")
+                .addKeyValue("count", toDownload.size())
+                .log();
+            // the user can't be told while the application runs, so the next launch does
+            _app.noteDamaged();
+            new Downloader(_app.conn).download(toDownload, _app.maxConcurrentDownloads());
+            for (Resource rsrc : toDownload) {
+                if (!rsrc.getLocalNew().exists()) {
+                    LOGGER.atError()
+                        .setMessage("Failed to repair resource, retrying on next launch")
+                        .addKeyValue("rsrc", rsrc)
+                        .log();
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to verify resources after launch.", e);
+        }
+    }
+
+    /**
+     * Downloads and patches the next version of the application into the staging directory, if
+     * the application wants its updates staged. Called once the application has been launched.
+     */
+    protected void stageUpdate() {
+        if (!_app.stageUpdates()) {
+            return;
+        }
+        // there's nothing more for the user to see
+        disposeContainer();
+        // staging takes long, so we let another getdown launch the current version meanwhile;
+        // the lock on the staging dir keeps it from activating what we stage before it is ready,
+        // and what we stage is checked against the new digest, so we needn't keep the live app
+        // dir from changing
+        _app.releaseLock();
+        try {
+            if (new StagedUpdate(_app).stage()) {
+                LOGGER.info("Update is staged, it will be activated on the next launch.");
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to stage update.", e);
+        }
+    }
+
     /**
      * Spawns a daemon thread that will catch the early bits of input stream.
      */
@@ -1126,6 +1280,7 @@ public abstract class Getdown
 
     protected Set<Resource> _toInstallResources;
     protected boolean _readyToInstall;
+    protected boolean _verifyAfterLaunch;
 
     protected boolean _enableTracking = true;
     protected int _reportedProgress = 0;